@@ -0,0 +1,292 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
+
+import com.sun.identity.authentication.callbacks.HiddenValueCallback;
+import com.sun.identity.idm.AMIdentity;
+import com.sun.identity.idm.IdType;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.security.auth.callback.Callback;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.ExternalRequestContext.Builder;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.openam.core.CoreWrapper;
+import org.forgerock.openam.core.realms.Realm;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * A synthetic user with a number of stored devices, one of them logging in, and the nodes under
+ * benchmark wired to it. The profiles have the shape and size of those collected by the mobile
+ * SDK, and the device records are written by the store node itself, with a location history, so
+ * that storing the unchanged device is skipped as it would be in production.
+ */
+@State(Scope.Benchmark)
+public class DeviceFixture {
+
+  static final int HISTORY_SIZE = 5;
+  private static final String USER = "id=bob,ou=user,dc=openam";
+
+  @Param({"1", "10", "100", "1000"})
+  public int devices;
+
+  DeviceRegistryCache cache;
+  DeviceAttributeCollectorNode collector;
+  DeviceAttributeStoreNode store;
+  DeviceContextMatchNode match;
+  DeviceLocationRangeNode locationRange;
+  DeviceJailBreakVerificationNode jailBreak;
+
+  TreeContext callbackContext;
+  TreeContext collectedContext;
+  TreeContext movedContext;
+
+  /**
+   * Drops the cached devices of the user before each invocation, so that the benchmarks using it
+   * read and parse the stored device records as on the first login after the cache expired.
+   */
+  @State(Scope.Benchmark)
+  public static class ColdCache {
+
+    @Setup(Level.Invocation)
+    public void invalidate(DeviceFixture fixture) {
+      fixture.cache.invalidate(USER);
+    }
+
+  }
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    long now = System.currentTimeMillis();
+    Realm realm = new Realm() {
+      @Override
+      public String asDN() {
+        return "/";
+      }
+
+      @Override
+      public String asPath() {
+        return "/";
+      }
+    };
+    StoredIdentity identity = new StoredIdentity();
+    CoreWrapper coreWrapper = new CoreWrapper() {
+      @Override
+      public AMIdentity getIdentity(String username, String realm) {
+        return identity;
+      }
+    };
+
+    InMemoryDeviceMetrics metrics = new InMemoryDeviceMetrics();
+    cache = new DeviceRegistryCache(10000, 30, TimeUnit.SECONDS);
+    //A fixed clock keeps the last seen timestamps and location samples fresh for the whole trial
+    DeviceRepository deviceRepository = new DeviceRepository(cache, metrics,
+        Clock.fixed(Instant.ofEpochMilli(now), Clock.systemUTC().getZone()));
+    DeviceAttributeStoreNode.Config storeConfig = new DeviceAttributeStoreNode.Config() {
+      @Override
+      public int locationHistorySize() {
+        return HISTORY_SIZE;
+      }
+    };
+    collector = new DeviceAttributeCollectorNode(coreWrapper, deviceRepository, metrics,
+        new DeviceAttributeCollectorNode.Config() {
+          @Override
+          public boolean deviceLocation() {
+            return true;
+          }
+        }, realm);
+    store = new DeviceAttributeStoreNode(coreWrapper, deviceRepository,
+        new DeviceWriteBehindQueue(deviceRepository), metrics, storeConfig, realm);
+    match = new DeviceContextMatchNode(coreWrapper, deviceRepository, metrics,
+        new DeviceContextMatchNode.Config() {
+        }, realm);
+    locationRange = new DeviceLocationRangeNode(coreWrapper, deviceRepository, metrics,
+        new DeviceLocationRangeNode.Config() {
+          @Override
+          public boolean locationHistory() {
+            return true;
+          }
+        }, realm);
+    jailBreak = new DeviceJailBreakVerificationNode(metrics,
+        new DeviceJailBreakVerificationNode.Config() {
+        });
+
+    int current = devices / 2;
+    JsonValue payload = json(object(
+        field("identifier", identifier(current)),
+        field("profile", profile(current)),
+        field("location", location(current, 0))));
+    HiddenValueCallback callback = new HiddenValueCallback(
+        "DeviceAttributeCallback://forgerock?attributes=profile&attributes=location");
+    callback.setValue(payload.toString());
+    callbackContext = context(json(object(field(USERNAME, "bob"))), singletonList(callback));
+    collectedContext = context(collector.process(callbackContext).sharedState, emptyList());
+
+    JsonValue moved = collectedContext.sharedState.copy();
+    moved.put(DeviceAttribute.LOCATION.getVariableName(), location(current, 1));
+    movedContext = context(moved, emptyList());
+
+    //Devices first seen a month ago at another location, the current one stored by the node
+    Clock firstSeen = Clock.fixed(Instant.ofEpochMilli(now - TimeUnit.DAYS.toMillis(30)),
+        Clock.systemUTC().getZone());
+    new DeviceRepository(new DeviceRegistryCache(), metrics, firstSeen)
+        .save(identity, storeConfig, attributes(1));
+    Map<String, JsonValue> seen = attributes(0);
+    seen.remove(identifier(current));
+    deviceRepository.save(identity, storeConfig, seen);
+    store.process(collectedContext);
+    identity.seeding = false;
+
+    long skipped = metrics.getCount("device.repository.write.skipped");
+    store.process(collectedContext);
+    if (metrics.getCount("device.repository.write.skipped") != skipped + 1) {
+      throw new IllegalStateException("Storing the unchanged device is not skipped");
+    }
+  }
+
+  /**
+   * The user, as a plain subclass rather than a mock so that its calls cost no more than those of
+   * a cached identity. The records are only written while seeding, the benchmarks write to the
+   * void.
+   */
+  private static final class StoredIdentity extends AMIdentity {
+
+    private Set<String> stored = Collections.emptySet();
+    private boolean seeding = true;
+
+    StoredIdentity() {
+      super(null, "bob", IdType.USER, "dc=openam", null);
+    }
+
+    @Override
+    public Set<String> getAttribute(String name) {
+      return DeviceRepository.DEVICE_ATTRIBUTES.equals(name) ? stored : Collections.emptySet();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void setAttributes(Map attrMap) {
+      if (seeding && attrMap.containsKey(DeviceRepository.DEVICE_ATTRIBUTES)) {
+        stored = new LinkedHashSet<>(
+            (Set<String>) attrMap.get(DeviceRepository.DEVICE_ATTRIBUTES));
+      }
+    }
+
+    @Override
+    public void store() {
+    }
+
+    @Override
+    public boolean isExists() {
+      return true;
+    }
+
+    @Override
+    public boolean isActive() {
+      return true;
+    }
+
+    @Override
+    public String getUniversalId() {
+      return USER;
+    }
+
+  }
+
+  /**
+   * The attributes the store node collects for each device.
+   */
+  private Map<String, JsonValue> attributes(int moved) {
+    Map<String, JsonValue> attributes = new LinkedHashMap<>();
+    for (int i = 0; i < devices; i++) {
+      JsonValue profile = json(profile(i));
+      attributes.put(identifier(i), json(object(
+          field("profile", profile.getObject()),
+          field("profileFingerprint", JsonFingerprint.of(profile)),
+          field("location", location(i, moved)))));
+    }
+    return attributes;
+  }
+
+  private static TreeContext context(JsonValue sharedState, List<? extends Callback> callbacks) {
+    return new TreeContext(sharedState, json(object()), new Builder().build(), callbacks);
+  }
+
+  private static String identifier(int device) {
+    return String.format("%016x-NtheX1L1Z2zjW/c4FrPo3X+zyb8=", device * 0x9E3779B97F4A7C15L);
+  }
+
+  private static Map<String, Object> location(int device, int moved) {
+    Map<String, Object> location = new LinkedHashMap<>();
+    location.put("latitude", 49.2827 + device * 0.01 + moved * 0.5);
+    location.put("longitude", -123.1207);
+    return location;
+  }
+
+  private static Map<String, Object> profile(int device) {
+    return object(
+        field("bluetooth", object(field("supported", device % 2 == 0))),
+        field("telephony", object(
+            field("networkCountryIso", "us"),
+            field("carrierName", "Carrier " + device % 7))),
+        field("browser", object(field("agent", "Dalvik/2.1.0 (Linux; U; Android 9; AOSP on IA "
+            + "Emulator Build/PSR1.180720.117)"))),
+        field("version", "1.0"),
+        field("platform", object(
+            field("jailBreakScore", 0),
+            field("timeZone", "America/Vancouver"),
+            field("model", "AOSP on IA Emulator " + device),
+            field("locale", "en_US"),
+            field("version", 29),
+            field("device", "generic_x86_arm"),
+            field("deviceName", "AOSP on IA Emulator"),
+            field("brand", "google"),
+            field("platform", "Android"))),
+        field("hardware", object(
+            field("memory", 1494),
+            field("display", object(
+                field("orientation", 1),
+                field("width", 1440),
+                field("height", 2621))),
+            field("cpu", 4),
+            field("storage", 774 + device),
+            field("camera", object(field("numberOfCameras", 2))),
+            field("hardware", "ranchu"),
+            field("manufacturer", "Google"))),
+        field("network", object(field("connected", true))));
+  }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import java.util.concurrent.TimeUnit;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Throughput, latency percentiles and, with the gc profiler, allocation rate of the process()
+ * path of the device nodes, for users with 1 to 1000 stored devices. The cold cache variants read
+ * and parse the stored devices on every invocation.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeviceNodeBenchmark {
+
+  @Benchmark
+  public Action collect(DeviceFixture fixture) throws NodeProcessException {
+    return fixture.collector.process(fixture.callbackContext);
+  }
+
+  @Benchmark
+  public Action storeUnchanged(DeviceFixture fixture) throws NodeProcessException {
+    return fixture.store.process(fixture.collectedContext);
+  }
+
+  @Benchmark
+  public Action storeUnchangedColdCache(DeviceFixture fixture, DeviceFixture.ColdCache cold)
+      throws NodeProcessException {
+    return fixture.store.process(fixture.collectedContext);
+  }
+
+  @Benchmark
+  public Action storeChanged(DeviceFixture fixture) throws NodeProcessException {
+    return fixture.store.process(fixture.movedContext);
+  }
+
+  @Benchmark
+  public Action match(DeviceFixture fixture) throws NodeProcessException {
+    return fixture.match.process(fixture.collectedContext);
+  }
+
+  @Benchmark
+  public Action matchColdCache(DeviceFixture fixture, DeviceFixture.ColdCache cold)
+      throws NodeProcessException {
+    return fixture.match.process(fixture.collectedContext);
+  }
+
+  @Benchmark
+  public Action locationRange(DeviceFixture fixture) throws NodeProcessException {
+    return fixture.locationRange.process(fixture.movedContext);
+  }
+
+  @Benchmark
+  public Action locationRangeColdCache(DeviceFixture fixture, DeviceFixture.ColdCache cold)
+      throws NodeProcessException {
+    return fixture.locationRange.process(fixture.movedContext);
+  }
+
+  @Benchmark
+  public Action jailBreak(DeviceFixture fixture) throws NodeProcessException {
+    return fixture.jailBreak.process(fixture.collectedContext);
+  }
+
+  /**
+   * Run all the benchmarks with the gc profiler.
+   */
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(DeviceNodeBenchmark.class.getName())
+        .addProfiler(GCProfiler.class)
+        .build()).run();
+  }
+
+}
@@ -4,7 +4,8 @@ public enum DeviceAttribute {
   PROFILE("forgeRock.mobile.profile", "profile"),
   PUBLIC_KEY("forgeRock.mobile.publicKey", "publicKey"),
   LOCATION("forgeRock.mobile.location", "location"),
-  IDENTIFIER("forgeRock.mobile.identifier", "identifier");
+  IDENTIFIER("forgeRock.mobile.identifier", "identifier"),
+  PROFILE_FINGERPRINT("forgeRock.mobile.profileFingerprint", "profileFingerprint");
 
   /**
    * Device Attribute definition
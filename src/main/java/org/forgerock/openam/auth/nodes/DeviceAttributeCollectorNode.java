@@ -18,26 +18,38 @@
 package org.forgerock.openam.auth.nodes;
 
 import static org.forgerock.openam.auth.node.api.Action.send;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
 import static org.forgerock.openam.auth.nodes.DeviceAttribute.IDENTIFIER;
 import static org.forgerock.openam.auth.nodes.DeviceAttribute.LOCATION;
 import static org.forgerock.openam.auth.nodes.DeviceAttribute.PROFILE;
+import static org.forgerock.openam.auth.nodes.DeviceAttribute.PROFILE_FINGERPRINT;
 import static org.forgerock.openam.auth.nodes.DeviceAttribute.PUBLIC_KEY;
 
 import com.google.inject.assistedinject.Assisted;
+import com.iplanet.sso.SSOException;
 import com.sun.identity.authentication.callbacks.HiddenValueCallback;
+import com.sun.identity.idm.AMIdentity;
+import com.sun.identity.idm.IdRepoException;
+import com.sun.identity.sm.RequiredValueValidator;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 import javax.inject.Inject;
 import org.apache.commons.lang.StringUtils;
+import org.apache.http.NameValuePair;
 import org.apache.http.client.utils.URIBuilder;
 import org.forgerock.json.JsonValue;
 import org.forgerock.openam.annotations.sm.Attribute;
 import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.Action.ActionBuilder;
 import org.forgerock.openam.auth.node.api.Node;
 import org.forgerock.openam.auth.node.api.NodeProcessException;
 import org.forgerock.openam.auth.node.api.SingleOutcomeNode;
 import org.forgerock.openam.auth.node.api.TreeContext;
-import org.forgerock.openam.utils.JsonValueBuilder;
+import org.forgerock.openam.core.CoreWrapper;
+import org.forgerock.openam.core.realms.Realm;
 
 /**
  * A node that checks to see if zero-page login headers have specified username and whether that
@@ -45,13 +57,19 @@ import org.forgerock.openam.utils.JsonValueBuilder;
  */
 @Node.Metadata(outcomeProvider = SingleOutcomeNode.OutcomeProvider.class,
     configClass = DeviceAttributeCollectorNode.Config.class)
-public class DeviceAttributeCollectorNode extends SingleOutcomeNode {
+public class DeviceAttributeCollectorNode extends SingleOutcomeNode implements DeviceContext {
 
   public static final String SCHEME = "DeviceAttributeCallback";
   public static final String HOST = "forgerock";
   public static final String PARAM = "attributes";
+  public static final String ENCODING = "encoding";
+  private static final String METRICS = "device.collector.";
 
+  private final CoreWrapper coreWrapper;
+  private final DeviceRepository deviceRepository;
+  private final DeviceMetrics metrics;
   private final Config config;
+  private final Realm realm;
 
   /**
    * Configuration for the node.
@@ -73,88 +91,228 @@ public class DeviceAttributeCollectorNode extends SingleOutcomeNode {
       return false;
     }
 
+    @Attribute(order = 400,
+        validators = {RequiredValueValidator.class, NonNegativeIntegerValidator.class})
+    default int maxPayloadSize() {
+      return 32768;
+    }
+
+    @Attribute(order = 500,
+        validators = {RequiredValueValidator.class, NonNegativeIntegerValidator.class})
+    default int maxPayloadDepth() {
+      return 16;
+    }
+
+    @Attribute(order = 600,
+        validators = {RequiredValueValidator.class, NonNegativeIntegerValidator.class})
+    default int maxPayloadFields() {
+      return 1000;
+    }
+
+    @Attribute(order = 700)
+    default boolean compressedPayload() {
+      return false;
+    }
+
+    @Attribute(order = 800)
+    default boolean profileHash() {
+      return false;
+    }
+
   }
 
   /**
    * Create the node using Guice injection. Just-in-time bindings can be used to obtain instances of
    * other classes from the plugin.
    *
+   * @param coreWrapper The CoreWrapper
+   * @param deviceRepository The repository of the stored devices
+   * @param metrics The metrics registry
    * @param config The service config.
+   * @param realm The realm the node is in.
    */
   @Inject
-  public DeviceAttributeCollectorNode(@Assisted Config config) {
+  public DeviceAttributeCollectorNode(CoreWrapper coreWrapper, DeviceRepository deviceRepository,
+      DeviceMetrics metrics, @Assisted Config config, @Assisted Realm realm) {
+    this.coreWrapper = coreWrapper;
+    this.deviceRepository = deviceRepository;
+    this.metrics = metrics;
     this.config = config;
+    this.realm = realm;
   }
 
   @Override
   public Action process(TreeContext context) throws NodeProcessException {
+    return metrics.process(METRICS, () -> collect(context));
+  }
+
+  private Action collect(TreeContext context) throws NodeProcessException {
     Optional<HiddenValueCallback> opt = context.getCallback(HiddenValueCallback.class);
     if (opt.isPresent() && !StringUtils.isEmpty(opt.get().getValue())) {
-      return save(context, opt.get().getValue());
+      return save(context, getRequested(opt.get().getId()), opt.get().getValue());
     } else {
-      return getCallback();
+      return getCallback(getAttributes()).build();
     }
   }
 
   /**
-   * Persist the device attribute to {@link TreeContext#sharedState}
+   * Persist the device attribute to {@link TreeContext#sharedState}. When the client only sent the
+   * hash of its profile, the stored profile with that fingerprint is used, and the full profile is
+   * requested when there is none.
    *
    * @param context The TreeContext
+   * @param requested The attributes requested from the client
    * @param value A json string which contains keys defined under {@link
-   * DeviceAttribute#getAttributeName()}
+   * DeviceAttribute#getAttributeName()}, compressed when the client supports the offered encoding
    * @return Action which updated with {@link TreeContext#sharedState}
+   * @throws NodeProcessException When the value is malformed or exceeds the payload limits
    */
-  private Action save(TreeContext context, String value) {
+  private Action save(TreeContext context, List<String> requested, String value)
+      throws NodeProcessException {
 
-    JsonValue source = JsonValueBuilder.toJsonValue(value);
+    List<String> attributes = new ArrayList<>(requested);
+    attributes.add(IDENTIFIER.getAttributeName());
+    JsonValue source;
+    metrics.record(METRICS + "payload.bytes", value.length());
+    DeviceMetrics.Timer timer = metrics.start(METRICS + "parse");
+    try {
+      source = new JsonValue(new DevicePayloadParser(config.maxPayloadSize(),
+          config.maxPayloadDepth(), config.maxPayloadFields())
+          .parse(value, attributes, config.compressedPayload()));
+    } catch (IllegalArgumentException e) {
+      metrics.increment(METRICS + "payload.rejected");
+      throw new NodeProcessException(e);
+    } finally {
+      timer.stop();
+    }
 
-    JsonValue newSharedState = context.sharedState.copy();
+    JsonValue newSharedState = copySharedState(context);
 
     newSharedState
         .put(IDENTIFIER.getVariableName(),
             source.get(IDENTIFIER.getAttributeName()));
 
-    if (config.deviceProfile()) {
+    if (requested.contains(PROFILE.getAttributeName())) {
       newSharedState
           .put(PROFILE.getVariableName(),
               source.isDefined(PROFILE.getAttributeName()) ? source.get(PROFILE.getAttributeName())
                   : "");
+      newSharedState
+          .put(PROFILE_FINGERPRINT.getVariableName(),
+              JsonFingerprint.of(newSharedState.get(PROFILE.getVariableName())));
     }
-    if (config.devicePublicKey()) {
+    if (requested.contains(PUBLIC_KEY.getAttributeName())) {
       newSharedState
           .put(PUBLIC_KEY.getVariableName(),
               source.isDefined(PUBLIC_KEY.getAttributeName()) ? source
                   .get(PUBLIC_KEY.getAttributeName())
                   : "");
     }
-    if (config.deviceLocation()) {
+    if (requested.contains(LOCATION.getAttributeName())) {
       newSharedState
           .put(LOCATION.getVariableName(),
               source.isDefined(LOCATION.getAttributeName()) ? source
                   .get(LOCATION.getAttributeName())
                   : "");
     }
+    if (requested.contains(PROFILE_FINGERPRINT.getAttributeName())) {
+      String fingerprint = source.get(PROFILE_FINGERPRINT.getAttributeName()).asString();
+      Optional<JsonValue> profile = getStoredProfile(context,
+          source.get(IDENTIFIER.getAttributeName()).asString(), fingerprint);
+      metrics.increment(METRICS + "profileHash." + (profile.isPresent() ? "hit" : "miss"));
+      if (!profile.isPresent()) {
+        return getCallback(Collections.singletonList(PROFILE.getAttributeName()))
+            .replaceSharedState(newSharedState).build();
+      }
+      newSharedState.put(PROFILE.getVariableName(), profile.get());
+      newSharedState.put(PROFILE_FINGERPRINT.getVariableName(), fingerprint);
+    }
     return goToNext().replaceSharedState(newSharedState).build();
   }
 
-  private Action getCallback() throws NodeProcessException {
-    URIBuilder builder = new URIBuilder()
-        .setScheme(SCHEME)
-        .setHost(HOST);
+  /**
+   * Get a copy of the stored profile of the device when it has the fingerprint sent by the client.
+   * An unknown or inactive user has no stored profile, like a user without the device, so the
+   * outcome does not tell whether the username exists.
+   */
+  private Optional<JsonValue> getStoredProfile(TreeContext context, String identifier,
+      String fingerprint) throws NodeProcessException {
+    if (identifier == null || fingerprint == null || !context.sharedState.isDefined(USERNAME)) {
+      return Optional.empty();
+    }
+    try {
+      AMIdentity identity;
+      try {
+        identity = getUserIdentity(context, coreWrapper, realm, metrics);
+      } catch (NodeProcessException e) {
+        return Optional.empty();
+      }
+      return getDevices(context, deviceRepository, identity)
+          .get(identifier, PROFILE.getAttributeName(), PROFILE_FINGERPRINT.getAttributeName())
+          .filter(record -> record.isDefined(PROFILE.getAttributeName()))
+          .filter(record -> fingerprint
+              .equals(record.get(PROFILE_FINGERPRINT.getAttributeName()).asString()))
+          .map(record -> record.get(PROFILE.getAttributeName()).copy());
+    } catch (IdRepoException | SSOException e) {
+      throw new NodeProcessException(e);
+    }
+  }
 
+  /**
+   * The attributes to request from the client, the profile hash standing for the profile when
+   * the stored one may be reused.
+   */
+  private List<String> getAttributes() {
+    List<String> attributes = new ArrayList<>();
     if (config.deviceProfile()) {
-      builder.addParameter(PARAM, PROFILE.getAttributeName());
+      attributes.add(config.profileHash() ? PROFILE_FINGERPRINT.getAttributeName()
+          : PROFILE.getAttributeName());
     }
     if (config.devicePublicKey()) {
-      builder.addParameter(PARAM, PUBLIC_KEY.getAttributeName());
+      attributes.add(PUBLIC_KEY.getAttributeName());
     }
     if (config.deviceLocation()) {
-      builder.addParameter(PARAM, LOCATION.getAttributeName());
+      attributes.add(LOCATION.getAttributeName());
+    }
+    return attributes;
+  }
+
+  /**
+   * The attributes requested by the callback, those of the configuration when its id is not a
+   * callback uri.
+   */
+  private List<String> getRequested(String id) {
+    try {
+      URIBuilder uri = new URIBuilder(id);
+      if (SCHEME.equals(uri.getScheme())) {
+        List<String> requested = new ArrayList<>();
+        for (NameValuePair parameter : uri.getQueryParams()) {
+          if (PARAM.equals(parameter.getName())) {
+            requested.add(parameter.getValue());
+          }
+        }
+        return requested;
+      }
+    } catch (URISyntaxException | RuntimeException e) {
+      //Not a callback uri
+    }
+    return getAttributes();
+  }
+
+  private ActionBuilder getCallback(List<String> attributes) throws NodeProcessException {
+    URIBuilder builder = new URIBuilder()
+        .setScheme(SCHEME)
+        .setHost(HOST);
+
+    for (String attribute : attributes) {
+      builder.addParameter(PARAM, attribute);
+    }
+    if (config.compressedPayload()) {
+      builder.addParameter(ENCODING, DevicePayloadParser.DEFLATE);
     }
     try {
       return send(
-          new HiddenValueCallback(builder.build().toString()))
-          .build();
+          new HiddenValueCallback(builder.build().toString()));
     } catch (URISyntaxException e) {
       throw new NodeProcessException(e);
     }
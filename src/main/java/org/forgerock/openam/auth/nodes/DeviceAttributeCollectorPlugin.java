@@ -16,25 +16,31 @@
 
 package org.forgerock.openam.auth.nodes;
 
+import com.iplanet.am.util.SystemProperties;
 import com.iplanet.sso.SSOException;
 import com.sun.identity.idm.IdConstants;
 import com.sun.identity.security.AdminTokenAction;
 import com.sun.identity.sm.OrganizationConfigManager;
 import com.sun.identity.sm.SMSException;
-import com.sun.identity.sm.ServiceConfig;
 import com.sun.identity.sm.ServiceConfigManager;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.AccessController;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
+import javax.inject.Inject;
 import org.forgerock.openam.auth.node.api.AbstractNodeAmPlugin;
 import org.forgerock.openam.auth.node.api.Node;
 import org.forgerock.openam.plugins.PluginException;
 import org.forgerock.openam.plugins.PluginTools;
 import org.forgerock.openam.plugins.StartupType;
 import org.forgerock.openam.utils.CollectionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 
 /**
@@ -72,13 +78,39 @@ import org.forgerock.openam.utils.CollectionUtils;
  */
 public class DeviceAttributeCollectorPlugin extends AbstractNodeAmPlugin {
 
-  private static final String SUN_IDREPO_LDAPV_3_CONFIG_USER_ATTRIBUTES = "sun-idrepo-ldapv3-config-user-attributes";
-  private static final String SUN_IDREPO_LDAPV_3_CONFIG_USER_OBJECTCLASS = "sun-idrepo-ldapv3-config-user-objectclass";
-  private static final String DEVICE_ATTRIBUTE_CONTAINER = "deviceAttributeContainer";
+  static final String PATCH_STATE = "deviceAttributeRealms.patched";
+  static final String PATCH_THREADS = "org.forgerock.openam.auth.nodes.device.patch.threads";
+  static final String MIGRATION_STATE = "deviceAttributeMigration.checkpoint";
+  private static final String MIGRATION = "profileFingerprint";
+  private static final String CONFIG_PATH = "com.iplanet.services.configpath";
   static private String currentVersion = "1.0.0";
 
-  private static Set<String> ATTRIBUTES = CollectionUtils
-      .asSet("deviceAttributes");
+  private final Logger logger = LoggerFactory.getLogger(DeviceAttributeCollectorPlugin.class);
+
+  private DeviceWriteBehindQueue writeBehindQueue;
+  private DeviceRepository deviceRepository;
+  private volatile DeviceMigration migration;
+
+  /**
+   * Set the write-behind queue used by the {@link DeviceAttributeStoreNode}, so that pending
+   * updates can be written on shutdown.
+   *
+   * @param writeBehindQueue The write-behind queue
+   */
+  @Inject
+  public void setDeviceWriteBehindQueue(DeviceWriteBehindQueue writeBehindQueue) {
+    this.writeBehindQueue = writeBehindQueue;
+  }
+
+  /**
+   * Set the repository used by the device records migration.
+   *
+   * @param deviceRepository The repository of the stored devices
+   */
+  @Inject
+  public void setDeviceRepository(DeviceRepository deviceRepository) {
+    this.deviceRepository = deviceRepository;
+  }
 
   /**
    * Specify the Map of list of node classes that the plugin is providing. These will then be
@@ -93,8 +125,12 @@ public class DeviceAttributeCollectorPlugin extends AbstractNodeAmPlugin {
             DeviceAttributeCollectorNode.class,
             DeviceAttributeStoreNode.class,
             DeviceContextMatchNode.class,
+            DeviceGeofenceNode.class,
             DeviceJailBreakVerificationNode.class,
-            DeviceLocationRangeNode.class
+            DeviceProfilePredicateNode.class,
+            DeviceLocationRangeNode.class,
+            DeviceRiskNode.class,
+            DeviceTravelVelocityNode.class
             ));
   }
 
@@ -133,41 +169,101 @@ public class DeviceAttributeCollectorPlugin extends AbstractNodeAmPlugin {
     super.onStartup();
   }
 
+  /**
+   * Add the device attributes to the LDAPv3 data stores of the realms, then resume the pending
+   * device records migration in the background.
+   */
   @Override
   public void onStartup(StartupType startupType) throws PluginException {
     super.onStartup(startupType);
 
+    String configPath = SystemProperties.get(CONFIG_PATH);
+    try {
+      Set<String> realms = getRealms();
+      patchRealms(realms, configPath == null ? null : Paths.get(configPath, PATCH_STATE));
+      if (configPath != null && deviceRepository != null) {
+        startMigration(realms, Paths.get(configPath, MIGRATION_STATE));
+      }
+    } catch (SMSException e) {
+      logger.error("Failed to list the realms", e);
+    }
+  }
+
+  /**
+   * Add the device attributes to the LDAPv3 data stores of the realms not yet recorded as patched
+   * in the {@value #PATCH_STATE} file of the configuration directory, in parallel on up to
+   * {@value #PATCH_THREADS} threads. Realms whose data stores were all patched are recorded too and
+   * skipped without reading their configuration. Data stores which could not be patched are logged
+   * and retried on the next startup.
+   */
+  private void patchRealms(Set<String> realms, Path state) {
     try {
+      Set<String> patched = new LinkedHashSet<>();
+      if (state != null) {
+        patched.addAll(RealmPatcher.load(state));
+      }
+      int recorded = patched.size();
+
       ServiceConfigManager scm = new ServiceConfigManager(IdConstants.REPO_SERVICE,
           AccessController.doPrivileged(AdminTokenAction.getInstance()));
-      for (String realm : getRealms()) {
-        ServiceConfig sc = scm.getOrganizationConfig(realm, null);
-        Set<String> subConfigNames = sc.getSubConfigNames("*", "LDAPv3*");
-        for (String subConfig : subConfigNames) {
-          Set<String> current = sc.getSubConfig(subConfig)
-              .getAttributeValue(SUN_IDREPO_LDAPV_3_CONFIG_USER_OBJECTCLASS);
-          if (CollectionUtils.isNotEmpty(current) && !current
-              .contains(DEVICE_ATTRIBUTE_CONTAINER)) {
-            Set<String> updated = new HashSet<String>();
-            updated.add(DEVICE_ATTRIBUTE_CONTAINER);
-            sc.getSubConfig(subConfig)
-                .addAttribute(SUN_IDREPO_LDAPV_3_CONFIG_USER_OBJECTCLASS, updated);
-          }
-
-          Set<String> currentAttrs = sc.getSubConfig(subConfig)
-              .getAttributeValue(SUN_IDREPO_LDAPV_3_CONFIG_USER_ATTRIBUTES);
-          if (CollectionUtils.isNotEmpty(currentAttrs)
-              && !currentAttrs.containsAll(ATTRIBUTES)) {
-            Set<String> updated = new HashSet<String>(ATTRIBUTES);
-            sc.getSubConfig(subConfig)
-                .addAttribute(SUN_IDREPO_LDAPV_3_CONFIG_USER_ATTRIBUTES, updated);
-          }
-
-        }
+      Map<String, Exception> failures = new RealmPatcher(
+          realm -> scm.getOrganizationConfig(realm, null),
+          SystemProperties.getAsInt(PATCH_THREADS, 8)).patch(realms, patched);
+      failures.forEach((realm, e) ->
+          logger.error("Failed to add the device attributes to the data stores of realm {}",
+              realm, e));
+      if (patched.size() > recorded || !failures.isEmpty()) {
+        logger.info("Added the device attributes to {} data stores, {} of {} realms failed",
+            patched.size() - recorded, failures.size(), realms.size());
+      }
+
+      if (state != null) {
+        patched.removeIf(key -> !realms.contains(RealmPatcher.realm(key)));
+        RealmPatcher.save(state, patched);
+      }
+    } catch (SMSException | SSOException | IOException e) {
+      logger.error("Failed to add the device attributes to the data stores", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      logger.error("Interrupted while adding the device attributes to the data stores", e);
+    }
+  }
+
+  /**
+   * Run the device records migration requested by {@link #upgrade(String)} in the background,
+   * resuming from its checkpoint. It is throttled by the {@value DeviceMigration#THREADS},
+   * {@value DeviceMigration#RATE} and {@value DeviceMigration#PAGE_SIZE} server properties.
+   */
+  private void startMigration(Set<String> realms, Path checkpoint) {
+    DeviceMigration pending = new DeviceMigration(MIGRATION, checkpoint,
+        DeviceMigration::searchUsers, deviceRepository,
+        DeviceMigration.PROFILE_FINGERPRINT_MIGRATION,
+        SystemProperties.getAsInt(DeviceMigration.THREADS, 4),
+        SystemProperties.getAsInt(DeviceMigration.RATE, 50),
+        SystemProperties.getAsInt(DeviceMigration.PAGE_SIZE, 1000));
+    try {
+      if (pending.isPending()) {
+        migration = pending;
+        pending.start(realms);
       }
-    } catch (SMSException | SSOException e) {
-      //something went wrong
+    } catch (IOException e) {
+      logger.error("Failed to read the device records migration checkpoint", e);
+    }
+  }
+
+  /**
+   * Handle plugin shutdown. Stop the device records migration and write the device records still
+   * pending in the write-behind queue.
+   */
+  @Override
+  public void onShutdown() {
+    if (migration != null) {
+      migration.stop();
+    }
+    if (writeBehindQueue != null) {
+      writeBehindQueue.shutdown();
     }
+    super.onShutdown();
   }
 
   /**
@@ -175,7 +271,8 @@ public class DeviceAttributeCollectorPlugin extends AbstractNodeAmPlugin {
    * than the version already installed. This method will be called before the {@link #onStartup()}
    * method.
    *
-   * No need to implement this untils there are multiple versions of your auth node.
+   * Request the migration of the stored device records to the current format, which is run in the
+   * background by {@link #onStartup(StartupType)}.
    *
    * @param fromVersion The old version of the plugin that has been installed.
    */
@@ -183,6 +280,15 @@ public class DeviceAttributeCollectorPlugin extends AbstractNodeAmPlugin {
   public void upgrade(String fromVersion) throws PluginException {
     super.upgrade(fromVersion);
 
+    //Only request the migration, it runs in the background once started
+    String configPath = SystemProperties.get(CONFIG_PATH);
+    if (configPath != null) {
+      try {
+        DeviceMigration.schedule(MIGRATION, Paths.get(configPath, MIGRATION_STATE));
+      } catch (IOException e) {
+        logger.error("Failed to request the device records migration", e);
+      }
+    }
   }
 
   /**
@@ -21,12 +21,11 @@ import com.google.inject.assistedinject.Assisted;
 import com.iplanet.sso.SSOException;
 import com.sun.identity.idm.AMIdentity;
 import com.sun.identity.idm.IdRepoException;
+import com.sun.identity.shared.validation.PositiveIntegerValidator;
+import com.sun.identity.sm.RequiredValueValidator;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.stream.Collectors;
 import javax.inject.Inject;
 import org.forgerock.json.JsonValue;
 import org.forgerock.openam.annotations.sm.Attribute;
@@ -49,9 +48,13 @@ import org.slf4j.LoggerFactory;
     configClass = DeviceAttributeStoreNode.Config.class)
 public class DeviceAttributeStoreNode extends SingleOutcomeNode implements DeviceContext {
 
-  public static final String DEVICE_ATTRIBUTES = "deviceAttributes";
+  public static final String DEVICE_ATTRIBUTES = DeviceRepository.DEVICE_ATTRIBUTES;
+  private static final String METRICS = "device.store.";
   private final Logger logger = LoggerFactory.getLogger(DeviceAttributeStoreNode.class);
   private final CoreWrapper coreWrapper;
+  private final DeviceRepository deviceRepository;
+  private final DeviceWriteBehindQueue writeBehindQueue;
+  private final DeviceMetrics metrics;
 
   private final Config config;
   private final Realm realm;
@@ -68,6 +71,67 @@ public class DeviceAttributeStoreNode extends SingleOutcomeNode implements Devic
           DeviceAttribute.LOCATION.name());
     }
 
+    @Attribute(order = 200)
+    default StoreMode storeMode() {
+      return StoreMode.REPLACE;
+    }
+
+    @Attribute(order = 300)
+    default boolean asynchronous() {
+      return false;
+    }
+
+    @Attribute(order = 500, validators = PositiveIntegerValidator.class)
+    default int flushInterval() {
+      return 1000;
+    }
+
+    @Attribute(order = 600)
+    default OverflowPolicy overflowPolicy() {
+      return OverflowPolicy.SYNCHRONOUS;
+    }
+
+    @Attribute(order = 700,
+        validators = {RequiredValueValidator.class, NonNegativeIntegerValidator.class})
+    default int maxDevices() {
+      return 0;
+    }
+
+    @Attribute(order = 800,
+        validators = {RequiredValueValidator.class, NonNegativeIntegerValidator.class})
+    default int locationHistorySize() {
+      return 0;
+    }
+
+  }
+
+  /**
+   * How the device record is written to the data store.
+   */
+  public enum StoreMode {
+    /**
+     * Rewrite the whole {@link #DEVICE_ATTRIBUTES} attribute.
+     */
+    REPLACE,
+    /**
+     * Add a new device as a single value. Updating or evicting a device still rewrites the whole
+     * attribute, so this only saves writes when new devices are enrolled.
+     */
+    DELTA
+  }
+
+  /**
+   * What happens to the device record when the write-behind queue is full.
+   */
+  public enum OverflowPolicy {
+    /**
+     * Persist the device record on the authentication thread.
+     */
+    SYNCHRONOUS,
+    /**
+     * Discard the device record.
+     */
+    DROP
   }
 
   /**
@@ -75,23 +139,35 @@ public class DeviceAttributeStoreNode extends SingleOutcomeNode implements Devic
    * other classes from the plugin.
    *
    * @param coreWrapper The CoreWrapper
+   * @param deviceRepository The repository of the stored devices
+   * @param writeBehindQueue The queue used when persisting asynchronously
+   * @param metrics The metrics registry
    * @param config The service config.
    * @param realm The realm the node is in.
    */
   @Inject
-  public DeviceAttributeStoreNode(CoreWrapper coreWrapper, @Assisted Config config,
+  public DeviceAttributeStoreNode(CoreWrapper coreWrapper, DeviceRepository deviceRepository,
+      DeviceWriteBehindQueue writeBehindQueue, DeviceMetrics metrics, @Assisted Config config,
       @Assisted Realm realm) {
     this.coreWrapper = coreWrapper;
+    this.deviceRepository = deviceRepository;
+    this.writeBehindQueue = writeBehindQueue;
+    this.metrics = metrics;
     this.config = config;
     this.realm = realm;
   }
 
   @Override
   public Action process(TreeContext context) throws NodeProcessException {
+    return metrics.process(METRICS, () -> evaluate(context));
+  }
+
+  private Action evaluate(TreeContext context) throws NodeProcessException {
     logger.debug("DeviceAttributeStoreNode started");
     try {
-      AMIdentity identity = getUserIdentity(context, coreWrapper, realm);
+      AMIdentity identity = getUserIdentity(context, coreWrapper, realm, metrics);
       save(context, identity);
+      forgetDevices(context, identity);
     } catch (IdRepoException | SSOException e) {
       throw new NodeProcessException(e);
     }
@@ -108,42 +184,49 @@ public class DeviceAttributeStoreNode extends SingleOutcomeNode implements Devic
   private void save(TreeContext context, AMIdentity identity)
       throws IdRepoException, SSOException, NodeProcessException {
 
-    final JsonValue[] existing = {JsonValueBuilder.jsonValue().build()};
     String identifier = getIdentifier(context);
+    JsonValue attributes = collect(context);
+
+    if (config.asynchronous()) {
+      if (writeBehindQueue.offer(config.flushInterval(), identity, config, identifier,
+          attributes)) {
+        metrics.increment(METRICS + "queued");
+        return;
+      }
+      metrics.increment(METRICS + "queueFull");
+      if (config.overflowPolicy() == OverflowPolicy.DROP) {
+        logger.warn("Write-behind queue is full, device {} is not persisted", identifier);
+        return;
+      }
+      logger.debug("Write-behind queue is full, persisting device {} synchronously", identifier);
+    }
 
-    //Remove and overwrite the existing one base on the "identifier"
-    Set<String> result = identity.getAttribute(DEVICE_ATTRIBUTES).stream()
-        .filter(s -> {
-          JsonValue o = JsonValueBuilder.toJsonValue(s);
-          if (identifier.equals(o.get(DeviceAttribute.IDENTIFIER.getAttributeName()).asString())) {
-            existing[0] = o;
-            return false;
-          }
-          return true;
-        }).collect(Collectors.toSet());
+    deviceRepository.save(identity, config, Collections.singletonMap(identifier, attributes));
 
-    existing[0].put(DeviceAttribute.IDENTIFIER.getAttributeName(), identifier);
+  }
 
+  /**
+   * Collect the configured device attributes from the {@link TreeContext#sharedState}. The
+   * fingerprint of the profile is stored along with it.
+   */
+  private JsonValue collect(TreeContext context) throws NodeProcessException {
+    JsonValue attributes = JsonValueBuilder.jsonValue().build();
     config.deviceAttributes().forEach(deviceAttribute -> {
       try {
         DeviceAttribute da = DeviceAttribute.valueOf(deviceAttribute);
         if (context.sharedState.isDefined(da.getVariableName())) {
-          existing[0].put(da.getAttributeName(),
+          attributes.put(da.getAttributeName(),
               context.sharedState.get(da.getVariableName()));
         }
       } catch (IllegalArgumentException e) {
         logger.warn(e.getMessage(), e);
       }
     });
-
-    result.add(existing[0].toString());
-
-    //Persist the attribute
-    Map<String, Set> attrMap = new HashMap<>();
-    attrMap.put(DEVICE_ATTRIBUTES, result);
-    identity.setAttributes(attrMap);
-    identity.store();
-
+    if (attributes.isDefined(DeviceAttribute.PROFILE.getAttributeName())) {
+      attributes.put(DeviceAttribute.PROFILE_FINGERPRINT.getAttributeName(),
+          getProfileFingerprint(context));
+    }
+    return attributes;
   }
 
 }
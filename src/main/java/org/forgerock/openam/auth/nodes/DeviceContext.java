@@ -3,10 +3,13 @@ package org.forgerock.openam.auth.nodes;
 import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
 import static org.forgerock.openam.auth.nodes.DeviceAttribute.LOCATION;
 import static org.forgerock.openam.auth.nodes.DeviceAttribute.PROFILE;
+import static org.forgerock.openam.auth.nodes.DeviceAttribute.PROFILE_FINGERPRINT;
 
 import com.iplanet.sso.SSOException;
 import com.sun.identity.idm.AMIdentity;
 import com.sun.identity.idm.IdRepoException;
+import java.util.LinkedHashMap;
+import javax.servlet.http.HttpServletRequest;
 import org.forgerock.json.JsonValue;
 import org.forgerock.openam.auth.node.api.NodeProcessException;
 import org.forgerock.openam.auth.node.api.TreeContext;
@@ -16,6 +19,21 @@ import org.forgerock.openam.utils.StringUtils;
 
 public interface DeviceContext {
 
+  /**
+   * Prefix of the request attributes memoizing the user identity and stored devices, so the nodes
+   * of a tree resolve them once per request.
+   */
+  String MEMO = DeviceContext.class.getName() + ".";
+
+  /**
+   * Copy the shared state to put the device variables in. Only the top level is copied, the values
+   * put by the other nodes are shared with the current state instead of being deep copied, so they
+   * must not be modified.
+   */
+  default JsonValue copySharedState(TreeContext context) {
+    return new JsonValue(new LinkedHashMap<>(context.sharedState.asMap()));
+  }
+
   default JsonValue getProfile(TreeContext context) throws NodeProcessException {
     if (context.sharedState.isDefined(PROFILE.getVariableName())) {
       return context.sharedState.get(PROFILE.getVariableName());
@@ -25,6 +43,15 @@ public interface DeviceContext {
     }
   }
 
+  /**
+   * Get the fingerprint of the collected device profile, as computed by the collector node or
+   * computed from the profile when absent.
+   */
+  default String getProfileFingerprint(TreeContext context) throws NodeProcessException {
+    String fingerprint = context.sharedState.get(PROFILE_FINGERPRINT.getVariableName()).asString();
+    return fingerprint != null ? fingerprint : JsonFingerprint.of(getProfile(context));
+  }
+
   default JsonValue getLocation(TreeContext context) throws NodeProcessException {
     if (context.sharedState.isDefined(LOCATION.getVariableName())) {
       return context.sharedState.get(LOCATION.getVariableName());
@@ -44,18 +71,67 @@ public interface DeviceContext {
     return identifier;
   }
 
-  default AMIdentity getUserIdentity(TreeContext context, CoreWrapper coreWrapper, Realm realm)
-      throws NodeProcessException, IdRepoException, SSOException {
+  /**
+   * Get the identity of the user, memoized for the current request. The lookup is timed as
+   * {@code device.identity.lookup}.
+   */
+  default AMIdentity getUserIdentity(TreeContext context, CoreWrapper coreWrapper, Realm realm,
+      DeviceMetrics metrics) throws NodeProcessException, IdRepoException, SSOException {
     String username = context.sharedState.get(USERNAME).asString();
     if (username == null || username.isEmpty()) {
       throw new NodeProcessException("Could not get a valid username from the context");
     }
 
-    AMIdentity userIdentity = coreWrapper.getIdentity(username, realm.asDN());
+    HttpServletRequest request = context.request.servletRequest;
+    String key = MEMO + "identity." + realm.asDN() + "/" + username;
+    Object memo = request == null ? null : request.getAttribute(key);
+    if (memo instanceof AMIdentity) {
+      return (AMIdentity) memo;
+    }
+
+    AMIdentity userIdentity;
+    DeviceMetrics.Timer timer = metrics.start("device.identity.lookup");
+    try {
+      userIdentity = coreWrapper.getIdentity(username, realm.asDN());
+    } finally {
+      timer.stop();
+    }
     if (userIdentity == null || !userIdentity.isExists() || !userIdentity.isActive()) {
       throw new NodeProcessException("User does not exist or inactive");
     }
+    if (request != null) {
+      request.setAttribute(key, userIdentity);
+    }
     return userIdentity;
   }
 
+  /**
+   * Get the stored devices of the user, memoized for the current request.
+   */
+  default StoredDevices getDevices(TreeContext context, DeviceRepository deviceRepository,
+      AMIdentity identity) throws IdRepoException, SSOException {
+    HttpServletRequest request = context.request.servletRequest;
+    String key = MEMO + "devices." + identity.getUniversalId();
+    Object memo = request == null ? null : request.getAttribute(key);
+    if (memo instanceof StoredDevices) {
+      return (StoredDevices) memo;
+    }
+
+    StoredDevices devices = deviceRepository.getDevices(identity);
+    if (request != null) {
+      request.setAttribute(key, devices);
+    }
+    return devices;
+  }
+
+  /**
+   * Discard the stored devices memoized for the current request, after they have been modified.
+   */
+  default void forgetDevices(TreeContext context, AMIdentity identity) {
+    HttpServletRequest request = context.request.servletRequest;
+    if (request != null) {
+      request.removeAttribute(MEMO + "devices." + identity.getUniversalId());
+    }
+  }
+
 }
@@ -19,12 +19,17 @@ package org.forgerock.openam.auth.nodes;
 
 import static org.forgerock.openam.auth.nodes.DeviceAttribute.LOCATION;
 import static org.forgerock.openam.auth.nodes.DeviceAttribute.PROFILE;
+import static org.forgerock.openam.auth.nodes.DeviceAttribute.PROFILE_FINGERPRINT;
 
 import com.google.inject.assistedinject.Assisted;
 import com.sun.identity.idm.AMIdentity;
+import com.sun.identity.sm.RequiredValueValidator;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
 import javax.inject.Inject;
 import org.forgerock.json.JsonValue;
+import org.forgerock.openam.annotations.sm.Attribute;
 import org.forgerock.openam.auth.node.api.AbstractDecisionNode;
 import org.forgerock.openam.auth.node.api.Action;
 import org.forgerock.openam.auth.node.api.Node;
@@ -32,7 +37,6 @@ import org.forgerock.openam.auth.node.api.NodeProcessException;
 import org.forgerock.openam.auth.node.api.TreeContext;
 import org.forgerock.openam.core.CoreWrapper;
 import org.forgerock.openam.core.realms.Realm;
-import org.forgerock.openam.utils.JsonValueBuilder;
 
 /**
  * A node that checks to see if zero-page login headers have specified username and whether that
@@ -43,66 +47,150 @@ import org.forgerock.openam.utils.JsonValueBuilder;
 public class DeviceContextMatchNode extends AbstractDecisionNode implements DeviceContext {
 
   public static final String DEVICE_ATTRIBUTES = "deviceAttributes";
+  public static final String PROFILE_SCORE = "forgeRock.mobile.profileScore";
+  private static final String METRICS = "device.contextMatch.";
   private final CoreWrapper coreWrapper;
+  private final DeviceRepository deviceRepository;
+  private final DeviceMetrics metrics;
   private final Config config;
   private final Realm realm;
+  private final ProfileMatcher matcher;
 
   /**
    * Configuration for the node.
    */
   public interface Config {
 
+    @Attribute(order = 100)
+    default MatchMode matchMode() {
+      return MatchMode.EXACT;
+    }
+
+    @Attribute(order = 200, validators = FieldWeightValidator.class)
+    default Map<String, String> fieldWeights() {
+      Map<String, String> weights = new HashMap<>();
+      weights.put("platform/platform", "3");
+      weights.put("platform/model", "3");
+      weights.put("platform/brand", "2");
+      weights.put("platform/device", "2");
+      weights.put("platform/version", "1");
+      weights.put("platform/locale", "1");
+      weights.put("platform/timeZone", "1");
+      weights.put("hardware/manufacturer", "2");
+      weights.put("hardware/cpu", "1");
+      weights.put("hardware/display", "1");
+      return weights;
+    }
+
+    @Attribute(order = 300, validators = {RequiredValueValidator.class,
+        PercentageValidator.class})
+    default int threshold() {
+      return 80;
+    }
+
+  }
+
+  /**
+   * How the collected profile is compared with the stored one.
+   */
+  public enum MatchMode {
+    /**
+     * The profiles must be equal.
+     */
+    EXACT,
+    /**
+     * The weighted percentage of matching profile fields must reach the threshold.
+     */
+    SCORE
   }
 
   /**
    * Create the node using Guice injection. Just-in-time bindings can be used to obtain instances of
    * other classes from the plugin.
    *
+   * @param deviceRepository The repository of the stored devices
+   * @param metrics The metrics registry
    * @param config The service config.
+   * @throws IllegalArgumentException When a field weight is invalid
    */
   @Inject
   public DeviceContextMatchNode(
-      CoreWrapper coreWrapper, @Assisted Config config,
-      @Assisted Realm realm) {
+      CoreWrapper coreWrapper, DeviceRepository deviceRepository, DeviceMetrics metrics,
+      @Assisted Config config, @Assisted Realm realm) {
     this.coreWrapper = coreWrapper;
+    this.deviceRepository = deviceRepository;
+    this.metrics = metrics;
     this.config = config;
     this.realm = realm;
+    this.matcher = config.matchMode() == MatchMode.SCORE
+        ? new ProfileMatcher(config.fieldWeights()) : null;
   }
 
   @Override
   public Action process(TreeContext context) throws NodeProcessException {
+    return metrics.process(METRICS, () -> evaluate(context));
+  }
+
+  private Action evaluate(TreeContext context) throws NodeProcessException {
 
     JsonValue profile = getProfile(context);
     String identifier = getIdentifier(context);
 
     try {
-      AMIdentity identity = getUserIdentity(context, coreWrapper, realm);
-      Optional<String> result = identity.getAttribute(DEVICE_ATTRIBUTES).stream()
-          //Find matching device with same identifier and has profile
-          .filter(s -> {
-            JsonValue o = JsonValueBuilder.toJsonValue(s);
-            if (identifier
-                .equals(o.get(DeviceAttribute.IDENTIFIER.getAttributeName()).asString())) {
-              return o.isDefined(PROFILE.getAttributeName());
-            }
-            return false;
-          })
-          .findFirst();
-
-      if (result.isPresent()) {
-        JsonValue deviceAttribute = JsonValueBuilder.toJsonValue(result.get());
-        JsonValue storeProfile = deviceAttribute.get(PROFILE.getAttributeName());
-        if (storeProfile.isEqualTo(profile)) {
-          return goTo(true).build(); //When context match
+      AMIdentity identity = getUserIdentity(context, coreWrapper, realm, metrics);
+      //Find matching device with same identifier and has profile
+      Optional<JsonValue> result = getDevices(context, deviceRepository, identity)
+          .get(identifier, PROFILE.getAttributeName(), PROFILE_FINGERPRINT.getAttributeName())
+          .filter(o -> o.isDefined(PROFILE.getAttributeName()));
+
+      if (!result.isPresent()) {
+        metrics.increment(METRICS + "unknownDevice");
+      }
+      if (config.matchMode() == MatchMode.SCORE) {
+        double score;
+        DeviceMetrics.Timer timer = metrics.start(METRICS + "compare");
+        try {
+          score = result.map(device -> matcher.score(profile,
+              device.get(PROFILE.getAttributeName()))).orElse(0d);
+        } finally {
+          timer.stop();
         }
+        JsonValue newSharedState = copySharedState(context);
+        newSharedState.put(PROFILE_SCORE, score);
+        return goTo(score >= config.threshold()).replaceSharedState(newSharedState).build();
+      }
+
+      if (result.isPresent() && matches(context, profile, result.get())) {
+        return goTo(true).build(); //When context match
       }
 
       return goTo(false).build(); //When context does not exist or not match
 
+    } catch (NodeProcessException e) {
+      throw e;
     } catch (Exception e) {
       throw new NodeProcessException(e);
     }
   }
 
+  /**
+   * Compare the fingerprints of the collected and stored profiles, devices stored before the
+   * fingerprint was persisted fall back to a deep compare of the profiles.
+   */
+  private boolean matches(TreeContext context, JsonValue profile, JsonValue device)
+      throws NodeProcessException {
+    DeviceMetrics.Timer timer = metrics.start(METRICS + "compare");
+    try {
+      String fingerprint = device.get(PROFILE_FINGERPRINT.getAttributeName()).asString();
+      if (fingerprint != null) {
+        return fingerprint.equals(getProfileFingerprint(context));
+      }
+      metrics.increment(METRICS + "deepCompare");
+      return device.get(PROFILE.getAttributeName()).isEqualTo(profile);
+    } finally {
+      timer.stop();
+    }
+  }
+
 
 }
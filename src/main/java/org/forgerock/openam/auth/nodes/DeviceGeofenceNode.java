@@ -0,0 +1,103 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+
+package org.forgerock.openam.auth.nodes;
+
+import static org.forgerock.openam.auth.nodes.DeviceLocationRangeNode.LATITUDE;
+import static org.forgerock.openam.auth.nodes.DeviceLocationRangeNode.LONGITUDE;
+
+import com.google.inject.assistedinject.Assisted;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import javax.inject.Inject;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.annotations.sm.Attribute;
+import org.forgerock.openam.auth.node.api.AbstractDecisionNode;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.Node;
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+import org.forgerock.openam.auth.node.api.TreeContext;
+
+/**
+ * A node that checks whether the collected device location is inside one of the configured
+ * polygons. The name of the matching polygon is put in the shared state.
+ */
+@Node.Metadata(outcomeProvider = AbstractDecisionNode.OutcomeProvider.class,
+    configClass = DeviceGeofenceNode.Config.class)
+public class DeviceGeofenceNode extends AbstractDecisionNode implements DeviceContext {
+
+  public static final String GEOFENCE = "forgeRock.mobile.geofence";
+  private static final String METRICS = "device.geofence.";
+  private final DeviceMetrics metrics;
+  private final Config config;
+
+  /**
+   * Configuration for the node.
+   */
+  public interface Config {
+
+    @Attribute(order = 100, validators = PolygonValidator.class)
+    default Map<String, String> polygons() {
+      return Collections.emptyMap();
+    }
+
+  }
+
+  /**
+   * Create the node using Guice injection. Just-in-time bindings can be used to obtain instances of
+   * other classes from the plugin.
+   *
+   * @param metrics The metrics registry
+   * @param config The service config.
+   */
+  @Inject
+  public DeviceGeofenceNode(DeviceMetrics metrics, @Assisted Config config) {
+    this.metrics = metrics;
+    this.config = config;
+  }
+
+  @Override
+  public Action process(TreeContext context) throws NodeProcessException {
+    return metrics.process(METRICS, () -> evaluate(context));
+  }
+
+  private Action evaluate(TreeContext context) throws NodeProcessException {
+
+    JsonValue location = getLocation(context);
+    if (!location.get(LATITUDE).isNumber() || !location.get(LONGITUDE).isNumber()) {
+      return goTo(false).build(); //When location is not available
+    }
+
+    Optional<String> polygon;
+    try {
+      polygon = PolygonIndex.compile(config.polygons())
+          .find(location.get(LATITUDE).asDouble(), location.get(LONGITUDE).asDouble());
+    } catch (RuntimeException e) {
+      throw new NodeProcessException(e);
+    }
+
+    if (polygon.isPresent()) {
+      JsonValue newSharedState = copySharedState(context);
+      newSharedState.put(GEOFENCE, polygon.get());
+      return goTo(true).replaceSharedState(newSharedState).build();
+    }
+    return goTo(false).build();
+  }
+
+}
@@ -36,6 +36,10 @@ import org.forgerock.openam.auth.node.api.TreeContext;
     configClass = DeviceJailBreakVerificationNode.Config.class)
 public class DeviceJailBreakVerificationNode extends AbstractDecisionNode implements DeviceContext {
 
+  private static final String PLATFORM = "platform";
+  private static final String JAIL_BREAK_SCORE = "jailBreakScore";
+  private static final String METRICS = "device.jailBreak.";
+  private final DeviceMetrics metrics;
   private final Config config;
 
   /**
@@ -43,7 +47,7 @@ public class DeviceJailBreakVerificationNode extends AbstractDecisionNode implem
    */
   public interface Config {
 
-    @Attribute(order = 100, validators = RequiredValueValidator.class)
+    @Attribute(order = 100, validators = {RequiredValueValidator.class, DecimalValidator.class})
     default String score() {
       return "0";
     }
@@ -53,22 +57,31 @@ public class DeviceJailBreakVerificationNode extends AbstractDecisionNode implem
    * Create the node using Guice injection. Just-in-time bindings can be used to obtain instances of
    * other classes from the plugin.
    *
+   * @param metrics The metrics registry
    * @param config The service config.
    */
   @Inject
-  public DeviceJailBreakVerificationNode(@Assisted Config config) {
+  public DeviceJailBreakVerificationNode(DeviceMetrics metrics, @Assisted Config config) {
+    this.metrics = metrics;
     this.config = config;
   }
 
   @Override
   public Action process(TreeContext context) throws NodeProcessException {
+    return metrics.process(METRICS, () -> evaluate(context));
+  }
+
+  private Action evaluate(TreeContext context) throws NodeProcessException {
 
-    JsonValue profile = getProfile(context);
-    if (profile.get("platform").get("jailBreakScore").asDouble() > Double
-        .parseDouble(config.score())) {
-      return goTo(false).build();
+    double limit;
+    try {
+      limit = Double.parseDouble(config.score().trim());
+    } catch (NumberFormatException e) {
+      throw new NodeProcessException("Invalid jailbreak score limit " + config.score(), e);
     }
-    return goTo(true).build();
+    //A device not reporting its score is not trusted
+    JsonValue score = getProfile(context).get(PLATFORM).get(JAIL_BREAK_SCORE);
+    return goTo(score.isNumber() && score.asDouble() <= limit).build();
 
   }
 }
@@ -17,8 +17,6 @@
 
 package org.forgerock.openam.auth.nodes;
 
-import static org.forgerock.openam.auth.nodes.DeviceAttribute.LOCATION;
-
 import com.google.inject.assistedinject.Assisted;
 import com.sun.identity.idm.AMIdentity;
 import com.sun.identity.shared.validation.PositiveIntegerValidator;
@@ -34,7 +32,6 @@ import org.forgerock.openam.auth.node.api.NodeProcessException;
 import org.forgerock.openam.auth.node.api.TreeContext;
 import org.forgerock.openam.core.CoreWrapper;
 import org.forgerock.openam.core.realms.Realm;
-import org.forgerock.openam.utils.JsonValueBuilder;
 
 /**
  * A node that checks to see if zero-page login headers have specified username and whether that
@@ -47,7 +44,10 @@ public class DeviceLocationRangeNode extends AbstractDecisionNode implements Dev
   public static final String DEVICE_ATTRIBUTES = "deviceAttributes";
   public static final String LATITUDE = "latitude";
   public static final String LONGITUDE = "longitude";
+  private static final String METRICS = "device.locationRange.";
   private final CoreWrapper coreWrapper;
+  private final DeviceRepository deviceRepository;
+  private final DeviceMetrics metrics;
   private final Config config;
   private final Realm realm;
 
@@ -62,52 +62,58 @@ public class DeviceLocationRangeNode extends AbstractDecisionNode implements Dev
       return "100";
     }
 
+    @Attribute(order = 200)
+    default boolean locationHistory() {
+      return false;
+    }
+
   }
 
   /**
    * Create the node using Guice injection. Just-in-time bindings can be used to obtain instances of
    * other classes from the plugin.
    *
+   * @param deviceRepository The repository of the stored devices
+   * @param metrics The metrics registry
    * @param config The service config.
    */
   @Inject
   public DeviceLocationRangeNode(
-      CoreWrapper coreWrapper, @Assisted Config config,
-      @Assisted Realm realm) {
+      CoreWrapper coreWrapper, DeviceRepository deviceRepository, DeviceMetrics metrics,
+      @Assisted Config config, @Assisted Realm realm) {
     this.coreWrapper = coreWrapper;
+    this.deviceRepository = deviceRepository;
+    this.metrics = metrics;
     this.config = config;
     this.realm = realm;
   }
 
   @Override
   public Action process(TreeContext context) throws NodeProcessException {
+    return metrics.process(METRICS, () -> evaluate(context));
+  }
+
+  private Action evaluate(TreeContext context) throws NodeProcessException {
 
     JsonValue location = getLocation(context);
     String identifier = getIdentifier(context);
 
     try {
-      AMIdentity identity = getUserIdentity(context, coreWrapper, realm);
-      Optional<String> result = identity.getAttribute(DEVICE_ATTRIBUTES).stream()
-          //Find matching device with same identifier and has location
-          .filter(s -> {
-            JsonValue o = JsonValueBuilder.toJsonValue(s);
-            if (identifier
-                .equals(o.get(DeviceAttribute.IDENTIFIER.getAttributeName()).asString())) {
-              JsonValue loc = o.get(LOCATION.getAttributeName());
-              return loc.isDefined(LONGITUDE) && loc.isDefined(LATITUDE);
-            }
-            return false;
-          })
-          .findFirst();
-
-      if (result.isPresent()) {
-        JsonValue deviceAttribute = JsonValueBuilder.toJsonValue(result.get());
-        JsonValue storedLocation = deviceAttribute.get(LOCATION.getAttributeName());
-        if (distance(location.get(LATITUDE).asDouble(),
-            location.get(LONGITUDE).asDouble(),
-            storedLocation.get(LATITUDE).asDouble(),
-            storedLocation.get(LONGITUDE).asDouble())
-            < Double.parseDouble(config.distance())) {
+      AMIdentity identity = getUserIdentity(context, coreWrapper, realm, metrics);
+      StoredDevices devices = getDevices(context, deviceRepository, identity);
+      GeoPoint current = GeoPoint.of(location);
+      double distance = Double.parseDouble(config.distance());
+
+      if (config.locationHistory()) {
+        //Any known location of the device with same identifier
+        Optional<GeoIndex> known = devices.getLocationIndex(identifier);
+        if (known.isPresent() && known.get().anyWithin(current, distance)) {
+          return goTo(true).build();
+        }
+      } else {
+        //Find matching device with same identifier and has location
+        Optional<GeoPoint> result = devices.getLocation(identifier);
+        if (result.isPresent() && result.get().isWithin(current, distance)) {
           return goTo(true).build();
         }
       }
@@ -121,20 +127,4 @@ public class DeviceLocationRangeNode extends AbstractDecisionNode implements Dev
     }
   }
 
-  private double distance(double fromLat, double fromLon, double toLat, double toLon) {
-    if ((fromLat == toLat) && (fromLon == toLon)) {
-      return 0;
-    } else {
-      double diffLon = fromLon - toLon;
-      double dist = Math.sin(Math.toRadians(fromLat)) * Math.sin(Math.toRadians(toLat))
-          + Math.cos(Math.toRadians(fromLat)) * Math.cos(Math.toRadians(toLat)) * Math
-          .cos(Math.toRadians(diffLon));
-      dist = Math.acos(dist);
-      dist = Math.toDegrees(dist);
-      dist = dist * 60 * 1.1515;
-      return dist * 1.609344;
-    }
-  }
-
-
 }
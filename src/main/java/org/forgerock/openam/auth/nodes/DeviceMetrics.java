@@ -0,0 +1,119 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import com.google.inject.ImplementedBy;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+
+/**
+ * Registry of the metrics of the device nodes: timers, histograms of sizes and counters of
+ * events, named {@code device.<component>.<metric>}. The {@link InMemoryDeviceMetrics} default
+ * can be replaced by binding another implementation, e.g. forwarding to the metrics system of the
+ * deployment.
+ *
+ * <p>
+ * Implementations are called on the authentication threads and must be thread safe and cheap.
+ * </p>
+ */
+@ImplementedBy(InMemoryDeviceMetrics.class)
+public interface DeviceMetrics {
+
+  /**
+   * Record the duration of an operation.
+   *
+   * @param name The timer name
+   * @param nanos The duration in nanoseconds
+   */
+  void time(String name, long nanos);
+
+  /**
+   * Record a value in a histogram, e.g. a size or a count.
+   *
+   * @param name The histogram name
+   * @param value The value
+   */
+  void record(String name, long value);
+
+  /**
+   * Count an event.
+   *
+   * @param name The counter name
+   */
+  void increment(String name);
+
+  /**
+   * Start timing an operation, recorded when the returned timer is stopped.
+   *
+   * @param name The timer name
+   * @return The running timer
+   */
+  default Timer start(String name) {
+    long start = System.nanoTime();
+    return () -> time(name, System.nanoTime() - start);
+  }
+
+  /**
+   * Time a node and count its outcomes as {@code <prefix>outcome.<outcome>}, a pending callback
+   * counting as the {@code callback} outcome and a failure as {@code <prefix>error}.
+   *
+   * @param prefix The metric prefix of the node
+   * @param process The processing of the node
+   * @return The action returned by the node
+   * @throws NodeProcessException When the node failed
+   */
+  default Action process(String prefix, Process process) throws NodeProcessException {
+    Timer timer = start(prefix + "process");
+    try {
+      Action action = process.get();
+      increment(prefix + "outcome." + (action.outcome != null ? action.outcome : "callback"));
+      return action;
+    } catch (NodeProcessException | RuntimeException e) {
+      increment(prefix + "error");
+      throw e;
+    } finally {
+      timer.stop();
+    }
+  }
+
+  /**
+   * The processing of a node.
+   */
+  @FunctionalInterface
+  interface Process {
+
+    /**
+     * @return The action of the node
+     * @throws NodeProcessException When the node failed
+     */
+    Action get() throws NodeProcessException;
+  }
+
+  /**
+   * A running timer.
+   */
+  @FunctionalInterface
+  interface Timer {
+
+    /**
+     * Record the time elapsed since the timer started.
+     */
+    void stop();
+  }
+
+}
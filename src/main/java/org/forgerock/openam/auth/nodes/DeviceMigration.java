@@ -0,0 +1,437 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+
+package org.forgerock.openam.auth.nodes;
+
+import static org.forgerock.openam.auth.nodes.DeviceAttribute.PROFILE;
+import static org.forgerock.openam.auth.nodes.DeviceAttribute.PROFILE_FINGERPRINT;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.iplanet.sso.SSOException;
+import com.sun.identity.idm.AMIdentity;
+import com.sun.identity.idm.AMIdentityRepository;
+import com.sun.identity.idm.IdRepoException;
+import com.sun.identity.idm.IdSearchControl;
+import com.sun.identity.idm.IdType;
+import com.sun.identity.security.AdminTokenAction;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.AccessController;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import org.forgerock.json.JsonValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Background job rewriting the stored device records of all the users, e.g. to add an attribute
+ * introduced after they were written. The users of each realm are paged through by prefix of their
+ * name, a page being split by the next character when it holds too many users, and the users of a
+ * page are migrated in parallel on a bounded number of threads at a limited rate.
+ *
+ * <p>
+ * Each completed page is recorded in a checkpoint file, so a migration stopped by a shutdown
+ * resumes where it was on the next startup. Migrations must be idempotent, since the users of an
+ * interrupted page are migrated again. Users whose name starts with a character outside of
+ * {@link #ALPHABET}, e.g. an uppercase letter on a case sensitive data store, are migrated by a
+ * last pass over all the users of the realm. Users which could not be migrated are logged and
+ * counted, and their page is not recorded, so they are migrated again on the next startup.
+ * </p>
+ *
+ * <p>
+ * Pages are split up to a prefix of {@value #MAX_PREFIX} characters. Users sharing a longer prefix
+ * are paged through by searching them again with a growing limit, which requires the search limit
+ * of the data store to allow as many users.
+ * </p>
+ */
+final class DeviceMigration {
+
+  static final String THREADS = "org.forgerock.openam.auth.nodes.device.migration.threads";
+  static final String RATE = "org.forgerock.openam.auth.nodes.device.migration.rate";
+  static final String PAGE_SIZE = "org.forgerock.openam.auth.nodes.device.migration.pageSize";
+  static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz0123456789-_.@";
+  static final String COMPLETE = "complete";
+  private static final int MAX_PREFIX = 8;
+
+  /**
+   * Add the profile fingerprint to the device records stored before it was introduced.
+   */
+  static final Predicate<JsonValue> PROFILE_FINGERPRINT_MIGRATION = record -> {
+    if (!record.isDefined(PROFILE.getAttributeName())
+        || record.isDefined(PROFILE_FINGERPRINT.getAttributeName())) {
+      return false;
+    }
+    record.put(PROFILE_FINGERPRINT.getAttributeName(),
+        JsonFingerprint.of(record.get(PROFILE.getAttributeName())));
+    return true;
+  };
+
+  private final Logger logger = LoggerFactory.getLogger(DeviceMigration.class);
+  private final Path checkpoint;
+  private final String header;
+  private final UserSearch search;
+  private final DeviceRepository deviceRepository;
+  private final Predicate<JsonValue> migration;
+  private final int threads;
+  private final int pageSize;
+  private final RateLimiter rateLimiter;
+  private final AtomicLong pages = new AtomicLong();
+  private final AtomicLong scanned = new AtomicLong();
+  private final AtomicLong migrated = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private volatile Thread worker;
+
+  /**
+   * Search of the users of a realm.
+   */
+  interface UserSearch {
+
+    /**
+     * Search the users of a realm.
+     *
+     * @param realm The realm
+     * @param pattern The pattern of the user names, {@code *} matching any characters
+     * @param maxResults The maximum number of users returned
+     * @return The users found
+     */
+    Collection<AMIdentity> search(String realm, String pattern, int maxResults)
+        throws IdRepoException, SSOException;
+  }
+
+  /**
+   * Create a migration.
+   *
+   * @param name The name of the migration
+   * @param checkpoint The checkpoint file
+   * @param search The search of the users
+   * @param deviceRepository The repository of the stored devices
+   * @param migration Updates a device record in place, returning whether it changed it
+   * @param threads The number of users migrated in parallel
+   * @param rate The maximum number of users migrated per second
+   * @param pageSize The maximum number of users of a page
+   */
+  DeviceMigration(String name, Path checkpoint, UserSearch search,
+      DeviceRepository deviceRepository, Predicate<JsonValue> migration, int threads, double rate,
+      int pageSize) {
+    this.checkpoint = checkpoint;
+    this.header = header(name);
+    this.search = search;
+    this.deviceRepository = deviceRepository;
+    this.migration = migration;
+    this.threads = Math.max(1, threads);
+    this.pageSize = Math.max(1, pageSize);
+    this.rateLimiter = RateLimiter.create(rate);
+  }
+
+  private static String header(String name) {
+    return "# Device records migration " + name + ", v1";
+  }
+
+  /**
+   * Request a migration, to be run by the next {@link #start(Collection)}. A migration already
+   * requested or completed is left as it is.
+   *
+   * @param name The name of the migration
+   * @param checkpoint The checkpoint file
+   * @throws IOException When the checkpoint file cannot be written
+   */
+  static void schedule(String name, Path checkpoint) throws IOException {
+    if (!Files.exists(checkpoint)) {
+      StateFile.write(checkpoint, header(name), Collections.emptyList());
+    }
+  }
+
+  /**
+   * @return Whether the migration has been requested and is not complete
+   * @throws IOException When the checkpoint file cannot be read
+   */
+  boolean isPending() throws IOException {
+    return Files.exists(checkpoint) && !StateFile.read(checkpoint, header).contains(COMPLETE);
+  }
+
+  /**
+   * Run the migration on a background thread.
+   *
+   * @param realms The realms of the users to migrate
+   */
+  synchronized void start(Collection<String> realms) {
+    if (worker != null) {
+      return;
+    }
+    worker = new Thread(() -> {
+      try {
+        run(realms);
+      } catch (InterruptedException e) {
+        logger.info("Device records migration stopped, {}", this);
+      } catch (IOException | IdRepoException | SSOException | RuntimeException e) {
+        logger.error("Device records migration failed, it resumes on the next startup", e);
+      }
+    }, "DeviceAttributeMigration");
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  /**
+   * Stop the migration, it resumes from its checkpoint when started again.
+   */
+  synchronized void stop() {
+    if (worker != null) {
+      worker.interrupt();
+    }
+  }
+
+  /**
+   * Run the migration on the current thread.
+   *
+   * @param realms The realms of the users to migrate
+   * @throws InterruptedException When stopped
+   */
+  void run(Collection<String> realms)
+      throws IOException, IdRepoException, SSOException, InterruptedException {
+    Set<String> done = new HashSet<>(StateFile.read(checkpoint, header));
+    if (done.contains(COMPLETE)) {
+      return;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+      Thread thread = new Thread(runnable, "DeviceAttributeMigrationWorker");
+      thread.setDaemon(true);
+      return thread;
+    });
+    boolean complete = true;
+    try {
+      for (String realm : realms) {
+        for (char c : ALPHABET.toCharArray()) {
+          complete &= migratePage(realm, String.valueOf(c), done, executor);
+        }
+        complete &= migrateOthers(realm, done, executor);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    if (!complete) {
+      logger.warn("Device records migration incomplete, the pages of the users which could not be "
+          + "migrated are retried on the next startup, {}", this);
+      return;
+    }
+    StateFile.append(checkpoint, COMPLETE);
+    logger.info("Device records migration complete, {}", this);
+  }
+
+  /**
+   * Migrate the users whose name starts with the prefix, and record the page when they all have
+   * been migrated.
+   *
+   * @return Whether all the users of the page have been migrated
+   */
+  private boolean migratePage(String realm, String prefix, Set<String> done,
+      ExecutorService executor)
+      throws IOException, IdRepoException, SSOException, InterruptedException {
+    String entry = realm + "\t" + prefix;
+    if (done.contains(entry)) {
+      return true;
+    }
+    if (Thread.interrupted()) {
+      throw new InterruptedException();
+    }
+    boolean succeeded;
+    Collection<AMIdentity> users = search.search(realm, prefix + "*", pageSize);
+    if (users.size() < pageSize) {
+      succeeded = migrate(users, executor);
+      pages.incrementAndGet();
+    } else if (prefix.length() < MAX_PREFIX) {
+      //Too many users, split the page: the user named by the prefix, then the next characters
+      succeeded = migrate(search.search(realm, prefix, pageSize), executor);
+      for (char c : ALPHABET.toCharArray()) {
+        succeeded &= migratePage(realm, prefix + c, done, executor);
+      }
+    } else {
+      succeeded = migrateAll(realm, prefix, users, user -> true, executor);
+    }
+    return succeeded && done(entry, done);
+  }
+
+  /**
+   * Migrate the users whose name does not start with a character of {@link #ALPHABET}, paging
+   * through all the users of the realm, and record the pass when they all have been migrated.
+   *
+   * @return Whether all the users have been migrated
+   */
+  private boolean migrateOthers(String realm, Set<String> done, ExecutorService executor)
+      throws IOException, IdRepoException, SSOException, InterruptedException {
+    String entry = realm + "\t*";
+    if (done.contains(entry)) {
+      return true;
+    }
+    if (Thread.interrupted()) {
+      throw new InterruptedException();
+    }
+    return migrateAll(realm, "", search.search(realm, "*", pageSize),
+        user -> !isCovered(user.getName()), executor) && done(entry, done);
+  }
+
+  /**
+   * @return Whether the user is migrated by the pages of {@link #ALPHABET} prefixes
+   */
+  static boolean isCovered(String name) {
+    return name != null && !name.isEmpty() && ALPHABET.indexOf(name.charAt(0)) >= 0;
+  }
+
+  private boolean done(String entry, Set<String> done) throws IOException {
+    StateFile.append(checkpoint, entry);
+    done.add(entry);
+    logger.debug("Device records migration of {} done, {}", entry.replace('\t', ' '), this);
+    return true;
+  }
+
+  /**
+   * Page through the users sharing a prefix too long to be split, searching them again with a
+   * doubled limit until fewer users than the limit are found.
+   *
+   * @param users The users found with the page size limit
+   * @param filter The users to migrate among those found
+   * @return Whether all the users have been migrated
+   */
+  private boolean migrateAll(String realm, String prefix, Collection<AMIdentity> users,
+      Predicate<AMIdentity> filter, ExecutorService executor)
+      throws IdRepoException, SSOException, InterruptedException {
+    Set<String> seen = new HashSet<>();
+    boolean succeeded = true;
+    int limit = pageSize;
+    Collection<AMIdentity> found = users;
+    while (true) {
+      List<AMIdentity> page = new ArrayList<>();
+      boolean fresh = false;
+      for (AMIdentity user : found) {
+        if (seen.add(user.getUniversalId())) {
+          fresh = true;
+          if (filter.test(user)) {
+            page.add(user);
+          }
+        }
+      }
+      succeeded &= migrate(page, executor);
+      pages.incrementAndGet();
+      if (found.size() < limit) {
+        return succeeded;
+      }
+      if (!fresh || limit > Integer.MAX_VALUE / 2) {
+        logger.warn("Only {} users of {} named {}* could be searched, the others are not migrated",
+            found.size(), realm, prefix);
+        return false;
+      }
+      limit *= 2;
+      found = search.search(realm, prefix + "*", limit);
+    }
+  }
+
+  /**
+   * Migrate the users in parallel.
+   *
+   * @return Whether all the users have been migrated
+   */
+  private boolean migrate(Collection<AMIdentity> users, ExecutorService executor)
+      throws InterruptedException {
+    List<Future<Boolean>> results = new ArrayList<>(users.size());
+    for (AMIdentity user : users) {
+      results.add(executor.submit(() -> {
+        rateLimiter.acquire();
+        scanned.incrementAndGet();
+        try {
+          if (deviceRepository.migrate(user, migration)) {
+            migrated.incrementAndGet();
+          }
+          return true;
+        } catch (IdRepoException | SSOException | RuntimeException e) {
+          failed.incrementAndGet();
+          logger.warn("Failed to migrate the device records of {}", user.getUniversalId(), e);
+          return false;
+        }
+      }));
+    }
+    boolean succeeded = true;
+    for (Future<Boolean> result : results) {
+      try {
+        succeeded &= result.get();
+      } catch (ExecutionException e) {
+        throw new IllegalStateException(e.getCause());
+      }
+    }
+    return succeeded;
+  }
+
+  /**
+   * @return The number of pages of users migrated
+   */
+  long getPages() {
+    return pages.get();
+  }
+
+  /**
+   * @return The number of users whose records have been read
+   */
+  long getScanned() {
+    return scanned.get();
+  }
+
+  /**
+   * @return The number of users whose records have been rewritten
+   */
+  long getMigrated() {
+    return migrated.get();
+  }
+
+  /**
+   * @return The number of users whose records could not be migrated
+   */
+  long getFailed() {
+    return failed.get();
+  }
+
+  @Override
+  public String toString() {
+    return "pages: " + pages + ", users: " + scanned + ", migrated: " + migrated + ", failed: "
+        + failed;
+  }
+
+  /**
+   * Search the users with the identity repository of the realm, with an admin token.
+   */
+  static Collection<AMIdentity> searchUsers(String realm, String pattern, int maxResults)
+      throws IdRepoException, SSOException {
+    IdSearchControl control = new IdSearchControl();
+    control.setMaxResults(maxResults);
+    control.setAllReturnAttributes(false);
+    AMIdentityRepository repository = new AMIdentityRepository(
+        AccessController.doPrivileged(AdminTokenAction.getInstance()), realm);
+    Set<AMIdentity> users = repository.searchIdentities(IdType.USER, pattern, control)
+        .getSearchResults();
+    return users == null ? Collections.emptySet() : users;
+  }
+
+}
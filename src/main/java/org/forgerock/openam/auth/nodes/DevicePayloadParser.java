@@ -0,0 +1,222 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+
+package org.forgerock.openam.auth.nodes;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Bounded streaming parser of the device attributes posted by the client. The payload is rejected
+ * before parsing when it is too large, and while parsing as soon as it nests too deep or holds too
+ * many fields. Only the requested top level attributes are materialized, the others are skipped.
+ * The size limit applies to both the compressed and the inflated payload.
+ *
+ * <p>
+ * A limit of 0 disables the check.
+ * </p>
+ */
+final class DevicePayloadParser {
+
+  /**
+   * Compressed payload encoding, {@code deflate:} followed by the base64 of the zlib deflated
+   * json.
+   */
+  static final String DEFLATE = "deflate";
+  private static final JsonFactory FACTORY = new JsonFactory();
+
+  private final int maxSize;
+  private final int maxDepth;
+  private final int maxFields;
+
+  /**
+   * Create a parser.
+   *
+   * @param maxSize The maximum number of characters of the payload
+   * @param maxDepth The maximum nesting depth of objects and arrays, the payload itself being 1
+   * @param maxFields The maximum number of object fields and array elements read
+   */
+  DevicePayloadParser(int maxSize, int maxDepth, int maxFields) {
+    this.maxSize = maxSize;
+    this.maxDepth = maxDepth;
+    this.maxFields = maxFields;
+  }
+
+  /**
+   * Parse the top level attributes of a payload, either raw json or json compressed with the
+   * {@link #DEFLATE} encoding.
+   *
+   * @param value The payload
+   * @param attributes The top level attributes to keep
+   * @param compressed Whether the compressed encoding is accepted
+   * @return The attributes found
+   * @throws IllegalArgumentException When the payload is malformed or exceeds a limit
+   */
+  Map<String, Object> parse(String value, Collection<String> attributes, boolean compressed) {
+    if (maxSize > 0 && value.length() > maxSize) {
+      throw new IllegalArgumentException("Device attributes payload exceeds " + maxSize
+          + " characters");
+    }
+    try {
+      if (compressed && value.startsWith(DEFLATE + ":")) {
+        byte[] json = inflate(value.substring(DEFLATE.length() + 1));
+        return parse(FACTORY.createParser(json), attributes);
+      }
+      return parse(FACTORY.createParser(value), attributes);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Malformed device attributes payload", e);
+    }
+  }
+
+  /**
+   * Inflate a compressed payload, without producing more than the maximum size.
+   */
+  private byte[] inflate(String value) {
+    byte[] compressed;
+    try {
+      compressed = Base64.getDecoder().decode(value);
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Malformed device attributes payload encoding", e);
+    }
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed);
+      ByteArrayOutputStream json = new ByteArrayOutputStream(compressed.length * 4);
+      byte[] buffer = new byte[4096];
+      while (!inflater.finished()) {
+        int length = inflater.inflate(buffer);
+        if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IllegalArgumentException("Truncated device attributes payload");
+        }
+        json.write(buffer, 0, length);
+        if (maxSize > 0 && json.size() > maxSize) {
+          throw new IllegalArgumentException("Device attributes payload exceeds " + maxSize
+              + " characters");
+        }
+      }
+      return json.toByteArray();
+    } catch (DataFormatException e) {
+      throw new IllegalArgumentException("Malformed device attributes payload encoding", e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  private Map<String, Object> parse(JsonParser source, Collection<String> attributes)
+      throws IOException {
+    Map<String, Object> result = new LinkedHashMap<>();
+    try (JsonParser parser = source) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IllegalArgumentException("Device attributes payload is not a json object");
+      }
+      int[] fields = {0};
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String name = parser.getCurrentName();
+        count(fields);
+        parser.nextToken();
+        if (attributes.contains(name)) {
+          result.put(name, read(parser, 2, fields));
+        } else {
+          skip(parser, 2, fields);
+        }
+      }
+      if (parser.getCurrentToken() != JsonToken.END_OBJECT || parser.nextToken() != null) {
+        throw new IllegalArgumentException("Malformed device attributes payload");
+      }
+    }
+    return result;
+  }
+
+  private Object read(JsonParser parser, int depth, int[] fields) throws IOException {
+    switch (parser.getCurrentToken()) {
+      case START_OBJECT:
+        checkDepth(depth);
+        Map<String, Object> object = new LinkedHashMap<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          String name = parser.getCurrentName();
+          count(fields);
+          parser.nextToken();
+          object.put(name, read(parser, depth + 1, fields));
+        }
+        return object;
+      case START_ARRAY:
+        checkDepth(depth);
+        List<Object> array = new ArrayList<>();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+          count(fields);
+          array.add(read(parser, depth + 1, fields));
+        }
+        return array;
+      case VALUE_STRING:
+        return parser.getText();
+      case VALUE_NUMBER_INT:
+      case VALUE_NUMBER_FLOAT:
+        return parser.getNumberValue();
+      case VALUE_TRUE:
+        return Boolean.TRUE;
+      case VALUE_FALSE:
+        return Boolean.FALSE;
+      case VALUE_NULL:
+        return null;
+      default:
+        throw new IllegalArgumentException("Malformed device attributes payload");
+    }
+  }
+
+  private void skip(JsonParser parser, int depth, int[] fields) throws IOException {
+    JsonToken token = parser.getCurrentToken();
+    if (token != JsonToken.START_OBJECT && token != JsonToken.START_ARRAY) {
+      return;
+    }
+    checkDepth(depth);
+    while ((token = parser.nextToken()) != JsonToken.END_OBJECT && token != JsonToken.END_ARRAY
+        && token != null) {
+      if (token == JsonToken.FIELD_NAME) {
+        parser.nextToken();
+      }
+      count(fields);
+      skip(parser, depth + 1, fields);
+    }
+  }
+
+  private void checkDepth(int depth) {
+    if (maxDepth > 0 && depth > maxDepth) {
+      throw new IllegalArgumentException("Device attributes payload nested deeper than "
+          + maxDepth);
+    }
+  }
+
+  private void count(int[] fields) {
+    if (maxFields > 0 && ++fields[0] > maxFields) {
+      throw new IllegalArgumentException("Device attributes payload has more than " + maxFields
+          + " fields");
+    }
+  }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+
+package org.forgerock.openam.auth.nodes;
+
+import com.google.inject.assistedinject.Assisted;
+import com.sun.identity.sm.RequiredValueValidator;
+import javax.inject.Inject;
+import org.forgerock.openam.annotations.sm.Attribute;
+import org.forgerock.openam.auth.node.api.AbstractDecisionNode;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.Node;
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+import org.forgerock.openam.auth.node.api.TreeContext;
+
+/**
+ * A node that tests the collected device profile against a {@link ProfilePredicate} expression,
+ * e.g. {@code platform.jailBreakScore > 0.5 && platform.version < 12}. The true outcome is taken
+ * when the profile matches.
+ */
+@Node.Metadata(outcomeProvider = AbstractDecisionNode.OutcomeProvider.class,
+    configClass = DeviceProfilePredicateNode.Config.class)
+public class DeviceProfilePredicateNode extends AbstractDecisionNode implements DeviceContext {
+
+  private static final String METRICS = "device.profilePredicate.";
+  private final DeviceMetrics metrics;
+  private final Config config;
+
+  /**
+   * Configuration for the node.
+   */
+  public interface Config {
+
+    @Attribute(order = 100, validators = {RequiredValueValidator.class,
+        ProfilePredicateValidator.class})
+    String expression();
+  }
+
+  /**
+   * Create the node using Guice injection. Just-in-time bindings can be used to obtain instances of
+   * other classes from the plugin.
+   *
+   * @param metrics The metrics registry
+   * @param config The service config.
+   */
+  @Inject
+  public DeviceProfilePredicateNode(DeviceMetrics metrics, @Assisted Config config) {
+    this.metrics = metrics;
+    this.config = config;
+  }
+
+  @Override
+  public Action process(TreeContext context) throws NodeProcessException {
+    return metrics.process(METRICS, () -> evaluate(context));
+  }
+
+  private Action evaluate(TreeContext context) throws NodeProcessException {
+
+    ProfilePredicate predicate;
+    try {
+      predicate = ProfilePredicate.compile(config.expression());
+    } catch (IllegalArgumentException e) {
+      throw new NodeProcessException(e);
+    }
+    return goTo(predicate.test(getProfile(context))).build();
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.iplanet.am.util.SystemProperties;
+import java.util.concurrent.TimeUnit;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * In-JVM cache of the parsed {@link StoredDevices} of each user, shared by all the device nodes.
+ * Entries expire after a fixed time to bound staleness against writes from other servers, and are
+ * invalidated by the {@link DeviceRepository} on every local write.
+ *
+ * <p>
+ * The cache is sized with the {@value #MAX_SIZE} and {@value #TTL} server properties, a maximum
+ * size of 0 disables it.
+ * </p>
+ */
+@Singleton
+public class DeviceRegistryCache {
+
+  static final String MAX_SIZE = "org.forgerock.openam.auth.nodes.device.cache.maxSize";
+  static final String TTL = "org.forgerock.openam.auth.nodes.device.cache.ttlSeconds";
+
+  private final Cache<String, StoredDevices> cache;
+
+  /**
+   * Create the cache sized from the server properties.
+   */
+  @Inject
+  public DeviceRegistryCache() {
+    this(SystemProperties.getAsLong(MAX_SIZE, 10000), SystemProperties.getAsLong(TTL, 30),
+        TimeUnit.SECONDS);
+  }
+
+  DeviceRegistryCache(long maxSize, long ttl, TimeUnit unit) {
+    this.cache = CacheBuilder.newBuilder()
+        .maximumSize(maxSize)
+        .expireAfterWrite(ttl, unit)
+        .build();
+  }
+
+  /**
+   * Get the cached devices of a user.
+   *
+   * @param key The universal id of the user, which qualifies the username with its realm
+   * @return The cached devices, null when not cached
+   */
+  public StoredDevices get(String key) {
+    return cache.getIfPresent(key);
+  }
+
+  /**
+   * Cache the devices of a user.
+   *
+   * @param key The universal id of the user, which qualifies the username with its realm
+   * @param devices The devices
+   */
+  public void put(String key, StoredDevices devices) {
+    cache.put(key, devices);
+  }
+
+  /**
+   * Discard the cached devices of a user.
+   *
+   * @param key The universal id of the user, which qualifies the username with its realm
+   */
+  public void invalidate(String key) {
+    cache.invalidate(key);
+  }
+
+}
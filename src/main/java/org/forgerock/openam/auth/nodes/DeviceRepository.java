@@ -0,0 +1,507 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import static org.forgerock.openam.auth.nodes.DeviceAttribute.LOCATION;
+import static org.forgerock.openam.auth.nodes.DeviceAttribute.PROFILE;
+import static org.forgerock.openam.auth.nodes.DeviceAttribute.PROFILE_FINGERPRINT;
+import static org.forgerock.openam.auth.nodes.DeviceLocationRangeNode.LATITUDE;
+import static org.forgerock.openam.auth.nodes.DeviceLocationRangeNode.LONGITUDE;
+
+import com.iplanet.am.util.SystemProperties;
+import com.iplanet.sso.SSOException;
+import com.sun.identity.idm.AMIdentity;
+import com.sun.identity.idm.IdRepoException;
+import com.sun.identity.idm.IdServices;
+import com.sun.identity.idm.IdServicesFactory;
+import com.sun.identity.security.AdminTokenAction;
+import java.security.AccessController;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.nodes.DeviceAttributeStoreNode.Config;
+import org.forgerock.openam.auth.nodes.DeviceAttributeStoreNode.StoreMode;
+import org.forgerock.openam.utils.JsonValueBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read and write access to the device records persisted under the user's {@link #DEVICE_ATTRIBUTES}
+ * attribute. Each value of the attribute is the json representation of a single device.
+ */
+@Singleton
+public class DeviceRepository {
+
+  public static final String DEVICE_ATTRIBUTES = "deviceAttributes";
+  public static final String LAST_SEEN = "lastSeen";
+  public static final String FIRST_SEEN = "firstSeen";
+  public static final String LOCATION_HISTORY = "locationHistory";
+  public static final String LOCATION_SAMPLE = "locationSample";
+  public static final String TIMESTAMP = "timestamp";
+
+  /**
+   * How old the last seen timestamp of an otherwise unchanged device can get before it is
+   * refreshed. Keeps unchanged devices from being written on every login.
+   */
+  static final long LAST_SEEN_RESOLUTION = TimeUnit.DAYS.toMillis(1);
+
+  /**
+   * How old the location sample of an unmoved device can get before it is refreshed. The travel
+   * velocity is measured from the last sighting, at most this much earlier than the actual one.
+   */
+  static final long SAMPLE_RESOLUTION = TimeUnit.MINUTES.toMillis(10);
+
+  /**
+   * Geohash precision under which two locations of the history are considered the same, about
+   * 150 metres.
+   */
+  static final int HISTORY_PRECISION = 7;
+
+  /**
+   * How many times the records of a user are migrated when concurrent logins keep changing them.
+   */
+  static final int MIGRATION_ATTEMPTS = 3;
+
+  /**
+   * Server property of the time in milliseconds above which reading or writing the devices of a
+   * user is logged as slow.
+   */
+  static final String SLOW = "org.forgerock.openam.auth.nodes.device.metrics.slowMillis";
+
+  private static final String METRICS = "device.repository.";
+
+  private final Logger logger = LoggerFactory.getLogger(DeviceRepository.class);
+  private final DeviceRegistryCache cache;
+  private final DeviceMetrics metrics;
+  private final Clock clock;
+  private final long slowNanos;
+
+  /**
+   * Create the repository.
+   *
+   * @param cache The cache of the stored devices
+   * @param metrics The metrics registry
+   */
+  @Inject
+  public DeviceRepository(DeviceRegistryCache cache, DeviceMetrics metrics) {
+    this(cache, metrics, Clock.systemUTC());
+  }
+
+  DeviceRepository(DeviceRegistryCache cache, DeviceMetrics metrics, Clock clock) {
+    this.cache = cache;
+    this.metrics = metrics;
+    this.clock = clock;
+    this.slowNanos = TimeUnit.MILLISECONDS.toNanos(SystemProperties.getAsLong(SLOW, 1000));
+  }
+
+  /**
+   * Retrieve all the stored device records of the user.
+   *
+   * @param identity The user identity
+   * @return The raw json string of each stored device
+   */
+  public Set<String> getDeviceAttributes(AMIdentity identity)
+      throws IdRepoException, SSOException {
+    return identity.getAttribute(DEVICE_ATTRIBUTES);
+  }
+
+  /**
+   * Retrieve the parsed device records of the user, from the {@link DeviceRegistryCache} when
+   * available.
+   *
+   * @param identity The user identity
+   * @return The stored devices
+   */
+  public StoredDevices getDevices(AMIdentity identity) throws IdRepoException, SSOException {
+    StoredDevices devices = cache.get(identity.getUniversalId());
+    metrics.increment(METRICS + (devices != null ? "cache.hit" : "cache.miss"));
+    return devices != null ? devices : load(identity);
+  }
+
+  /**
+   * Read and parse the devices of the user and cache them, recording the number and total size of
+   * the stored records.
+   */
+  private StoredDevices load(AMIdentity identity) throws IdRepoException, SSOException {
+    long start = System.nanoTime();
+    Set<String> values = getDeviceAttributes(identity);
+    long read = System.nanoTime();
+    StoredDevices devices = StoredDevices.of(values);
+    long parsed = System.nanoTime();
+    metrics.time(METRICS + "read", read - start);
+    metrics.time(METRICS + "parse", parsed - read);
+    int size = 0;
+    if (values != null) {
+      for (String value : values) {
+        size += value.length();
+      }
+      metrics.record(METRICS + "devices", values.size());
+    }
+    metrics.record(METRICS + "bytes", size);
+    if (parsed - start > slowNanos) {
+      logger.warn("Loading the {} characters of device records of {} took {} ms", size,
+          identity.getUniversalId(), TimeUnit.NANOSECONDS.toMillis(parsed - start));
+    }
+    cache.put(identity.getUniversalId(), devices);
+    return devices;
+  }
+
+  /**
+   * Merge the collected attributes of one or more devices into the stored device records of the
+   * user and persist the result with a single write. Devices whose record is unchanged after the
+   * merge are not written, and when no device changed the data store is not touched at all.
+   * When the user has more devices than allowed, the least recently seen ones are evicted.
+   *
+   * <p>
+   * The cached devices are only trusted to detect that nothing has to be written. Changes are
+   * always merged into the records freshly read from the data store.
+   * </p>
+   *
+   * @param identity The user identity
+   * @param config The configuration of the store node
+   * @param devices The collected attributes of each device keyed by the device identifier
+   */
+  public void save(AMIdentity identity, Config config, Map<String, JsonValue> devices)
+      throws IdRepoException, SSOException {
+
+    String key = identity.getUniversalId();
+    StoredDevices cached = cache.get(key);
+    Changes changes = merge(cached != null ? cached : load(identity), config, devices);
+    if (changes != null && cached != null) {
+      changes = merge(load(identity), config, devices);
+    }
+    if (changes == null) {
+      metrics.increment(METRICS + "write.skipped");
+      return;
+    }
+
+    try {
+      if (config.storeMode() == StoreMode.DELTA && !changes.updated && !changes.evicted) {
+        add(identity, changes.added);
+      } else {
+        //The identity API has no single value removal, updated values are swapped within the set
+        replace(identity, changes.values);
+      }
+    } finally {
+      cache.invalidate(key);
+    }
+  }
+
+  /**
+   * Merge the collected attributes of the devices into the stored devices.
+   *
+   * @return The values to write, null when nothing changed
+   */
+  private Changes merge(StoredDevices stored, Config config, Map<String, JsonValue> devices) {
+
+    Changes changes = new Changes();
+
+    for (String s : stored.getValues()) {
+      String identifier = stored.getIdentifier(s);
+      //Replace mode removes and overwrites every existing one base on the "identifier"
+      if (devices.containsKey(identifier) && (config.storeMode() == StoreMode.REPLACE
+          || s.equals(stored.getValue(identifier)))) {
+        continue;
+      }
+      changes.values.add(s);
+    }
+
+    for (Map.Entry<String, JsonValue> device : devices.entrySet()) {
+      String identifier = device.getKey();
+      //The identifier is written first so readers can stop decoding a record early
+      JsonValue record = JsonValueBuilder.jsonValue()
+          .put(DeviceAttribute.IDENTIFIER.getAttributeName(), identifier).build();
+      stored.get(identifier).ifPresent(
+          existing -> existing.keys().forEach(key -> record.put(key, existing.get(key).copy())));
+      if (!merge(record, identifier, device.getValue(), config.locationHistorySize())) {
+        logger.debug("Device {} is unchanged, skip persisting", identifier);
+        changes.values.add(stored.getValue(identifier));
+        continue;
+      }
+      if (stored.getValue(identifier) != null) {
+        changes.updated = true;
+      } else {
+        record.put(FIRST_SEEN, clock.millis());
+        changes.added.add(record.toString());
+      }
+      changes.values.add(record.toString());
+    }
+
+    int maxDevices = config.maxDevices();
+    if (maxDevices > 0 && changes.values.size() > maxDevices) {
+      changes.values = evict(changes.values, maxDevices);
+      changes.evicted = true;
+    }
+
+    return changes.updated || changes.evicted || !changes.added.isEmpty() ? changes : null;
+  }
+
+  /**
+   * Merge the collected attributes into the stored device record and maintain its last seen
+   * timestamp, profile fingerprint, location sample and location history. The timestamp is not
+   * part of the change detection, it is only refreshed with the other changes or once it is older
+   * than {@link #LAST_SEEN_RESOLUTION}.
+   *
+   * @return true when the merge changed the stored device record
+   */
+  private boolean merge(JsonValue record, String identifier, JsonValue attributes,
+      int historySize) {
+    Long lastSeen = getLastSeen(record);
+    record.remove(LAST_SEEN);
+    String stored = JsonFingerprint.of(record);
+    record.put(DeviceAttribute.IDENTIFIER.getAttributeName(), identifier);
+    attributes.keys().forEach(key -> record.put(key, attributes.get(key)));
+    if (record.isDefined(PROFILE.getAttributeName())
+        && !attributes.isDefined(PROFILE_FINGERPRINT.getAttributeName())) {
+      record.put(PROFILE_FINGERPRINT.getAttributeName(),
+          JsonFingerprint.of(record.get(PROFILE.getAttributeName())));
+    }
+    if (attributes.isDefined(LOCATION.getAttributeName())) {
+      sample(record, attributes.get(LOCATION.getAttributeName()));
+      if (historySize > 0) {
+        addToHistory(record, attributes.get(LOCATION.getAttributeName()), historySize);
+      }
+    }
+
+    long now = clock.millis();
+    if (!stored.equals(JsonFingerprint.of(record)) || lastSeen == null
+        || now - lastSeen >= LAST_SEEN_RESOLUTION) {
+      record.put(LAST_SEEN, now);
+      return true;
+    }
+    record.put(LAST_SEEN, lastSeen);
+    return false;
+  }
+
+  /**
+   * Record where and when the device was last seen, for the {@link DeviceTravelVelocityNode}. The
+   * sample of an unmoved device is only refreshed once older than {@link #SAMPLE_RESOLUTION}, so
+   * it does not cause a write on every login.
+   */
+  private void sample(JsonValue record, JsonValue location) {
+    if (!location.get(LATITUDE).isNumber() || !location.get(LONGITUDE).isNumber()) {
+      return;
+    }
+    JsonValue sample = record.get(LOCATION_SAMPLE);
+    if (sample.get(TIMESTAMP).isNumber() && sample.get(LATITUDE).isNumber()
+        && sample.get(LONGITUDE).isNumber()
+        && location.get(LATITUDE).asDouble().equals(sample.get(LATITUDE).asDouble())
+        && location.get(LONGITUDE).asDouble().equals(sample.get(LONGITUDE).asDouble())
+        && clock.millis() - sample.get(TIMESTAMP).asLong() < SAMPLE_RESOLUTION) {
+      return;
+    }
+    record.put(LOCATION_SAMPLE, JsonValueBuilder.jsonValue()
+        .put(LATITUDE, location.get(LATITUDE).getObject())
+        .put(LONGITUDE, location.get(LONGITUDE).getObject())
+        .put(TIMESTAMP, clock.millis())
+        .build().getObject());
+  }
+
+  /**
+   * Append a location to the location history of the device, most recent last. A location in the
+   * same {@link #HISTORY_PRECISION} geohash cell as a known one replaces it, and the oldest
+   * locations are dropped beyond the history size.
+   */
+  private void addToHistory(JsonValue record, JsonValue location, int historySize) {
+    if (!location.get(LATITUDE).isNumber() || !location.get(LONGITUDE).isNumber()) {
+      return;
+    }
+    String cell = GeoHash.encode(location.get(LATITUDE).asDouble(),
+        location.get(LONGITUDE).asDouble(), HISTORY_PRECISION);
+
+    List<Object> history = new ArrayList<>();
+    for (JsonValue entry : record.get(LOCATION_HISTORY).defaultTo(Collections.emptyList())) {
+      if (entry.get(LATITUDE).isNumber() && entry.get(LONGITUDE).isNumber()
+          && !cell.equals(GeoHash.encode(entry.get(LATITUDE).asDouble(),
+          entry.get(LONGITUDE).asDouble(), HISTORY_PRECISION))) {
+        history.add(entry.getObject());
+      }
+    }
+    history.add(JsonValueBuilder.jsonValue()
+        .put(LATITUDE, location.get(LATITUDE).getObject())
+        .put(LONGITUDE, location.get(LONGITUDE).getObject())
+        .build().getObject());
+    while (history.size() > historySize) {
+      history.remove(0);
+    }
+    record.put(LOCATION_HISTORY, history);
+  }
+
+  /**
+   * Keep the most recently seen devices. Devices without a last seen timestamp are the first to
+   * be evicted.
+   */
+  private Set<String> evict(Set<String> values, int maxDevices) {
+    Map<String, Long> lastSeen = values.stream().collect(Collectors.toMap(Function.identity(),
+        s -> {
+          Long timestamp = getLastSeen(StoredDevices.read(s, Collections.singleton(LAST_SEEN)));
+          return timestamp == null ? 0L : timestamp;
+        }));
+    logger.debug("{} devices stored, evicting the {} least recently seen", values.size(),
+        values.size() - maxDevices);
+    return values.stream()
+        .sorted(Comparator.comparing(lastSeen::get, Comparator.reverseOrder()))
+        .limit(maxDevices)
+        .collect(Collectors.toSet());
+  }
+
+  private Long getLastSeen(JsonValue record) {
+    JsonValue lastSeen = record.get(LAST_SEEN);
+    return lastSeen.isNumber() ? lastSeen.asLong() : null;
+  }
+
+  /**
+   * Rewrite the device records of the user freshly read from the data store. The records are only
+   * written back when the migration changed at least one of them, malformed values are kept as
+   * they are.
+   *
+   * <p>
+   * The records are read again just before being written, and migrated again when a concurrent
+   * login changed them meanwhile, up to {@link #MIGRATION_ATTEMPTS} times.
+   * </p>
+   *
+   * @param identity The user identity
+   * @param migration Updates a device record in place, returning whether it changed it
+   * @return Whether the records have been written
+   * @throws IllegalStateException When the records kept changing
+   */
+  public boolean migrate(AMIdentity identity, Predicate<JsonValue> migration)
+      throws IdRepoException, SSOException {
+    Set<String> values = getDeviceAttributes(identity);
+    for (int attempt = 0; attempt < MIGRATION_ATTEMPTS; attempt++) {
+      if (values == null || values.isEmpty()) {
+        return false;
+      }
+      Set<String> migrated = migrate(identity, values, migration);
+      if (migrated == null) {
+        return false;
+      }
+      Set<String> current = getDeviceAttributes(identity);
+      if (values.equals(current)) {
+        try {
+          replace(identity, migrated);
+        } finally {
+          cache.invalidate(identity.getUniversalId());
+        }
+        return true;
+      }
+      logger.debug("Device records of {} changed while migrated, migrating them again",
+          identity.getUniversalId());
+      values = current;
+    }
+    throw new IllegalStateException("Device records of " + identity.getUniversalId()
+        + " kept changing while migrated");
+  }
+
+  /**
+   * Migrate the device records.
+   *
+   * @return The migrated records, null when the migration changed none
+   */
+  private Set<String> migrate(AMIdentity identity, Set<String> values,
+      Predicate<JsonValue> migration) {
+    Set<String> migrated = new LinkedHashSet<>();
+    boolean changed = false;
+    for (String value : values) {
+      JsonValue record;
+      try {
+        record = JsonValueBuilder.toJsonValue(value);
+      } catch (RuntimeException e) {
+        logger.warn("Keeping malformed device record of {}", identity.getUniversalId());
+        migrated.add(value);
+        continue;
+      }
+      if (migration.test(record)) {
+        changed = true;
+        migrated.add(record.toString());
+      } else {
+        migrated.add(value);
+      }
+    }
+    return changed ? migrated : null;
+  }
+
+  /**
+   * Replace all the stored device records of the user with the provided values.
+   *
+   * @param identity The user identity
+   * @param values The raw json string of each device to keep
+   */
+  public void replace(AMIdentity identity, Set<String> values)
+      throws IdRepoException, SSOException {
+    Map<String, Set<String>> attrMap = new HashMap<>();
+    attrMap.put(DEVICE_ATTRIBUTES, values);
+    long start = System.nanoTime();
+    identity.setAttributes(attrMap);
+    identity.store();
+    written(identity, "replace", start);
+  }
+
+  /**
+   * Add new device records to the user, leaving the other stored values untouched. The data store
+   * receives an add modification for the new values instead of a replace of the whole attribute.
+   *
+   * @param identity The user identity
+   * @param values The raw json string of each new device
+   */
+  public void add(AMIdentity identity, Set<String> values) throws IdRepoException, SSOException {
+    Map<String, Set<String>> attrMap = Collections.singletonMap(DEVICE_ATTRIBUTES, values);
+    long start = System.nanoTime();
+    getIdServices().setAttributes(AccessController.doPrivileged(AdminTokenAction.getInstance()),
+        identity.getType(), identity.getName(), attrMap, true, identity.getRealm(),
+        identity.getDN(), true);
+    written(identity, "add", start);
+  }
+
+  private void written(AMIdentity identity, String modification, long start) {
+    long elapsed = System.nanoTime() - start;
+    metrics.time(METRICS + "write", elapsed);
+    metrics.increment(METRICS + "write." + modification);
+    if (elapsed > slowNanos) {
+      logger.warn("Writing the device records of {} took {} ms", identity.getUniversalId(),
+          TimeUnit.NANOSECONDS.toMillis(elapsed));
+    }
+  }
+
+  IdServices getIdServices() {
+    return IdServicesFactory.getDataStoreServices();
+  }
+
+  private static final class Changes {
+
+    private final Set<String> added = new HashSet<>();
+    private Set<String> values = new HashSet<>();
+    private boolean updated;
+    private boolean evicted;
+  }
+
+}
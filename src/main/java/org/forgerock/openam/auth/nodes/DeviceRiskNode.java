@@ -0,0 +1,278 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+
+package org.forgerock.openam.auth.nodes;
+
+import static org.forgerock.openam.auth.nodes.DeviceAttribute.IDENTIFIER;
+import static org.forgerock.openam.auth.nodes.DeviceAttribute.LOCATION;
+import static org.forgerock.openam.auth.nodes.DeviceAttribute.PROFILE;
+import static org.forgerock.openam.auth.nodes.DeviceAttribute.PROFILE_FINGERPRINT;
+import static org.forgerock.openam.auth.nodes.DeviceLocationRangeNode.LATITUDE;
+import static org.forgerock.openam.auth.nodes.DeviceLocationRangeNode.LONGITUDE;
+import static org.forgerock.openam.auth.nodes.DeviceRepository.FIRST_SEEN;
+
+import com.google.inject.assistedinject.Assisted;
+import com.iplanet.sso.SSOException;
+import com.sun.identity.idm.IdRepoException;
+import com.sun.identity.shared.validation.PositiveIntegerValidator;
+import com.sun.identity.sm.RequiredValueValidator;
+import java.time.Clock;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import javax.inject.Inject;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.annotations.sm.Attribute;
+import org.forgerock.openam.auth.node.api.AbstractDecisionNode;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.Node;
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.openam.core.CoreWrapper;
+import org.forgerock.openam.core.realms.Realm;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A node that combines weighted device risk signals into a single score: the jailbreak score, a
+ * profile mismatch, a location away from the known ones and a recently seen device. Each signal
+ * contributes its weight times its risk, between 0 and 1, and a signal that cannot be evaluated
+ * because its data is missing counts as full risk. The true outcome is taken when the score is
+ * below the threshold.
+ *
+ * <p>
+ * Signals are evaluated from the cheapest to the most expensive, and evaluation stops as soon as
+ * the outcome is decided, so the user identity and stored devices are only fetched, once, when
+ * needed. The score put in the shared state is the score accumulated until then.
+ * </p>
+ */
+@Node.Metadata(outcomeProvider = AbstractDecisionNode.OutcomeProvider.class,
+    configClass = DeviceRiskNode.Config.class)
+public class DeviceRiskNode extends AbstractDecisionNode implements DeviceContext {
+
+  public static final String RISK_SCORE = "forgeRock.mobile.riskScore";
+  private static final String METRICS = "device.risk.";
+  private final Logger logger = LoggerFactory.getLogger(DeviceRiskNode.class);
+  private final CoreWrapper coreWrapper;
+  private final DeviceRepository deviceRepository;
+  private final DeviceMetrics metrics;
+  private final Config config;
+  private final Realm realm;
+  private final Clock clock;
+
+  /**
+   * Configuration for the node.
+   */
+  public interface Config {
+
+    @Attribute(order = 100,
+        validators = {RequiredValueValidator.class, NonNegativeIntegerValidator.class})
+    default int jailBreakWeight() {
+      return 40;
+    }
+
+    @Attribute(order = 200,
+        validators = {RequiredValueValidator.class, NonNegativeIntegerValidator.class})
+    default int profileWeight() {
+      return 30;
+    }
+
+    @Attribute(order = 300,
+        validators = {RequiredValueValidator.class, NonNegativeIntegerValidator.class})
+    default int locationWeight() {
+      return 20;
+    }
+
+    @Attribute(order = 400,
+        validators = {RequiredValueValidator.class, NonNegativeIntegerValidator.class})
+    default int ageWeight() {
+      return 10;
+    }
+
+    @Attribute(order = 500,
+        validators = {RequiredValueValidator.class, PositiveIntegerValidator.class})
+    default int threshold() {
+      return 50;
+    }
+
+    @Attribute(order = 600,
+        validators = {RequiredValueValidator.class, PositiveIntegerValidator.class})
+    default int distance() {
+      return 100;
+    }
+
+    @Attribute(order = 700,
+        validators = {RequiredValueValidator.class, NonNegativeIntegerValidator.class})
+    default int minimumAge() {
+      return 7;
+    }
+
+  }
+
+  /**
+   * Create the node using Guice injection. Just-in-time bindings can be used to obtain instances of
+   * other classes from the plugin.
+   *
+   * @param coreWrapper The CoreWrapper
+   * @param deviceRepository The repository of the stored devices
+   * @param metrics The metrics registry
+   * @param config The service config.
+   * @param realm The realm the node is in.
+   */
+  @Inject
+  public DeviceRiskNode(CoreWrapper coreWrapper, DeviceRepository deviceRepository,
+      DeviceMetrics metrics, @Assisted Config config, @Assisted Realm realm) {
+    this(coreWrapper, deviceRepository, metrics, config, realm, Clock.systemUTC());
+  }
+
+  DeviceRiskNode(CoreWrapper coreWrapper, DeviceRepository deviceRepository,
+      DeviceMetrics metrics, Config config, Realm realm, Clock clock) {
+    this.coreWrapper = coreWrapper;
+    this.deviceRepository = deviceRepository;
+    this.metrics = metrics;
+    this.config = config;
+    this.realm = realm;
+    this.clock = clock;
+  }
+
+  @Override
+  public Action process(TreeContext context) throws NodeProcessException {
+    return metrics.process(METRICS, () -> evaluate(context));
+  }
+
+  private Action evaluate(TreeContext context) throws NodeProcessException {
+
+    Evaluation evaluation = new Evaluation(context);
+    int[] weights = {config.jailBreakWeight(), config.profileWeight(), config.locationWeight(),
+        config.ageWeight()};
+    Signal[] signals = {this::jailBreakRisk, this::profileRisk, this::locationRisk,
+        this::ageRisk};
+
+    int threshold = config.threshold();
+    double remaining = 0;
+    for (int weight : weights) {
+      remaining += Math.max(weight, 0);
+    }
+    double score = 0;
+    try {
+      for (int i = 0; i < signals.length && score < threshold && score + remaining >= threshold;
+          i++) {
+        if (weights[i] <= 0) {
+          continue;
+        }
+        remaining -= weights[i];
+        score += weights[i] * signals[i].risk(evaluation);
+      }
+    } catch (NodeProcessException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new NodeProcessException(e);
+    }
+    logger.debug("Device risk score {}", score);
+    metrics.record(METRICS + "score", Math.round(score));
+
+    JsonValue newSharedState = copySharedState(context);
+    newSharedState.put(RISK_SCORE, score);
+    return goTo(score < threshold).replaceSharedState(newSharedState).build();
+  }
+
+  private double jailBreakRisk(Evaluation evaluation) {
+    JsonValue score = evaluation.collected(PROFILE).get("platform").get("jailBreakScore");
+    return score.isNumber() ? Math.min(Math.max(score.asDouble(), 0), 1) : 1;
+  }
+
+  private double profileRisk(Evaluation evaluation) throws Exception {
+    JsonValue profile = evaluation.collected(PROFILE);
+    Optional<JsonValue> device = evaluation.device(PROFILE.getAttributeName(),
+        PROFILE_FINGERPRINT.getAttributeName());
+    if (profile.isNull() || !device.isPresent()
+        || !device.get().isDefined(PROFILE.getAttributeName())) {
+      return 1;
+    }
+    String fingerprint = device.get().get(PROFILE_FINGERPRINT.getAttributeName()).asString();
+    boolean match = fingerprint != null
+        ? fingerprint.equals(getProfileFingerprint(evaluation.context))
+        : device.get().get(PROFILE.getAttributeName()).isEqualTo(profile);
+    return match ? 0 : 1;
+  }
+
+  private double locationRisk(Evaluation evaluation) throws Exception {
+    JsonValue location = evaluation.collected(LOCATION);
+    if (!location.get(LATITUDE).isNumber() || !location.get(LONGITUDE).isNumber()
+        || evaluation.identifier == null) {
+      return 1;
+    }
+    Optional<GeoIndex> known = evaluation.devices().getLocationIndex(evaluation.identifier);
+    return known.isPresent() && known.get().anyWithin(GeoPoint.of(location), config.distance())
+        ? 0 : 1;
+  }
+
+  private double ageRisk(Evaluation evaluation) throws Exception {
+    Optional<JsonValue> device = evaluation.device(FIRST_SEEN);
+    if (!device.isPresent()) {
+      return 1;
+    }
+    JsonValue firstSeen = device.get().get(FIRST_SEEN);
+    if (!firstSeen.isNumber() || config.minimumAge() <= 0) {
+      return 0; //Stored before the first seen timestamp existed
+    }
+    double age = (double) (clock.millis() - firstSeen.asLong()) / TimeUnit.DAYS.toMillis(1);
+    return Math.max(0, 1 - age / config.minimumAge());
+  }
+
+  /**
+   * The risk of a signal, between 0 and 1.
+   */
+  private interface Signal {
+
+    double risk(Evaluation evaluation) throws Exception;
+  }
+
+  /**
+   * State of one evaluation, fetching the stored devices of the user at most once.
+   */
+  private final class Evaluation {
+
+    private final TreeContext context;
+    private final String identifier;
+    private StoredDevices devices;
+
+    Evaluation(TreeContext context) {
+      this.context = context;
+      this.identifier = context.sharedState.get(IDENTIFIER.getVariableName()).isString()
+          ? context.sharedState.get(IDENTIFIER.getVariableName()).asString() : null;
+    }
+
+    JsonValue collected(DeviceAttribute attribute) {
+      return context.sharedState.get(attribute.getVariableName());
+    }
+
+    StoredDevices devices() throws NodeProcessException, IdRepoException, SSOException {
+      if (devices == null) {
+        devices = getDevices(context, deviceRepository,
+            getUserIdentity(context, coreWrapper, realm, metrics));
+      }
+      return devices;
+    }
+
+    Optional<JsonValue> device(String... attributes)
+        throws NodeProcessException, IdRepoException, SSOException {
+      return identifier == null ? Optional.empty() : devices().get(identifier, attributes);
+    }
+  }
+
+}
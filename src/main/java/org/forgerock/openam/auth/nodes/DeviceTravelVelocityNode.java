@@ -0,0 +1,144 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+
+package org.forgerock.openam.auth.nodes;
+
+import static org.forgerock.openam.auth.nodes.DeviceRepository.LOCATION_SAMPLE;
+import static org.forgerock.openam.auth.nodes.DeviceRepository.TIMESTAMP;
+
+import com.google.inject.assistedinject.Assisted;
+import com.sun.identity.idm.AMIdentity;
+import com.sun.identity.shared.validation.PositiveIntegerValidator;
+import com.sun.identity.sm.RequiredValueValidator;
+import java.time.Clock;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import javax.inject.Inject;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.annotations.sm.Attribute;
+import org.forgerock.openam.auth.node.api.AbstractDecisionNode;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.Node;
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.openam.core.CoreWrapper;
+import org.forgerock.openam.core.realms.Realm;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A node that checks whether the device could have travelled from its last stored location to the
+ * collected one in the elapsed time. The true outcome is taken when the speed is plausible or the
+ * device has no stored location yet, the false outcome when the travel is impossible.
+ */
+@Node.Metadata(outcomeProvider = AbstractDecisionNode.OutcomeProvider.class,
+    configClass = DeviceTravelVelocityNode.Config.class)
+public class DeviceTravelVelocityNode extends AbstractDecisionNode implements DeviceContext {
+
+  private static final String METRICS = "device.travelVelocity.";
+  private final Logger logger = LoggerFactory.getLogger(DeviceTravelVelocityNode.class);
+  private final CoreWrapper coreWrapper;
+  private final DeviceRepository deviceRepository;
+  private final DeviceMetrics metrics;
+  private final Config config;
+  private final Realm realm;
+  private final Clock clock;
+
+  /**
+   * Configuration for the node.
+   */
+  public interface Config {
+
+    @Attribute(order = 100,
+        validators = {RequiredValueValidator.class, PositiveIntegerValidator.class})
+    default int maxSpeed() {
+      return 1000;
+    }
+
+    @Attribute(order = 200,
+        validators = {RequiredValueValidator.class, NonNegativeIntegerValidator.class})
+    default int tolerance() {
+      return 5;
+    }
+
+  }
+
+  /**
+   * Create the node using Guice injection. Just-in-time bindings can be used to obtain instances of
+   * other classes from the plugin.
+   *
+   * @param coreWrapper The CoreWrapper
+   * @param deviceRepository The repository of the stored devices
+   * @param metrics The metrics registry
+   * @param config The service config.
+   * @param realm The realm the node is in.
+   */
+  @Inject
+  public DeviceTravelVelocityNode(CoreWrapper coreWrapper, DeviceRepository deviceRepository,
+      DeviceMetrics metrics, @Assisted Config config, @Assisted Realm realm) {
+    this(coreWrapper, deviceRepository, metrics, config, realm, Clock.systemUTC());
+  }
+
+  DeviceTravelVelocityNode(CoreWrapper coreWrapper, DeviceRepository deviceRepository,
+      DeviceMetrics metrics, Config config, Realm realm, Clock clock) {
+    this.coreWrapper = coreWrapper;
+    this.deviceRepository = deviceRepository;
+    this.metrics = metrics;
+    this.config = config;
+    this.realm = realm;
+    this.clock = clock;
+  }
+
+  @Override
+  public Action process(TreeContext context) throws NodeProcessException {
+    return metrics.process(METRICS, () -> evaluate(context));
+  }
+
+  private Action evaluate(TreeContext context) throws NodeProcessException {
+
+    JsonValue location = getLocation(context);
+    String identifier = getIdentifier(context);
+
+    try {
+      AMIdentity identity = getUserIdentity(context, coreWrapper, realm, metrics);
+      Optional<JsonValue> sample = getDevices(context, deviceRepository, identity)
+          .get(identifier, LOCATION_SAMPLE)
+          .map(o -> o.get(LOCATION_SAMPLE))
+          .filter(o -> o.get(TIMESTAMP).isNumber());
+
+      if (!sample.isPresent()) {
+        return goTo(true).build(); //No previous location to travel from
+      }
+
+      double distance = GeoPoint.of(sample.get()).distanceTo(GeoPoint.of(location));
+      if (distance <= config.tolerance()) {
+        return goTo(true).build();
+      }
+      long elapsed = Math.max(clock.millis() - sample.get().get(TIMESTAMP).asLong(), 1);
+      double speed = distance / elapsed * TimeUnit.HOURS.toMillis(1);
+      logger.debug("Device {} travelled {} km at {} km/h", identifier, distance, speed);
+      return goTo(speed <= config.maxSpeed()).build();
+
+    } catch (NodeProcessException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new NodeProcessException(e);
+    }
+  }
+
+}
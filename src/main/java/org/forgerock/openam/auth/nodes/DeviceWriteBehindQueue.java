@@ -0,0 +1,310 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import com.iplanet.am.util.SystemProperties;
+import com.iplanet.sso.SSOException;
+import com.sun.identity.idm.AMIdentity;
+import com.sun.identity.idm.IdRepoException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.nodes.DeviceAttributeStoreNode.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded write-behind queue for the device records collected by the {@link
+ * DeviceAttributeStoreNode}. Pending updates are coalesced per user and per device, and a fixed
+ * pool of background workers writes each user with a single write through the {@link
+ * DeviceRepository}, once the flush interval of its first pending update has elapsed.
+ *
+ * <p>
+ * All the nodes share the same queue, holding at most {@value #CAPACITY} users. The workers are
+ * started with the first update. A failed write is retried with an exponential backoff, the newer
+ * updates of the user overriding the failed ones, and given up after {@link #MAX_ATTEMPTS}
+ * attempts.
+ * </p>
+ */
+@Singleton
+public class DeviceWriteBehindQueue {
+
+  /**
+   * Server property of the number of workers writing the pending updates.
+   */
+  static final String THREADS = "org.forgerock.openam.auth.nodes.device.writeBehind.threads";
+
+  /**
+   * Server property of the maximum number of users with pending updates.
+   */
+  static final String CAPACITY = "org.forgerock.openam.auth.nodes.device.writeBehind.capacity";
+
+  /**
+   * How many times the updates of a user are written before they are given up.
+   */
+  static final int MAX_ATTEMPTS = 3;
+
+  /**
+   * Delay before the first retry of a failed write, doubled by each retry.
+   */
+  static final long RETRY_MILLIS = 1000;
+
+  private static final long POLL_MILLIS = 100;
+
+  private final Logger logger = LoggerFactory.getLogger(DeviceWriteBehindQueue.class);
+  private final DeviceRepository deviceRepository;
+  private final int threads;
+  private final int capacity;
+  private final ConcurrentMap<String, Pending> pending = new ConcurrentHashMap<>();
+  private final DelayQueue<Pending> due = new DelayQueue<>();
+  private final AtomicInteger size = new AtomicInteger();
+  private ExecutorService workers;
+  private volatile boolean shutdown;
+
+  /**
+   * Create the queue.
+   *
+   * @param deviceRepository The repository of the stored devices
+   */
+  @Inject
+  public DeviceWriteBehindQueue(DeviceRepository deviceRepository) {
+    this(deviceRepository, SystemProperties.getAsInt(THREADS, 2),
+        SystemProperties.getAsInt(CAPACITY, 10000));
+  }
+
+  DeviceWriteBehindQueue(DeviceRepository deviceRepository, int threads, int capacity) {
+    this.deviceRepository = deviceRepository;
+    this.threads = Math.max(1, threads);
+    this.capacity = capacity;
+  }
+
+  /**
+   * Enqueue the collected attributes of a device. When the user already has pending updates the
+   * attributes are merged into them, later values overwriting earlier ones.
+   *
+   * @param flushInterval The delay in milliseconds before the updates of a user are written
+   * @param identity The user identity
+   * @param config The configuration of the store node, used when flushed
+   * @param identifier The device identifier
+   * @param attributes The collected attributes of the device
+   * @return false when the queue is full or shut down and the update has not been accepted
+   */
+  public boolean offer(int flushInterval, AMIdentity identity, Config config, String identifier,
+      JsonValue attributes) {
+    if (!start()) {
+      return false;
+    }
+    JsonValue copy = attributes.copy();
+    boolean[] accepted = {true};
+    Pending[] created = {null};
+    //compute is atomic with the removal done by the workers, so no update can be lost
+    pending.compute(identity.getUniversalId(), (key, current) -> {
+      Pending result = current;
+      if (result == null) {
+        if (!reserve()) {
+          accepted[0] = false;
+          return null;
+        }
+        result = new Pending(key, identity, System.nanoTime()
+            + TimeUnit.MILLISECONDS.toNanos(flushInterval), 0);
+        created[0] = result;
+      }
+      result.config = config;
+      JsonValue device = result.devices.get(identifier);
+      if (device == null) {
+        result.devices.put(identifier, copy);
+      } else {
+        copy.keys().forEach(name -> device.put(name, copy.get(name)));
+      }
+      return result;
+    });
+    //Only scheduled once pending, a flushed user is skipped by the workers
+    if (created[0] != null) {
+      due.add(created[0]);
+    }
+    return accepted[0];
+  }
+
+  /**
+   * Count one more pending user, unless the capacity is reached.
+   */
+  private boolean reserve() {
+    while (true) {
+      int current = size.get();
+      if (current >= capacity) {
+        return false;
+      }
+      if (size.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  private synchronized boolean start() {
+    if (shutdown) {
+      return false;
+    }
+    if (workers == null) {
+      workers = Executors.newFixedThreadPool(threads, r -> {
+        Thread thread = new Thread(r, "DeviceWriteBehindQueue");
+        thread.setDaemon(true);
+        return thread;
+      });
+      for (int i = 0; i < threads; i++) {
+        workers.execute(this::work);
+      }
+    }
+    return true;
+  }
+
+  private void work() {
+    try {
+      while (!shutdown) {
+        Pending batch = due.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (batch != null) {
+          write(batch);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Write all the pending updates once, the failed ones staying pending.
+   */
+  public void flush() {
+    for (Pending batch : new ArrayList<>(pending.values())) {
+      write(batch);
+    }
+  }
+
+  /**
+   * Write the updates of a user, unless they already have been, and retry them on failure.
+   */
+  private void write(Pending batch) {
+    if (!pending.remove(batch.key, batch)) {
+      return;
+    }
+    try {
+      deviceRepository.save(batch.identity, batch.config, batch.devices);
+      size.decrementAndGet();
+    } catch (IdRepoException | SSOException | RuntimeException e) {
+      retry(batch, e);
+    }
+  }
+
+  /**
+   * Make the updates of a failed write pending again, under the updates offered meanwhile.
+   */
+  private void retry(Pending batch, Exception error) {
+    if (batch.attempts + 1 >= MAX_ATTEMPTS) {
+      size.decrementAndGet();
+      logger.error("Failed to persist the devices of {} after {} attempts, giving up", batch.key,
+          MAX_ATTEMPTS, error);
+      return;
+    }
+    logger.warn("Failed to persist the devices of {}, retrying", batch.key, error);
+    Pending[] requeued = {null};
+    pending.compute(batch.key, (key, current) -> {
+      if (current == null) {
+        requeued[0] = new Pending(key, batch.identity, System.nanoTime()
+            + TimeUnit.MILLISECONDS.toNanos(RETRY_MILLIS << batch.attempts), batch.attempts + 1);
+        requeued[0].config = batch.config;
+        requeued[0].devices.putAll(batch.devices);
+        return requeued[0];
+      }
+      //The user is pending again, its reservation covers both
+      size.decrementAndGet();
+      batch.devices.forEach((identifier, failed) -> {
+        JsonValue newer = current.devices.get(identifier);
+        if (newer != null) {
+          newer.keys().forEach(name -> failed.put(name, newer.get(name)));
+        }
+        current.devices.put(identifier, failed);
+      });
+      current.attempts = Math.max(current.attempts, batch.attempts + 1);
+      return current;
+    });
+    if (requeued[0] != null) {
+      due.add(requeued[0]);
+    }
+  }
+
+  /**
+   * Let the workers finish their writes, then write the remaining pending updates. Updates
+   * offered afterwards are not accepted.
+   */
+  public void shutdown() {
+    ExecutorService stopped;
+    synchronized (this) {
+      shutdown = true;
+      stopped = workers;
+    }
+    if (stopped != null) {
+      stopped.shutdown();
+      try {
+        stopped.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    for (int attempt = 0; attempt < MAX_ATTEMPTS && !pending.isEmpty(); attempt++) {
+      flush();
+    }
+  }
+
+  private static final class Pending implements Delayed {
+
+    private final String key;
+    private final AMIdentity identity;
+    private final long dueNanos;
+    private final Map<String, JsonValue> devices = new LinkedHashMap<>();
+    private Config config;
+    private int attempts;
+
+    Pending(String key, AMIdentity identity, long dueNanos, int attempts) {
+      this.key = key;
+      this.identity = identity;
+      this.dueNanos = dueNanos;
+      this.attempts = attempts;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+      return Long.compare(dueNanos, ((Pending) other).dueNanos);
+    }
+  }
+
+}
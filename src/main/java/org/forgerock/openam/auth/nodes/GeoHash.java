@@ -0,0 +1,94 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+
+package org.forgerock.openam.auth.nodes;
+
+/**
+ * Geohash encoding of a location: a base32 string where each character halves the cell on
+ * alternating axes, so points sharing a prefix share the cell of that prefix.
+ */
+final class GeoHash {
+
+  static final int MAX_PRECISION = 9;
+  private static final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+
+  private GeoHash() {
+  }
+
+  /**
+   * Encode a location.
+   *
+   * @param latitude The latitude in degrees
+   * @param longitude The longitude in degrees
+   * @param precision The number of characters
+   * @return The geohash
+   */
+  static String encode(double latitude, double longitude, int precision) {
+    double minLat = -90;
+    double maxLat = 90;
+    double minLon = -180;
+    double maxLon = 180;
+    StringBuilder builder = new StringBuilder(precision);
+    boolean even = true;
+    int bit = 0;
+    int ch = 0;
+    while (builder.length() < precision) {
+      if (even) {
+        double mid = (minLon + maxLon) / 2;
+        if (longitude >= mid) {
+          ch = (ch << 1) | 1;
+          minLon = mid;
+        } else {
+          ch <<= 1;
+          maxLon = mid;
+        }
+      } else {
+        double mid = (minLat + maxLat) / 2;
+        if (latitude >= mid) {
+          ch = (ch << 1) | 1;
+          minLat = mid;
+        } else {
+          ch <<= 1;
+          maxLat = mid;
+        }
+      }
+      even = !even;
+      if (++bit == 5) {
+        builder.append(BASE32[ch]);
+        bit = 0;
+        ch = 0;
+      }
+    }
+    return builder.toString();
+  }
+
+  /**
+   * @return The height in degrees of the cells of a precision
+   */
+  static double height(int precision) {
+    return 180 / Math.pow(2, (5 * precision) / 2);
+  }
+
+  /**
+   * @return The width in degrees of the cells of a precision
+   */
+  static double width(int precision) {
+    return 360 / Math.pow(2, (5 * precision + 1) / 2);
+  }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+
+package org.forgerock.openam.auth.nodes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Known locations of a device indexed by geohash prefix. A range query picks the precision whose
+ * cells are at least as large as the range, so only the few cells covering the range around the
+ * point have to be checked. The cells of a precision are built on first use.
+ */
+final class GeoIndex {
+
+  private static final int MAX_CELLS = 32;
+
+  private final List<GeoPoint> points;
+  private final List<String> hashes;
+  private final ConcurrentMap<Integer, Map<String, List<GeoPoint>>> cells =
+      new ConcurrentHashMap<>();
+
+  GeoIndex(List<GeoPoint> points) {
+    this.points = Collections.unmodifiableList(new ArrayList<>(points));
+    this.hashes = new ArrayList<>(points.size());
+    for (GeoPoint point : points) {
+      hashes.add(valid(point)
+          ? GeoHash.encode(point.getLatitude(), point.getLongitude(), GeoHash.MAX_PRECISION)
+          : null);
+    }
+  }
+
+  /**
+   * @return The indexed locations, most recent last
+   */
+  List<GeoPoint> getPoints() {
+    return points;
+  }
+
+  /**
+   * Check whether any indexed location is within a distance of a point.
+   *
+   * @param point The point
+   * @param distance The distance in kilometres
+   * @return true when at least one location is within the distance
+   */
+  boolean anyWithin(GeoPoint point, double distance) {
+    Set<String> keys = valid(point) && !hashes.contains(null) ? cover(point, distance) : null;
+    if (keys == null) {
+      return points.stream().anyMatch(p -> p.isWithin(point, distance));
+    }
+    Map<String, List<GeoPoint>> index = cells.computeIfAbsent(keys.iterator().next().length(),
+        this::index);
+    for (String key : keys) {
+      for (GeoPoint candidate : index.getOrDefault(key, Collections.emptyList())) {
+        if (candidate.isWithin(point, distance)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Compute the keys of the cells covering the range around a point.
+   *
+   * @return The keys, null when the range is too large for the index to help
+   */
+  private Set<String> cover(GeoPoint point, double distance) {
+    double angle = distance / GeoPoint.EARTH_RADIUS;
+    double dLat = Math.toDegrees(angle);
+    //The widest longitude of a spherical cap, reached poleward of its centre; a ratio of one or
+    //more means the cap contains a pole
+    double ratio = Math.sin(angle) / Math.cos(Math.toRadians(point.getLatitude()));
+    if (dLat >= 90 || ratio < 0 || ratio >= 1) {
+      return null;
+    }
+    double dLon = Math.toDegrees(Math.asin(ratio));
+
+    int precision = GeoHash.MAX_PRECISION;
+    while (precision > 0
+        && (GeoHash.height(precision) < dLat || GeoHash.width(precision) < dLat)) {
+      precision--;
+    }
+    if (precision == 0) {
+      return null;
+    }
+
+    double height = GeoHash.height(precision);
+    double width = GeoHash.width(precision);
+    double minLat = Math.max(-90, point.getLatitude() - dLat);
+    double maxLat = Math.min(90, point.getLatitude() + dLat);
+    double minLon = point.getLongitude() - dLon;
+    double maxLon = point.getLongitude() + dLon;
+    if ((maxLat - minLat) / height * (maxLon - minLon) / width > MAX_CELLS) {
+      return null;
+    }
+
+    Set<String> keys = new LinkedHashSet<>();
+    for (double lat = minLat; ; lat = Math.min(lat + height, maxLat)) {
+      for (double lon = minLon; ; lon = Math.min(lon + width, maxLon)) {
+        keys.add(GeoHash.encode(lat, wrap(lon), precision));
+        if (lon >= maxLon) {
+          break;
+        }
+      }
+      if (lat >= maxLat) {
+        break;
+      }
+    }
+    return keys;
+  }
+
+  private Map<String, List<GeoPoint>> index(int precision) {
+    Map<String, List<GeoPoint>> index = new HashMap<>();
+    for (int i = 0; i < points.size(); i++) {
+      index.computeIfAbsent(hashes.get(i).substring(0, precision), k -> new ArrayList<>())
+          .add(points.get(i));
+    }
+    return index;
+  }
+
+  private static boolean valid(GeoPoint point) {
+    return Math.abs(point.getLatitude()) <= 90 && Math.abs(point.getLongitude()) <= 180;
+  }
+
+  private static double wrap(double longitude) {
+    return ((longitude + 180) % 360 + 360) % 360 - 180;
+  }
+
+}
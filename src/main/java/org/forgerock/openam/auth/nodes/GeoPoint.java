@@ -0,0 +1,121 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+
+package org.forgerock.openam.auth.nodes;
+
+import static org.forgerock.openam.auth.nodes.DeviceLocationRangeNode.LATITUDE;
+import static org.forgerock.openam.auth.nodes.DeviceLocationRangeNode.LONGITUDE;
+
+import org.forgerock.json.JsonValue;
+
+/**
+ * A location on earth with its trigonometry precomputed, so repeated distance checks against the
+ * same point only pay for the other one.
+ *
+ * <p>
+ * Range checks first reject on the latitude difference alone, which is a lower bound of the
+ * distance, then settle short distances with an equirectangular approximation when it is clearly
+ * on one side of the range, and only compute the haversine distance otherwise.
+ * </p>
+ */
+final class GeoPoint {
+
+  static final double EARTH_RADIUS = 6371.0088;
+
+  /**
+   * Largest latitude or longitude difference, in radians, for which the equirectangular
+   * approximation is trusted.
+   */
+  private static final double EQUIRECTANGULAR_SPAN = 0.05;
+  private static final double EQUIRECTANGULAR_MARGIN = 0.02;
+
+  private final double latitude;
+  private final double longitude;
+  private final double lat;
+  private final double lon;
+  private final double cosLat;
+
+  GeoPoint(double latitude, double longitude) {
+    this.latitude = latitude;
+    this.longitude = longitude;
+    this.lat = Math.toRadians(latitude);
+    this.lon = Math.toRadians(longitude);
+    this.cosLat = Math.cos(lat);
+  }
+
+  /**
+   * Read a point from a location json.
+   *
+   * @param location The location with a latitude and longitude in degrees
+   * @return The point
+   */
+  static GeoPoint of(JsonValue location) {
+    return new GeoPoint(location.get(LATITUDE).asDouble(), location.get(LONGITUDE).asDouble());
+  }
+
+  double getLatitude() {
+    return latitude;
+  }
+
+  double getLongitude() {
+    return longitude;
+  }
+
+  /**
+   * Check whether another point is within a distance of this one.
+   *
+   * @param other The other point
+   * @param distance The distance in kilometres
+   * @return true when the great circle distance is below the distance
+   */
+  boolean isWithin(GeoPoint other, double distance) {
+    double dLat = Math.abs(lat - other.lat);
+    if (dLat * EARTH_RADIUS >= distance) {
+      return false;
+    }
+    double dLon = Math.abs(lon - other.lon);
+    if (dLon > Math.PI) {
+      dLon = 2 * Math.PI - dLon;
+    }
+    if (dLat < EQUIRECTANGULAR_SPAN && dLon < EQUIRECTANGULAR_SPAN) {
+      double x = dLon * (cosLat + other.cosLat) / 2;
+      double approximation = Math.sqrt(x * x + dLat * dLat) * EARTH_RADIUS;
+      if (approximation < distance * (1 - EQUIRECTANGULAR_MARGIN)) {
+        return true;
+      }
+      if (approximation > distance * (1 + EQUIRECTANGULAR_MARGIN)) {
+        return false;
+      }
+    }
+    return distanceTo(other) < distance;
+  }
+
+  /**
+   * Compute the haversine distance to another point.
+   *
+   * @param other The other point
+   * @return The great circle distance in kilometres
+   */
+  double distanceTo(GeoPoint other) {
+    double sinLat = Math.sin((lat - other.lat) / 2);
+    double sinLon = Math.sin((lon - other.lon) / 2);
+    double a = sinLat * sinLat + cosLat * other.cosLat * sinLon * sinLon;
+    return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+  }
+
+}
@@ -0,0 +1,214 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+
+import com.iplanet.am.util.SystemProperties;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import org.forgerock.json.JsonValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Default {@link DeviceMetrics}, kept in memory since the server started. Histograms and timers
+ * count their values in power of two buckets, so their percentiles are approximated within a
+ * factor of two, while their count, mean and max are exact.
+ *
+ * <p>
+ * With the {@value #REPORT} server property set, a {@link #snapshot()} is logged at that interval
+ * in seconds.
+ * </p>
+ */
+@Singleton
+public class InMemoryDeviceMetrics implements DeviceMetrics {
+
+  static final String REPORT = "org.forgerock.openam.auth.nodes.device.metrics.reportSeconds";
+
+  private final Logger logger = LoggerFactory.getLogger(InMemoryDeviceMetrics.class);
+  private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Histogram> timers = new ConcurrentHashMap<>();
+
+  /**
+   * Create the registry, reporting at the interval of the server property.
+   */
+  @Inject
+  public InMemoryDeviceMetrics() {
+    this(SystemProperties.getAsLong(REPORT, 0));
+  }
+
+  InMemoryDeviceMetrics(long reportSeconds) {
+    if (reportSeconds > 0) {
+      ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "DeviceMetricsReporter");
+        thread.setDaemon(true);
+        return thread;
+      });
+      reporter.scheduleWithFixedDelay(() -> logger.info("Device metrics {}", snapshot()),
+          reportSeconds, reportSeconds, TimeUnit.SECONDS);
+    }
+  }
+
+  @Override
+  public void time(String name, long nanos) {
+    timers.computeIfAbsent(name, k -> new Histogram()).record(nanos);
+  }
+
+  @Override
+  public void record(String name, long value) {
+    histograms.computeIfAbsent(name, k -> new Histogram()).record(value);
+  }
+
+  @Override
+  public void increment(String name) {
+    counters.computeIfAbsent(name, k -> new LongAdder()).increment();
+  }
+
+  /**
+   * Get the value of a counter.
+   *
+   * @param name The counter name
+   * @return The number of events counted, 0 when none
+   */
+  public long getCount(String name) {
+    LongAdder counter = counters.get(name);
+    return counter == null ? 0 : counter.sum();
+  }
+
+  /**
+   * Get a histogram.
+   *
+   * @param name The histogram name
+   * @return The histogram, empty when nothing has been recorded
+   */
+  public Histogram getHistogram(String name) {
+    return histograms.getOrDefault(name, new Histogram());
+  }
+
+  /**
+   * Get a timer.
+   *
+   * @param name The timer name
+   * @return The durations recorded in nanoseconds, empty when nothing has been recorded
+   */
+  public Histogram getTimer(String name) {
+    return timers.getOrDefault(name, new Histogram());
+  }
+
+  /**
+   * Snapshot all the metrics, sorted by name. Timers are reported in microseconds.
+   *
+   * @return The counters, histograms and timers
+   */
+  public JsonValue snapshot() {
+    Map<String, Object> counts = new TreeMap<>();
+    counters.forEach((name, counter) -> counts.put(name, counter.sum()));
+    Map<String, Object> values = new TreeMap<>();
+    histograms.forEach((name, histogram) -> values.put(name, histogram.summary(1)));
+    Map<String, Object> durations = new TreeMap<>();
+    timers.forEach((name, timer) -> durations.put(name, timer.summary(1000)));
+    return json(object(
+        field("counters", counts),
+        field("histograms", values),
+        field("timers", durations)));
+  }
+
+  /**
+   * Distribution of recorded values, in power of two buckets. Negative values count as 0.
+   */
+  public static final class Histogram {
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+    private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE);
+
+    void record(long value) {
+      long v = Math.max(value, 0);
+      count.increment();
+      sum.add(v);
+      max.accumulate(v);
+      buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(v));
+    }
+
+    /**
+     * @return The number of values recorded
+     */
+    public long getCount() {
+      return count.sum();
+    }
+
+    /**
+     * @return The mean of the values, 0 when empty
+     */
+    public double getMean() {
+      long n = count.sum();
+      return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * @return The largest value, 0 when empty
+     */
+    public long getMax() {
+      return max.get();
+    }
+
+    /**
+     * Approximate a percentile by the upper bound of its bucket, capped by the largest value.
+     *
+     * @param percentile The percentile, between 0 and 100
+     * @return The approximated value, 0 when empty
+     */
+    public long getPercentile(double percentile) {
+      long n = count.sum();
+      long rank = (long) Math.ceil(n * percentile / 100);
+      long seen = 0;
+      for (int i = 0; i < buckets.length(); i++) {
+        seen += buckets.get(i);
+        if (seen >= rank && seen > 0) {
+          return i == 0 ? 0 : Math.min((1L << i) - 1, getMax());
+        }
+      }
+      return getMax();
+    }
+
+    private Map<String, Object> summary(long unit) {
+      return object(
+          field("count", getCount()),
+          field("mean", getMean() / unit),
+          field("p50", getPercentile(50) / unit),
+          field("p99", getPercentile(99) / unit),
+          field("max", getMax() / unit));
+    }
+  }
+
+}
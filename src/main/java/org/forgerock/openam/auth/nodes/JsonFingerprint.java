@@ -0,0 +1,113 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import com.fasterxml.jackson.core.util.BufferRecyclers;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.forgerock.json.JsonValue;
+
+/**
+ * Canonical form and hash of a json structure. Object keys are sorted, insignificant whitespace is
+ * dropped and numbers are written without trailing zeros, so two structurally equal json values
+ * always produce the same fingerprint regardless of key order or number representation.
+ */
+public final class JsonFingerprint {
+
+  private static final String ALGORITHM = "SHA-256";
+
+  private JsonFingerprint() {
+  }
+
+  /**
+   * Compute the fingerprint of a json value.
+   *
+   * @param value The json value
+   * @return The base64 encoded SHA-256 hash of the canonical form
+   */
+  public static String of(JsonValue value) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance(ALGORITHM);
+      return Base64.getEncoder().encodeToString(
+          digest.digest(canonicalize(value).getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Write the canonical json representation of a value.
+   *
+   * @param value The json value
+   * @return The canonical json string
+   */
+  public static String canonicalize(JsonValue value) {
+    StringBuilder builder = new StringBuilder();
+    write(builder, value.getObject());
+    return builder.toString();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void write(StringBuilder builder, Object object) {
+    if (object instanceof Map) {
+      builder.append('{');
+      boolean first = true;
+      for (Map.Entry<String, Object> entry : new TreeMap<>((Map<String, Object>) object)
+          .entrySet()) {
+        if (!first) {
+          builder.append(',');
+        }
+        first = false;
+        writeString(builder, entry.getKey());
+        builder.append(':');
+        write(builder, entry.getValue());
+      }
+      builder.append('}');
+    } else if (object instanceof List) {
+      builder.append('[');
+      boolean first = true;
+      for (Object item : (List<Object>) object) {
+        if (!first) {
+          builder.append(',');
+        }
+        first = false;
+        write(builder, item);
+      }
+      builder.append(']');
+    } else if (object instanceof Number) {
+      builder.append(new BigDecimal(object.toString()).stripTrailingZeros().toPlainString());
+    } else if (object instanceof String) {
+      writeString(builder, (String) object);
+    } else {
+      builder.append(object);
+    }
+  }
+
+  private static void writeString(StringBuilder builder, String value) {
+    builder.append('"');
+    BufferRecyclers.getJsonStringEncoder().quoteAsString(value, builder);
+    builder.append('"');
+  }
+
+}
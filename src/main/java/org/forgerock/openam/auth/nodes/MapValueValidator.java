@@ -0,0 +1,53 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import com.sun.identity.sm.ServiceAttributeValidator;
+import java.util.Set;
+
+/**
+ * Validates the entries of a map attribute, whose values are stored as {@code [key]=value}.
+ */
+public abstract class MapValueValidator implements ServiceAttributeValidator {
+
+  @Override
+  public boolean validate(Set<String> values) {
+    try {
+      for (String value : values) {
+        int separator = value.indexOf("]=");
+        if (!value.startsWith("[") || separator < 0) {
+          return false;
+        }
+        validate(value.substring(1, separator), value.substring(separator + 2));
+      }
+      return true;
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Validate an entry of the map.
+   *
+   * @param key The key of the entry
+   * @param value The value of the entry
+   * @throws IllegalArgumentException When the entry is invalid
+   */
+  protected abstract void validate(String key, String value);
+
+}
@@ -0,0 +1,239 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+
+package org.forgerock.openam.auth.nodes;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Named polygons indexed by an R-tree of their bounding boxes, bulk loaded with the
+ * Sort-Tile-Recursive algorithm. A point lookup only descends into the boxes containing the
+ * point, then runs the exact point-in-polygon test on the few polygons left. Indexes are built
+ * once per distinct configuration and shared.
+ *
+ * <p>
+ * Polygons are written as {@code latitude,longitude} vertices separated by {@code ;}, and must
+ * not cross the antimeridian.
+ * </p>
+ */
+final class PolygonIndex {
+
+  private static final int NODE_CAPACITY = 8;
+
+  private static final LoadingCache<Map<String, String>, PolygonIndex> COMPILED = CacheBuilder
+      .newBuilder()
+      .maximumSize(100)
+      .build(CacheLoader.from(PolygonIndex::new));
+
+  private final Entry root;
+
+  private PolygonIndex(Map<String, String> polygons) {
+    List<Entry> level = new ArrayList<>();
+    polygons.forEach((name, vertices) -> level.add(new Entry(new Polygon(name, vertices))));
+    this.root = level.isEmpty() ? null : build(level);
+  }
+
+  /**
+   * Get the index of a configuration.
+   *
+   * @param polygons The vertices of each polygon keyed by name
+   * @return The index
+   */
+  static PolygonIndex compile(Map<String, String> polygons) {
+    return COMPILED.getUnchecked(new HashMap<>(polygons));
+  }
+
+  /**
+   * Parse a polygon, as done when compiling an index.
+   *
+   * @param name The name of the polygon
+   * @param vertices The vertices of the polygon
+   * @throws IllegalArgumentException When the vertices are malformed
+   */
+  static void validate(String name, String vertices) {
+    new Polygon(name, vertices);
+  }
+
+  /**
+   * Find a polygon containing a point.
+   *
+   * @param latitude The latitude of the point in degrees
+   * @param longitude The longitude of the point in degrees
+   * @return The name of a polygon containing the point, empty when none does
+   */
+  Optional<String> find(double latitude, double longitude) {
+    if (root == null) {
+      return Optional.empty();
+    }
+    Deque<Entry> pending = new ArrayDeque<>();
+    pending.push(root);
+    while (!pending.isEmpty()) {
+      Entry entry = pending.pop();
+      if (!entry.contains(latitude, longitude)) {
+        continue;
+      }
+      if (entry.polygon != null) {
+        if (entry.polygon.contains(latitude, longitude)) {
+          return Optional.of(entry.polygon.name);
+        }
+      } else {
+        entry.children.forEach(pending::push);
+      }
+    }
+    return Optional.empty();
+  }
+
+  private static Entry build(List<Entry> entries) {
+    List<Entry> level = entries;
+    while (level.size() > 1) {
+      level = pack(level);
+    }
+    return level.get(0);
+  }
+
+  /**
+   * Group the entries of a level into parents of at most {@link #NODE_CAPACITY} entries. Entries
+   * are sorted into vertical slices by longitude, then each slice is tiled by latitude.
+   */
+  private static List<Entry> pack(List<Entry> entries) {
+    int parents = (entries.size() + NODE_CAPACITY - 1) / NODE_CAPACITY;
+    int slices = (int) Math.ceil(Math.sqrt(parents));
+    int sliceSize = slices * NODE_CAPACITY;
+
+    List<Entry> sorted = new ArrayList<>(entries);
+    sorted.sort(Comparator.comparingDouble(e -> e.minLon + e.maxLon));
+    List<Entry> level = new ArrayList<>(parents);
+    for (int i = 0; i < sorted.size(); i += sliceSize) {
+      List<Entry> slice = new ArrayList<>(sorted.subList(i, Math.min(i + sliceSize,
+          sorted.size())));
+      slice.sort(Comparator.comparingDouble(e -> e.minLat + e.maxLat));
+      for (int j = 0; j < slice.size(); j += NODE_CAPACITY) {
+        level.add(new Entry(slice.subList(j, Math.min(j + NODE_CAPACITY, slice.size()))));
+      }
+    }
+    return level;
+  }
+
+  /**
+   * A node of the tree, either a polygon or the parent of other entries, with its bounding box.
+   */
+  private static final class Entry {
+
+    private final Polygon polygon;
+    private final List<Entry> children;
+    private final double minLat;
+    private final double maxLat;
+    private final double minLon;
+    private final double maxLon;
+
+    Entry(Polygon polygon) {
+      this.polygon = polygon;
+      this.children = null;
+      this.minLat = polygon.minLat;
+      this.maxLat = polygon.maxLat;
+      this.minLon = polygon.minLon;
+      this.maxLon = polygon.maxLon;
+    }
+
+    Entry(List<Entry> children) {
+      this.polygon = null;
+      this.children = new ArrayList<>(children);
+      this.minLat = children.stream().mapToDouble(e -> e.minLat).min().getAsDouble();
+      this.maxLat = children.stream().mapToDouble(e -> e.maxLat).max().getAsDouble();
+      this.minLon = children.stream().mapToDouble(e -> e.minLon).min().getAsDouble();
+      this.maxLon = children.stream().mapToDouble(e -> e.maxLon).max().getAsDouble();
+    }
+
+    boolean contains(double latitude, double longitude) {
+      return latitude >= minLat && latitude <= maxLat
+          && longitude >= minLon && longitude <= maxLon;
+    }
+  }
+
+  private static final class Polygon {
+
+    private final String name;
+    private final double[] lat;
+    private final double[] lon;
+    private double minLat = Double.POSITIVE_INFINITY;
+    private double maxLat = Double.NEGATIVE_INFINITY;
+    private double minLon = Double.POSITIVE_INFINITY;
+    private double maxLon = Double.NEGATIVE_INFINITY;
+
+    Polygon(String name, String vertices) {
+      this.name = name;
+      String[] points = vertices.trim().split("\\s*;\\s*");
+      if (points.length < 3) {
+        throw new IllegalArgumentException("Polygon " + name + " needs at least 3 vertices");
+      }
+      this.lat = new double[points.length];
+      this.lon = new double[points.length];
+      for (int i = 0; i < points.length; i++) {
+        String[] coordinates = points[i].split("\\s*,\\s*");
+        if (coordinates.length != 2) {
+          throw new IllegalArgumentException("Invalid vertex " + points[i] + " of " + name);
+        }
+        lat[i] = coordinate(coordinates[0], 90, "latitude");
+        lon[i] = coordinate(coordinates[1], 180, "longitude");
+        minLat = Math.min(minLat, lat[i]);
+        maxLat = Math.max(maxLat, lat[i]);
+        minLon = Math.min(minLon, lon[i]);
+        maxLon = Math.max(maxLon, lon[i]);
+      }
+    }
+
+    private double coordinate(String value, double limit, String axis) {
+      double coordinate;
+      try {
+        coordinate = Double.parseDouble(value);
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Invalid " + axis + " " + value + " of " + name, e);
+      }
+      if (!(Math.abs(coordinate) <= limit)) {
+        throw new IllegalArgumentException("The " + axis + " " + value + " of " + name
+            + " is not between -" + (int) limit + " and " + (int) limit);
+      }
+      return coordinate;
+    }
+
+    /**
+     * Ray casting test, counting the edges crossed by a ray from the point towards the east.
+     */
+    boolean contains(double latitude, double longitude) {
+      boolean inside = false;
+      for (int i = 0, j = lat.length - 1; i < lat.length; j = i++) {
+        if ((lat[i] > latitude) != (lat[j] > latitude)
+            && longitude < (lon[j] - lon[i]) * (latitude - lat[i]) / (lat[j] - lat[i]) + lon[i]) {
+          inside = !inside;
+        }
+      }
+      return inside;
+    }
+  }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.Objects;
+import org.forgerock.json.JsonValue;
+
+/**
+ * Weighted similarity of two device profiles over a fixed set of fields. Each field is a slash
+ * separated path into the profile, e.g. {@code platform/model}, with a weight. Matchers are
+ * compiled once by the node using them.
+ */
+final class ProfileMatcher {
+
+  private final String[][] paths;
+  private final double[] weights;
+
+  /**
+   * Compile a matcher.
+   *
+   * @param fieldWeights The weight of each profile field keyed by path
+   * @throws IllegalArgumentException When a weight is invalid, see {@link #weight(String, String)}
+   */
+  ProfileMatcher(Map<String, String> fieldWeights) {
+    this.paths = new String[fieldWeights.size()][];
+    this.weights = new double[fieldWeights.size()];
+    int i = 0;
+    for (Map.Entry<String, String> field : fieldWeights.entrySet()) {
+      paths[i] = field.getKey().replaceAll("^/+", "").split("/");
+      weights[i] = weight(field.getKey(), field.getValue());
+      i++;
+    }
+  }
+
+  /**
+   * Parse the weight of a profile field.
+   *
+   * @param field The path of the field
+   * @param weight The configured weight
+   * @return The weight
+   * @throws IllegalArgumentException When the weight is not a positive or zero number
+   */
+  static double weight(String field, String weight) {
+    double value = Double.parseDouble(weight.trim());
+    if (!(value >= 0) || Double.isInfinite(value)) {
+      throw new IllegalArgumentException("Invalid weight " + weight + " for profile field "
+          + field);
+    }
+    return value;
+  }
+
+  /**
+   * Score the similarity of the collected and stored profiles. Fields missing from both profiles
+   * are left out of the score.
+   *
+   * @param collected The collected profile
+   * @param stored The stored profile
+   * @return The weighted percentage of matching fields, 0 when no field is present
+   */
+  double score(JsonValue collected, JsonValue stored) {
+    double total = 0;
+    double matched = 0;
+    for (int i = 0; i < paths.length; i++) {
+      Object left = resolve(collected, paths[i]);
+      Object right = resolve(stored, paths[i]);
+      if (left == null && right == null) {
+        continue;
+      }
+      total += weights[i];
+      if (equal(left, right)) {
+        matched += weights[i];
+      }
+    }
+    return total == 0 ? 0 : matched * 100 / total;
+  }
+
+  private static Object resolve(JsonValue profile, String[] path) {
+    JsonValue value = profile;
+    for (String segment : path) {
+      if (!value.isDefined(segment)) {
+        return null;
+      }
+      value = value.get(segment);
+    }
+    return value.getObject();
+  }
+
+  private static boolean equal(Object left, Object right) {
+    if (left instanceof Number && right instanceof Number) {
+      return new BigDecimal(left.toString()).compareTo(new BigDecimal(right.toString())) == 0;
+    }
+    if (left instanceof Map || left instanceof Iterable) {
+      return right != null && JsonFingerprint.canonicalize(new JsonValue(left))
+          .equals(JsonFingerprint.canonicalize(new JsonValue(right)));
+    }
+    return Objects.equals(left, right);
+  }
+
+}
@@ -0,0 +1,374 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+
+package org.forgerock.openam.auth.nodes;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import org.forgerock.json.JsonValue;
+
+/**
+ * A boolean expression over the fields of a device profile, e.g.
+ * {@code platform.jailBreakScore > 0.5 && platform.version < 12}. Expressions are parsed once per
+ * distinct text into a tree of conditions and shared, testing a profile walks the raw profile
+ * without allocating.
+ *
+ * <p>
+ * Operands are dot separated profile paths, numbers, quoted strings, {@code true}, {@code false}
+ * and {@code null}. They are compared with {@code == != < <= > >=}, and conditions combined with
+ * {@code && || !} and parentheses. A string holding a number is compared with a number as a
+ * number. A comparison with a missing field is false, except against {@code null}, and an operand
+ * on its own is true when it is the boolean {@code true}.
+ * </p>
+ */
+final class ProfilePredicate {
+
+  private static final LoadingCache<String, ProfilePredicate> COMPILED = CacheBuilder
+      .newBuilder()
+      .maximumSize(100)
+      .build(CacheLoader.from(ProfilePredicate::new));
+
+  private final Condition condition;
+
+  private ProfilePredicate(String expression) {
+    this.condition = new Parser(expression).parse();
+  }
+
+  /**
+   * Get the compiled predicate of an expression.
+   *
+   * @param expression The expression
+   * @return The predicate
+   * @throws IllegalArgumentException When the expression is malformed
+   */
+  static ProfilePredicate compile(String expression) {
+    try {
+      return COMPILED.getUnchecked(expression);
+    } catch (RuntimeException e) {
+      throw e.getCause() instanceof IllegalArgumentException
+          ? (IllegalArgumentException) e.getCause() : e;
+    }
+  }
+
+  /**
+   * Check an expression without caching it.
+   *
+   * @param expression The expression
+   * @throws IllegalArgumentException When the expression is malformed
+   */
+  static void validate(String expression) {
+    new Parser(expression).parse();
+  }
+
+  /**
+   * Test a profile.
+   *
+   * @param profile The device profile
+   * @return Whether the profile matches the expression
+   */
+  boolean test(JsonValue profile) {
+    return condition.test(profile.getObject());
+  }
+
+  private interface Condition {
+
+    boolean test(Object profile);
+  }
+
+  private interface Operand {
+
+    Object value(Object profile);
+  }
+
+  private enum Operator {
+    EQ("=="), NE("!="), LE("<="), GE(">="), LT("<"), GT(">");
+
+    private final String symbol;
+
+    Operator(String symbol) {
+      this.symbol = symbol;
+    }
+
+    boolean test(int comparison) {
+      switch (this) {
+        case EQ:
+          return comparison == 0;
+        case NE:
+          return comparison != 0;
+        case LE:
+          return comparison <= 0;
+        case GE:
+          return comparison >= 0;
+        case LT:
+          return comparison < 0;
+        default:
+          return comparison > 0;
+      }
+    }
+
+    boolean test(Object left, Object right) {
+      if (left instanceof Number || right instanceof Number) {
+        Double l = number(left);
+        Double r = number(right);
+        if (l != null && r != null) {
+          return test(l < r ? -1 : l > r ? 1 : 0);
+        }
+      }
+      if (left instanceof String && right instanceof String) {
+        return test(((String) left).compareTo((String) right));
+      }
+      if (this == EQ) {
+        return Objects.equals(left, right);
+      }
+      return this == NE && left != null && !Objects.equals(left, right);
+    }
+  }
+
+  /**
+   * The value of a number, or of a string holding a finite number as reported by some clients,
+   * e.g. {@code "12.1"}.
+   *
+   * @return The number, null when the value is not one
+   */
+  private static Double number(Object value) {
+    if (value instanceof Number) {
+      return ((Number) value).doubleValue();
+    }
+    if (value instanceof String) {
+      try {
+        double number = Double.parseDouble((String) value);
+        return Double.isFinite(number) ? number : null;
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+    return null;
+  }
+
+  private static final class Path implements Operand {
+
+    private final String[] segments;
+    private final int[] indexes;
+
+    Path(List<String> segments) {
+      this.segments = segments.toArray(new String[0]);
+      this.indexes = new int[this.segments.length];
+      for (int i = 0; i < this.segments.length; i++) {
+        indexes[i] = this.segments[i].chars().allMatch(Character::isDigit)
+            ? Integer.parseInt(this.segments[i]) : -1;
+      }
+    }
+
+    @Override
+    public Object value(Object profile) {
+      Object value = profile;
+      for (int i = 0; i < segments.length; i++) {
+        if (value instanceof JsonValue) {
+          value = ((JsonValue) value).getObject();
+        }
+        if (value instanceof Map) {
+          value = ((Map<?, ?>) value).get(segments[i]);
+        } else if (value instanceof List && indexes[i] >= 0
+            && indexes[i] < ((List<?>) value).size()) {
+          value = ((List<?>) value).get(indexes[i]);
+        } else {
+          return null;
+        }
+      }
+      return value instanceof JsonValue ? ((JsonValue) value).getObject() : value;
+    }
+  }
+
+  /**
+   * Recursive descent parser of the expressions.
+   */
+  private static final class Parser {
+
+    private final String expression;
+    private int position;
+
+    Parser(String expression) {
+      this.expression = expression == null ? "" : expression;
+    }
+
+    Condition parse() {
+      Condition condition = or();
+      skipSpaces();
+      if (position < expression.length()) {
+        throw error("Unexpected '" + expression.charAt(position) + "'");
+      }
+      return condition;
+    }
+
+    private Condition or() {
+      Condition condition = and();
+      while (accept("||")) {
+        Condition left = condition;
+        Condition right = and();
+        condition = profile -> left.test(profile) || right.test(profile);
+      }
+      return condition;
+    }
+
+    private Condition and() {
+      Condition condition = unary();
+      while (accept("&&")) {
+        Condition left = condition;
+        Condition right = unary();
+        condition = profile -> left.test(profile) && right.test(profile);
+      }
+      return condition;
+    }
+
+    private Condition unary() {
+      if (accept("!")) {
+        Condition negated = unary();
+        return profile -> !negated.test(profile);
+      }
+      if (accept("(")) {
+        Condition condition = or();
+        expect(")");
+        return condition;
+      }
+      Operand left = operand();
+      for (Operator operator : Operator.values()) {
+        if (accept(operator.symbol)) {
+          Operand right = operand();
+          return profile -> operator.test(left.value(profile), right.value(profile));
+        }
+      }
+      return profile -> Boolean.TRUE.equals(left.value(profile));
+    }
+
+    private Operand operand() {
+      skipSpaces();
+      if (position >= expression.length()) {
+        throw error("Missing operand");
+      }
+      char c = expression.charAt(position);
+      if (c == '"' || c == '\'') {
+        return constant(string(c));
+      }
+      if (c == '-' || c == '.' || Character.isDigit(c)) {
+        return constant(number());
+      }
+      List<String> segments = new ArrayList<>();
+      do {
+        segments.add(segment());
+      } while (accept("."));
+      if (segments.size() == 1) {
+        switch (segments.get(0)) {
+          case "true":
+            return constant(Boolean.TRUE);
+          case "false":
+            return constant(Boolean.FALSE);
+          case "null":
+            return constant(null);
+          default:
+        }
+      }
+      return new Path(segments);
+    }
+
+    private static Operand constant(Object value) {
+      return profile -> value;
+    }
+
+    private String segment() {
+      int start = position;
+      while (position < expression.length()
+          && (Character.isLetterOrDigit(expression.charAt(position))
+          || expression.charAt(position) == '_' || expression.charAt(position) == '$')) {
+        position++;
+      }
+      if (start == position) {
+        throw error("Expected a profile path");
+      }
+      return expression.substring(start, position);
+    }
+
+    private Double number() {
+      int start = position;
+      if (expression.charAt(position) == '-') {
+        position++;
+      }
+      while (position < expression.length()
+          && (Character.isDigit(expression.charAt(position))
+          || ".eE".indexOf(expression.charAt(position)) >= 0
+          || (expression.charAt(position) == '-'
+          && "eE".indexOf(expression.charAt(position - 1)) >= 0))) {
+        position++;
+      }
+      try {
+        return Double.valueOf(expression.substring(start, position));
+      } catch (NumberFormatException e) {
+        position = start;
+        throw error("Malformed number");
+      }
+    }
+
+    private String string(char quote) {
+      StringBuilder value = new StringBuilder();
+      position++;
+      while (position < expression.length() && expression.charAt(position) != quote) {
+        if (expression.charAt(position) == '\\' && position + 1 < expression.length()) {
+          position++;
+        }
+        value.append(expression.charAt(position++));
+      }
+      if (position >= expression.length()) {
+        throw error("Unterminated string");
+      }
+      position++;
+      return value.toString();
+    }
+
+    private boolean accept(String token) {
+      skipSpaces();
+      if (expression.startsWith(token, position)) {
+        position += token.length();
+        return true;
+      }
+      return false;
+    }
+
+    private void expect(String token) {
+      if (!accept(token)) {
+        throw error("Expected '" + token + "'");
+      }
+    }
+
+    private void skipSpaces() {
+      while (position < expression.length()
+          && Character.isWhitespace(expression.charAt(position))) {
+        position++;
+      }
+    }
+
+    private IllegalArgumentException error(String message) {
+      return new IllegalArgumentException(message + " at position " + position
+          + " of profile expression: " + expression);
+    }
+  }
+
+}
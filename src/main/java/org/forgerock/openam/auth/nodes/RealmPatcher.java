@@ -0,0 +1,214 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+
+package org.forgerock.openam.auth.nodes;
+
+import com.iplanet.sso.SSOException;
+import com.sun.identity.sm.SMSException;
+import com.sun.identity.sm.ServiceConfig;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.forgerock.openam.utils.CollectionUtils;
+
+/**
+ * Adds the device attribute object class and attributes to the LDAPv3 data stores of the realms.
+ * Realms are patched in parallel with a bounded number of threads, each sub configuration being
+ * fetched once, and patching a realm that already has them changes nothing.
+ *
+ * <p>
+ * The data stores patched successfully are recorded by realm and sub configuration name, and the
+ * realms whose data stores were all patched are recorded as well. The records can be saved in a
+ * state file, so that the next startups skip the recorded realms without reading their
+ * configuration.
+ * </p>
+ */
+final class RealmPatcher {
+
+  static final String USER_ATTRIBUTES = "sun-idrepo-ldapv3-config-user-attributes";
+  static final String USER_OBJECTCLASS = "sun-idrepo-ldapv3-config-user-objectclass";
+  static final String DEVICE_ATTRIBUTE_CONTAINER = "deviceAttributeContainer";
+  static final Set<String> ATTRIBUTES = CollectionUtils.asSet("deviceAttributes");
+  private static final String STATE_HEADER = "# Data stores patched for the device attributes, v2";
+
+  private final RealmConfigs configs;
+  private final int concurrency;
+
+  /**
+   * Source of the data store configuration of the realms.
+   */
+  interface RealmConfigs {
+
+    ServiceConfig get(String realm) throws SMSException, SSOException;
+  }
+
+  /**
+   * Create a patcher.
+   *
+   * @param configs The data store configuration of each realm
+   * @param concurrency The maximum number of realms patched at the same time
+   */
+  RealmPatcher(RealmConfigs configs, int concurrency) {
+    this.configs = configs;
+    this.concurrency = Math.max(1, concurrency);
+  }
+
+  /**
+   * Patch the data stores of the realms which are not recorded as patched yet.
+   *
+   * @param realms The realms to patch
+   * @param patched The realms and data stores recorded as patched, see {@link #key(String)} and
+   *     {@link #key(String, String)}, to which the realms and data stores patched are added
+   * @return The error of each realm which could not be patched, empty when all have been
+   * @throws InterruptedException When interrupted while waiting for the realms
+   */
+  Map<String, Exception> patch(Collection<String> realms, Set<String> patched)
+      throws InterruptedException {
+    Map<String, Exception> failures = new LinkedHashMap<>();
+    Set<String> recorded = Collections.unmodifiableSet(new HashSet<>(patched));
+    List<String> pending = new ArrayList<>();
+    for (String realm : realms) {
+      if (!recorded.contains(key(realm))) {
+        pending.add(realm);
+      }
+    }
+    if (pending.isEmpty()) {
+      return failures;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(concurrency, pending.size()),
+        runnable -> {
+          Thread thread = new Thread(runnable, "DeviceAttributeRealmPatcher");
+          thread.setDaemon(true);
+          return thread;
+        });
+    try {
+      Map<String, Future<Set<String>>> results = new LinkedHashMap<>();
+      for (String realm : pending) {
+        Callable<Set<String>> task = () -> patch(realm, recorded);
+        results.put(realm, executor.submit(task));
+      }
+      for (Map.Entry<String, Future<Set<String>>> result : results.entrySet()) {
+        try {
+          patched.addAll(result.getValue().get());
+        } catch (ExecutionException e) {
+          failures.put(result.getKey(), e.getCause() instanceof Exception
+              ? (Exception) e.getCause() : e);
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    return failures;
+  }
+
+  private Set<String> patch(String realm, Set<String> recorded)
+      throws SMSException, SSOException {
+    Set<String> patched = new HashSet<>();
+    ServiceConfig sc = configs.get(realm);
+    Set<String> subConfigNames = sc.getSubConfigNames("*", "LDAPv3*");
+    for (String subConfigName : subConfigNames) {
+      String key = key(realm, subConfigName);
+      if (recorded.contains(key)) {
+        continue;
+      }
+      ServiceConfig subConfig = sc.getSubConfig(subConfigName);
+      Set<String> current = subConfig.getAttributeValue(USER_OBJECTCLASS);
+      if (CollectionUtils.isNotEmpty(current) && !current.contains(DEVICE_ATTRIBUTE_CONTAINER)) {
+        Set<String> updated = new HashSet<>();
+        updated.add(DEVICE_ATTRIBUTE_CONTAINER);
+        subConfig.addAttribute(USER_OBJECTCLASS, updated);
+      }
+      Set<String> currentAttrs = subConfig.getAttributeValue(USER_ATTRIBUTES);
+      if (CollectionUtils.isNotEmpty(currentAttrs) && !currentAttrs.containsAll(ATTRIBUTES)) {
+        subConfig.addAttribute(USER_ATTRIBUTES, new HashSet<>(ATTRIBUTES));
+      }
+      patched.add(key);
+    }
+    patched.add(key(realm));
+    return patched;
+  }
+
+  /**
+   * The key recording all the data stores of a realm as patched.
+   *
+   * @param realm The realm
+   * @return The key
+   */
+  static String key(String realm) {
+    return key(realm, "*");
+  }
+
+  /**
+   * The key recording a data store as patched.
+   *
+   * @param realm The realm
+   * @param subConfigName The sub configuration name of the data store
+   * @return The key
+   */
+  static String key(String realm, String subConfigName) {
+    return realm + "\t" + subConfigName;
+  }
+
+  /**
+   * The realm of a key recording a data store as patched.
+   *
+   * @param key The key
+   * @return The realm
+   */
+  static String realm(String key) {
+    return key.substring(0, key.lastIndexOf('\t'));
+  }
+
+  /**
+   * Read the data stores recorded as patched.
+   *
+   * @param state The state file
+   * @return The recorded data stores, empty when the file does not exist or is from another
+   *     version
+   * @throws IOException When the file cannot be read
+   */
+  static Set<String> load(Path state) throws IOException {
+    return new LinkedHashSet<>(StateFile.read(state, STATE_HEADER));
+  }
+
+  /**
+   * Record the data stores patched, replacing the state file atomically.
+   *
+   * @param state The state file
+   * @param patched The patched data stores
+   * @throws IOException When the file cannot be written
+   */
+  static void save(Path state, Collection<String> patched) throws IOException {
+    StateFile.write(state, STATE_HEADER, new TreeSet<>(patched));
+  }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+
+package org.forgerock.openam.auth.nodes;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A small text file of the plugin in the AM configuration directory, one entry per line after a
+ * header line naming its format, used to remember the work already done across restarts.
+ */
+final class StateFile {
+
+  private StateFile() {
+  }
+
+  /**
+   * Read the entries of a state file.
+   *
+   * @param file The state file
+   * @param header The expected header
+   * @return The entries, empty when the file does not exist or has another header
+   * @throws IOException When the file cannot be read
+   */
+  static List<String> read(Path file, String header) throws IOException {
+    if (!Files.isRegularFile(file)) {
+      return Collections.emptyList();
+    }
+    List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+    if (lines.isEmpty() || !header.equals(lines.get(0))) {
+      return Collections.emptyList();
+    }
+    return lines.subList(1, lines.size());
+  }
+
+  /**
+   * Replace the entries of a state file atomically.
+   *
+   * @param file The state file
+   * @param header The header
+   * @param entries The entries
+   * @throws IOException When the file cannot be written
+   */
+  static void write(Path file, String header, Collection<String> entries) throws IOException {
+    List<String> lines = new ArrayList<>();
+    lines.add(header);
+    lines.addAll(entries);
+    Path temporary = Files.createTempFile(file.toAbsolutePath().getParent(),
+        file.getFileName().toString(), ".tmp");
+    try {
+      Files.write(temporary, lines, StandardCharsets.UTF_8);
+      Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  /**
+   * Add an entry to a state file, which must exist.
+   *
+   * @param file The state file
+   * @param entry The entry
+   * @throws IOException When the file cannot be written
+   */
+  static void append(Path file, String entry) throws IOException {
+    Files.write(file, Collections.singletonList(entry), StandardCharsets.UTF_8,
+        StandardOpenOption.APPEND);
+  }
+
+}
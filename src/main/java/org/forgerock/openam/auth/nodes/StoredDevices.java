@@ -0,0 +1,262 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2017-2018 ForgeRock AS.
+ */
+
+
+package org.forgerock.openam.auth.nodes;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.utils.JsonValueBuilder;
+
+/**
+ * Snapshot of the device records stored for a user, indexed by device identifier. Instances are
+ * shared through the {@link DeviceRegistryCache}, the records returned must not be modified.
+ *
+ * <p>
+ * The raw values are decoded with a streaming parser. Building the index only reads the top level
+ * identifier of each value, skipping everything else without materializing it, and a record, or
+ * the requested attributes of it, is only materialized the first time it is requested.
+ * </p>
+ */
+public final class StoredDevices {
+
+  private static final String IDENTIFIER = DeviceAttribute.IDENTIFIER.getAttributeName();
+  private static final String LOCATION = DeviceAttribute.LOCATION.getAttributeName();
+  private static final String LOCATION_HISTORY = DeviceRepository.LOCATION_HISTORY;
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+  private static final JsonFactory FACTORY = MAPPER.getFactory();
+
+  private final Set<String> values;
+  private final Map<String, String> identifiers;
+  private final Map<String, String> index;
+  private final ConcurrentMap<String, JsonValue> records = new ConcurrentHashMap<>();
+  private final ConcurrentMap<List<String>, JsonValue> partials = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Optional<GeoPoint>> locations = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Optional<GeoIndex>> histories = new ConcurrentHashMap<>();
+
+  private StoredDevices(Set<String> values) {
+    this.values = Collections.unmodifiableSet(new LinkedHashSet<>(values));
+    this.identifiers = new HashMap<>();
+    this.index = new HashMap<>();
+    for (String value : this.values) {
+      String identifier = identifierOf(value);
+      identifiers.put(value, identifier);
+      if (identifier != null) {
+        index.putIfAbsent(identifier, value);
+      }
+    }
+  }
+
+  /**
+   * Index the stored values of the device attribute.
+   *
+   * @param values The raw json string of each stored device, may be null
+   * @return The stored devices
+   */
+  public static StoredDevices of(Set<String> values) {
+    return new StoredDevices(values == null ? Collections.emptySet() : values);
+  }
+
+  /**
+   * Get the stored record of a device, parsing it on first access.
+   *
+   * @param identifier The device identifier
+   * @return The stored record, empty when the device is unknown
+   */
+  public Optional<JsonValue> get(String identifier) {
+    String value = index.get(identifier);
+    if (value == null) {
+      return Optional.empty();
+    }
+    return Optional.of(records.computeIfAbsent(identifier,
+        k -> JsonValueBuilder.toJsonValue(value)));
+  }
+
+  /**
+   * Get some attributes of the stored record of a device. Only the requested attributes are
+   * materialized, unless the whole record has already been parsed.
+   *
+   * @param identifier The device identifier
+   * @param attributes The top level attributes needed
+   * @return The stored record, holding at least the requested attributes when present, empty when
+   * the device is unknown
+   */
+  public Optional<JsonValue> get(String identifier, String... attributes) {
+    String value = index.get(identifier);
+    if (value == null) {
+      return Optional.empty();
+    }
+    JsonValue record = records.get(identifier);
+    if (record != null) {
+      return Optional.of(record);
+    }
+    List<String> key = new ArrayList<>(attributes.length + 1);
+    key.add(identifier);
+    key.addAll(Arrays.asList(attributes));
+    return Optional.of(partials.computeIfAbsent(key,
+        k -> read(value, Arrays.asList(attributes))));
+  }
+
+  /**
+   * Get the stored location of a device, with its trigonometry precomputed once per snapshot.
+   *
+   * @param identifier The device identifier
+   * @return The stored location, empty when the device is unknown or has no complete location
+   */
+  Optional<GeoPoint> getLocation(String identifier) {
+    return locations.computeIfAbsent(identifier, k -> get(k, LOCATION)
+        .map(record -> record.get(LOCATION))
+        .filter(StoredDevices::isLocation)
+        .map(GeoPoint::of));
+  }
+
+  /**
+   * Get the known locations of a device, its location history and last location, indexed once
+   * per snapshot.
+   *
+   * @param identifier The device identifier
+   * @return The index of the locations, empty when the device is unknown or has no location
+   */
+  Optional<GeoIndex> getLocationIndex(String identifier) {
+    return histories.computeIfAbsent(identifier, k -> get(k, LOCATION, LOCATION_HISTORY)
+        .map(record -> {
+          List<GeoPoint> points = new ArrayList<>();
+          for (JsonValue entry : record.get(LOCATION_HISTORY).defaultTo(Collections.emptyList())) {
+            if (isLocation(entry)) {
+              points.add(GeoPoint.of(entry));
+            }
+          }
+          if (isLocation(record.get(LOCATION))) {
+            points.add(GeoPoint.of(record.get(LOCATION)));
+          }
+          return points;
+        })
+        .filter(points -> !points.isEmpty())
+        .map(GeoIndex::new));
+  }
+
+  private static boolean isLocation(JsonValue location) {
+    return location.isDefined(DeviceLocationRangeNode.LONGITUDE)
+        && location.isDefined(DeviceLocationRangeNode.LATITUDE);
+  }
+
+  /**
+   * Get the raw stored value of a device.
+   *
+   * @param identifier The device identifier
+   * @return The raw json string, null when the device is unknown
+   */
+  public String getValue(String identifier) {
+    return index.get(identifier);
+  }
+
+  /**
+   * Get the device identifier of a raw stored value.
+   *
+   * @param value A raw json string of {@link #getValues()}
+   * @return The device identifier, null when the value has none
+   */
+  public String getIdentifier(String value) {
+    return identifiers.get(value);
+  }
+
+  /**
+   * @return The raw json string of each stored device
+   */
+  public Set<String> getValues() {
+    return values;
+  }
+
+  /**
+   * @return The number of stored values
+   */
+  public int size() {
+    return values.size();
+  }
+
+  /**
+   * Read the top level identifier of a raw device record, skipping the other attributes without
+   * materializing them.
+   *
+   * @param value The raw json string of a device
+   * @return The identifier, null when the record has no string identifier or is malformed
+   */
+  static String identifierOf(String value) {
+    try (JsonParser parser = FACTORY.createParser(value)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        return null;
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String name = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+        if (IDENTIFIER.equals(name)) {
+          return token == JsonToken.VALUE_STRING ? parser.getText() : null;
+        }
+        parser.skipChildren();
+      }
+      return null;
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Materialize some top level attributes of a raw device record, the others are skipped. Reading
+   * stops once all the attributes have been found.
+   *
+   * @param value The raw json string of a device
+   * @param attributes The attributes to read
+   * @return A record holding the attributes found
+   */
+  static JsonValue read(String value, Collection<String> attributes) {
+    Map<String, Object> result = new LinkedHashMap<>();
+    try (JsonParser parser = FACTORY.createParser(value)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IllegalArgumentException("Device record is not a json object");
+      }
+      while (result.size() < attributes.size() && parser.nextToken() == JsonToken.FIELD_NAME) {
+        String name = parser.getCurrentName();
+        parser.nextToken();
+        if (attributes.contains(name) && !result.containsKey(name)) {
+          result.put(name, MAPPER.readValue(parser, Object.class));
+        } else {
+          parser.skipChildren();
+        }
+      }
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Malformed device record", e);
+    }
+    return new JsonValue(result);
+  }
+
+}
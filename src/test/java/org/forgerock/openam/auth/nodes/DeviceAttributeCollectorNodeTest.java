@@ -8,11 +8,15 @@ import static org.forgerock.json.JsonValue.field;
 import static org.forgerock.json.JsonValue.json;
 import static org.forgerock.json.JsonValue.object;
 import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.BDDMockito.given;
 import static org.mockito.MockitoAnnotations.initMocks;
 
 import com.sun.identity.authentication.callbacks.HiddenValueCallback;
+import com.sun.identity.idm.AMIdentity;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import javax.security.auth.callback.Callback;
 import org.forgerock.json.JsonValue;
 import org.forgerock.openam.auth.node.api.Action;
@@ -20,24 +24,57 @@ import org.forgerock.openam.auth.node.api.ExternalRequestContext.Builder;
 import org.forgerock.openam.auth.node.api.NodeProcessException;
 import org.forgerock.openam.auth.node.api.TreeContext;
 import org.forgerock.openam.auth.nodes.DeviceAttributeCollectorNode.Config;
+import org.forgerock.openam.core.CoreWrapper;
+import org.forgerock.openam.core.realms.Realm;
 import org.forgerock.openam.utils.JsonValueBuilder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 public class DeviceAttributeCollectorNodeTest {
 
+  private static final JsonValue STORED = JsonValueBuilder.toJsonValue(
+      "{\"identifier\":\"testIdentifier1\",\"profile\":{\"test\":1}}");
+
+  static {
+    STORED.put("profileFingerprint", JsonFingerprint.of(STORED.get("profile")));
+  }
+
+  @Mock
+  CoreWrapper coreWrapper;
+
+  @Mock
+  AMIdentity amIdentity;
+
+  @Mock
+  Realm realm;
+
   @Mock
   Config config;
 
+  @Spy
+  InMemoryDeviceMetrics metrics;
+
+  @Spy
+  DeviceRepository deviceRepository;
+
   @InjectMocks
   DeviceAttributeCollectorNode node;
 
   @BeforeMethod
-  public void setup() {
+  public void setup() throws Exception {
     node = null;
+    metrics = new InMemoryDeviceMetrics();
+    deviceRepository = new DeviceRepository(new DeviceRegistryCache(100, 1, TimeUnit.MINUTES),
+        metrics);
     initMocks(this);
+    given(realm.asDN()).willReturn("/");
+    given(coreWrapper.getIdentity(anyString(), anyString())).willReturn(amIdentity);
+    given(amIdentity.isExists()).willReturn(true);
+    given(amIdentity.getUniversalId()).willReturn("id=bob,ou=user,dc=openam");
+    given(amIdentity.isActive()).willReturn(true);
     given(config.deviceProfile()).willReturn(true);
     given(config.devicePublicKey()).willReturn(true);
     given(config.deviceLocation()).willReturn(true);
@@ -83,6 +120,8 @@ public class DeviceAttributeCollectorNodeTest {
     assertThat(result.callbacks).isEmpty();
     assertThat(result.sharedState.isDefined(DeviceAttribute.PROFILE.getVariableName())).isTrue();
     assertThat(result.sharedState.get(DeviceAttribute.PUBLIC_KEY.getVariableName())).isEmpty();
+    assertThat(result.sharedState.get(DeviceAttribute.PROFILE_FINGERPRINT.getVariableName())
+        .asString()).isEqualTo(JsonFingerprint.of(profile.get("profile")));
 
   }
 
@@ -119,6 +158,199 @@ public class DeviceAttributeCollectorNodeTest {
 
   }
 
+  @Test
+  public void testProcessSharesUnrelatedState()
+      throws NodeProcessException {
+    JsonValue journey = JsonValueBuilder.jsonValue().put("large", "value").build();
+    JsonValue sharedState = json(object(field(USERNAME, "bob"), field("journey", journey)));
+
+    HiddenValueCallback hiddenValueCallback = new HiddenValueCallback(
+        DeviceAttribute.PROFILE.getAttributeName());
+    hiddenValueCallback.setValue("{\"identifier\":\"testIdentifier1\",\"profile\":{}}");
+
+    // When
+    Action result = node
+        .process(getContext(sharedState, json(object()), singletonList(hiddenValueCallback)));
+
+    //Then
+    assertThat(result.sharedState.get("journey").getObject()).isSameAs(journey.getObject());
+    assertThat(result.sharedState.isDefined(DeviceAttribute.PROFILE.getVariableName())).isTrue();
+    assertThat(sharedState.isDefined(DeviceAttribute.PROFILE.getVariableName())).isFalse();
+  }
+
+  @Test
+  public void testProcessKeepsRequestedAttributesOnly()
+      throws NodeProcessException {
+    given(config.devicePublicKey()).willReturn(false);
+    JsonValue sharedState = json(object(field(USERNAME, "bob")));
+
+    HiddenValueCallback hiddenValueCallback = new HiddenValueCallback(
+        DeviceAttribute.PROFILE.getAttributeName());
+    hiddenValueCallback.setValue("{\"identifier\":\"testIdentifier1\",\"profile\":{\"test\":1},"
+        + "\"publicKey\":{\"key\":\"12344\"},\"other\":[{\"a\":[1,2]}]}");
+
+    // When
+    Action result = node
+        .process(getContext(sharedState, json(object()), singletonList(hiddenValueCallback)));
+
+    //Then
+    assertThat(result.sharedState.get(DeviceAttribute.PROFILE.getVariableName()).get("test")
+        .asInteger()).isEqualTo(1);
+    assertThat(result.sharedState.isDefined(DeviceAttribute.PUBLIC_KEY.getVariableName()))
+        .isFalse();
+  }
+
+  @Test
+  public void testProcessWithNoCallbackOffersCompression()
+      throws NodeProcessException {
+    given(config.compressedPayload()).willReturn(true);
+
+    // When
+    Action result = node.process(getContext(json(object()), json(object()), emptyList()));
+
+    //Then
+    assertThat(((HiddenValueCallback) result.callbacks.get(0)).getId())
+        .endsWith("&encoding=deflate");
+  }
+
+  @Test
+  public void testProcessWithCompressedCallback()
+      throws NodeProcessException {
+    given(config.compressedPayload()).willReturn(true);
+    JsonValue sharedState = json(object(field(USERNAME, "bob")));
+
+    HiddenValueCallback hiddenValueCallback = new HiddenValueCallback(
+        DeviceAttribute.PROFILE.getAttributeName());
+    hiddenValueCallback.setValue(DevicePayloadParserTest
+        .deflate("{\"identifier\":\"testIdentifier1\",\"profile\":{\"test\":1}}"));
+
+    // When
+    Action result = node
+        .process(getContext(sharedState, json(object()), singletonList(hiddenValueCallback)));
+
+    //Then
+    assertThat(result.sharedState.get(DeviceAttribute.IDENTIFIER.getVariableName()).asString())
+        .isEqualTo("testIdentifier1");
+    assertThat(result.sharedState.get(DeviceAttribute.PROFILE.getVariableName()).get("test")
+        .asInteger()).isEqualTo(1);
+  }
+
+  @Test
+  public void testProcessWithNoCallbackAsksProfileHash()
+      throws NodeProcessException {
+    given(config.profileHash()).willReturn(true);
+
+    // When
+    Action result = node.process(getContext(json(object()), json(object()), emptyList()));
+
+    //Then
+    assertThat(((HiddenValueCallback) result.callbacks.get(0)).getId())
+        .isEqualTo("DeviceAttributeCallback://forgerock?attributes=profileFingerprint"
+            + "&attributes=publicKey&attributes=location");
+  }
+
+  @Test
+  public void testProcessWithUnchangedProfileHash()
+      throws Exception {
+    given(config.profileHash()).willReturn(true);
+    given(amIdentity.getAttribute(anyString()))
+        .willReturn(Collections.singleton(STORED.toString()));
+
+    // When
+    Action result = node.process(getContext(json(object(field(USERNAME, "bob"))),
+        json(object()), singletonList(hashCallback(STORED.get("profileFingerprint").asString()))));
+
+    //Then
+    assertThat(result.outcome).isEqualTo("outcome");
+    assertThat(result.sharedState.get(DeviceAttribute.PROFILE.getVariableName()).getObject())
+        .isEqualTo(STORED.get("profile").getObject());
+    assertThat(result.sharedState.get(DeviceAttribute.PROFILE_FINGERPRINT.getVariableName())
+        .asString()).isEqualTo(STORED.get("profileFingerprint").asString());
+    assertThat(result.sharedState.get(DeviceAttribute.LOCATION.getVariableName()).get("latitude")
+        .asInteger()).isEqualTo(1);
+    assertThat(metrics.getCount("device.collector.profileHash.hit")).isEqualTo(1);
+  }
+
+  @Test
+  public void testProcessWithChangedProfileHash()
+      throws Exception {
+    given(config.profileHash()).willReturn(true);
+    given(amIdentity.getAttribute(anyString()))
+        .willReturn(Collections.singleton(STORED.toString()));
+
+    // When
+    Action result = node.process(getContext(json(object(field(USERNAME, "bob"))),
+        json(object()), singletonList(hashCallback("changed"))));
+
+    //Then
+    assertThat(result.outcome).isNull();
+    assertThat(((HiddenValueCallback) result.callbacks.get(0)).getId())
+        .isEqualTo("DeviceAttributeCallback://forgerock?attributes=profile");
+    assertThat(result.sharedState.isDefined(DeviceAttribute.PROFILE.getVariableName())).isFalse();
+    assertThat(result.sharedState.get(DeviceAttribute.LOCATION.getVariableName()).get("latitude")
+        .asInteger()).isEqualTo(1);
+
+    //When the client sends the full profile
+    HiddenValueCallback profileCallback = new HiddenValueCallback(
+        "DeviceAttributeCallback://forgerock?attributes=profile");
+    profileCallback.setValue("{\"identifier\":\"testIdentifier1\",\"profile\":{\"test\":2}}");
+    result = node.process(getContext(result.sharedState, json(object()),
+        singletonList(profileCallback)));
+
+    //Then
+    assertThat(result.outcome).isEqualTo("outcome");
+    assertThat(result.sharedState.get(DeviceAttribute.PROFILE.getVariableName()).get("test")
+        .asInteger()).isEqualTo(2);
+    assertThat(result.sharedState.get(DeviceAttribute.LOCATION.getVariableName()).get("latitude")
+        .asInteger()).isEqualTo(1);
+    assertThat(metrics.getCount("device.collector.profileHash.miss")).isEqualTo(1);
+    assertThat(metrics.getCount("device.collector.outcome.callback")).isEqualTo(1);
+    assertThat(metrics.getCount("device.collector.outcome.outcome")).isEqualTo(1);
+    assertThat(metrics.getHistogram("device.collector.payload.bytes").getCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testProcessWithProfileHashOfUnknownUser()
+      throws Exception {
+    given(config.profileHash()).willReturn(true);
+    given(amIdentity.isExists()).willReturn(false);
+
+    // When
+    Action result = node.process(getContext(json(object(field(USERNAME, "bob"))),
+        json(object()), singletonList(hashCallback(STORED.get("profileFingerprint").asString()))));
+
+    //Then the full profile is requested, as for a user without the device
+    assertThat(result.outcome).isNull();
+    assertThat(((HiddenValueCallback) result.callbacks.get(0)).getId())
+        .isEqualTo("DeviceAttributeCallback://forgerock?attributes=profile");
+    assertThat(metrics.getCount("device.collector.profileHash.miss")).isEqualTo(1);
+  }
+
+  @Test(expectedExceptions = NodeProcessException.class)
+  public void testProcessWithOversizedPayload()
+      throws NodeProcessException {
+    given(config.maxPayloadSize()).willReturn(64);
+    JsonValue sharedState = json(object(field(USERNAME, "bob")));
+
+    HiddenValueCallback hiddenValueCallback = new HiddenValueCallback(
+        DeviceAttribute.PROFILE.getAttributeName());
+    JsonValue profile = JsonValueBuilder.jsonValue().build();
+    profile.put("identifier", "testIdentifier1");
+    profile.put("profile", new String(new char[64]).replace('\0', 'x'));
+    hiddenValueCallback.setValue(profile.toString());
+
+    // When
+    node.process(getContext(sharedState, json(object()), singletonList(hiddenValueCallback)));
+  }
+
+  private HiddenValueCallback hashCallback(String fingerprint) {
+    HiddenValueCallback callback = new HiddenValueCallback("DeviceAttributeCallback://forgerock"
+        + "?attributes=profileFingerprint&attributes=publicKey&attributes=location");
+    callback.setValue("{\"identifier\":\"testIdentifier1\",\"profileFingerprint\":\""
+        + fingerprint + "\",\"publicKey\":{},\"location\":{\"latitude\":1}}");
+    return callback;
+  }
+
   private TreeContext getContext(JsonValue sharedState, JsonValue transientState,
       List<? extends Callback> callbacks) {
     return new TreeContext(sharedState, transientState, new Builder().build(), callbacks);
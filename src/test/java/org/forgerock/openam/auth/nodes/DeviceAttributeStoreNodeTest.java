@@ -9,10 +9,16 @@ import static org.forgerock.json.JsonValue.field;
 import static org.forgerock.json.JsonValue.json;
 import static org.forgerock.json.JsonValue.object;
 import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.BDDMockito.given;
 import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
@@ -20,11 +26,16 @@ import com.iplanet.sso.SSOException;
 import com.sun.identity.authentication.callbacks.HiddenValueCallback;
 import com.sun.identity.idm.AMIdentity;
 import com.sun.identity.idm.IdRepoException;
+import com.sun.identity.idm.IdServices;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import javax.security.auth.callback.Callback;
 import org.forgerock.json.JsonValue;
 import org.forgerock.openam.auth.node.api.Action;
@@ -32,17 +43,22 @@ import org.forgerock.openam.auth.node.api.ExternalRequestContext.Builder;
 import org.forgerock.openam.auth.node.api.NodeProcessException;
 import org.forgerock.openam.auth.node.api.TreeContext;
 import org.forgerock.openam.auth.nodes.DeviceAttributeStoreNode.Config;
+import org.forgerock.openam.auth.nodes.DeviceAttributeStoreNode.OverflowPolicy;
+import org.forgerock.openam.auth.nodes.DeviceAttributeStoreNode.StoreMode;
 import org.forgerock.openam.core.CoreWrapper;
 import org.forgerock.openam.core.realms.Realm;
 import org.forgerock.openam.utils.JsonValueBuilder;
 import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 public class DeviceAttributeStoreNodeTest {
 
+  private static final long NOW = 1577836800000L;
+
   @Mock
   CoreWrapper coreWrapper;
 
@@ -55,6 +71,18 @@ public class DeviceAttributeStoreNodeTest {
   @Mock
   Config config;
 
+  @Mock
+  IdServices idServices;
+
+  @Mock
+  DeviceWriteBehindQueue writeBehindQueue;
+
+  @Spy
+  InMemoryDeviceMetrics metrics;
+
+  @Spy
+  DeviceRepository deviceRepository;
+
   @InjectMocks
   DeviceAttributeStoreNode node;
 
@@ -65,13 +93,18 @@ public class DeviceAttributeStoreNodeTest {
   @BeforeMethod
   public void setup() throws Exception {
     node = null;
+    metrics = new InMemoryDeviceMetrics();
+    deviceRepository = new DeviceRepository(new DeviceRegistryCache(100, 1, TimeUnit.MINUTES),
+        metrics, Clock.fixed(Instant.ofEpochMilli(NOW), ZoneOffset.UTC));
     initMocks(this);
     given(config.deviceAttributes()).willReturn(Arrays
         .asList(DeviceAttribute.PROFILE.name(), DeviceAttribute.PUBLIC_KEY.name(),
             DeviceAttribute.LOCATION.name(), "undefined"));
+    given(config.storeMode()).willReturn(StoreMode.REPLACE);
     given(realm.asDN()).willReturn("/");
     given(coreWrapper.getIdentity(anyString(), anyString())).willReturn(amIdentity);
     given(amIdentity.isExists()).willReturn(true);
+    given(amIdentity.getUniversalId()).willReturn("id=bob,ou=user,dc=openam");
     given(amIdentity.isActive()).willReturn(true);
 
     location = JsonValueBuilder.jsonValue().put("latitude", 123).put("longitude", 456)
@@ -151,12 +184,16 @@ public class DeviceAttributeStoreNodeTest {
     HiddenValueCallback hiddenValueCallback = new HiddenValueCallback("");
     hiddenValueCallback.setValue(deviceAttributes.toString());
 
-    ArgumentCaptor<Map<String, Set>> captor = ArgumentCaptor.forClass(Map.class);
+    JsonValue existingAttributes = JsonValueBuilder.jsonValue().build();
+    existingAttributes.put("identifier", "testIdentifier");
+    existingAttributes.put("profile", "oldProfile");
+
+    ArgumentCaptor<Map<String, Set<String>>> captor = ArgumentCaptor.forClass(Map.class);
     amIdentity.setAttributes(captor.capture());
 
     // When
     given(amIdentity.isActive()).willReturn(true);
-    when(amIdentity.getAttribute(anyString())).thenReturn(singleton(deviceAttributes.toString()));
+    when(amIdentity.getAttribute(anyString())).thenReturn(singleton(existingAttributes.toString()));
     doNothing().when(amIdentity).setAttributes(captor.capture());
     Action result = node
         .process(getContext(sharedState, transientState, singletonList(hiddenValueCallback)));
@@ -166,7 +203,7 @@ public class DeviceAttributeStoreNodeTest {
     assertThat(result.callbacks).isEmpty();
     //Make sure set Attribute contains the profile from the Callback
     assertThat(captor.getValue().get("deviceAttributes")).hasSize(1);
-    assertThat(captor.getValue().get("deviceAttributes")).contains(deviceAttributes.toString());
+    assertThat(captor.getValue().get("deviceAttributes")).contains(seen(deviceAttributes));
 
   }
 
@@ -194,12 +231,16 @@ public class DeviceAttributeStoreNodeTest {
     HiddenValueCallback hiddenValueCallback = new HiddenValueCallback("profile");
     hiddenValueCallback.setValue(deviceAttributes.toString());
 
-    ArgumentCaptor<Map<String, Set>> captor = ArgumentCaptor.forClass(Map.class);
+    JsonValue existingAttributes = deviceAttributes.copy();
+    existingAttributes.put("location", JsonValueBuilder.jsonValue().put("latitude", 1)
+        .put("longitude", 2).build());
+
+    ArgumentCaptor<Map<String, Set<String>>> captor = ArgumentCaptor.forClass(Map.class);
     amIdentity.setAttributes(captor.capture());
 
     // When
     given(amIdentity.isActive()).willReturn(true);
-    when(amIdentity.getAttribute(anyString())).thenReturn(singleton(deviceAttributes.toString()));
+    when(amIdentity.getAttribute(anyString())).thenReturn(singleton(existingAttributes.toString()));
     doNothing().when(amIdentity).setAttributes(captor.capture());
     Action result = node
         .process(getContext(sharedState, transientState, singletonList(hiddenValueCallback)));
@@ -209,7 +250,54 @@ public class DeviceAttributeStoreNodeTest {
     assertThat(result.callbacks).isEmpty();
     //Make sure set Attribute contains the profile from the Callback
     assertThat(captor.getValue().get("deviceAttributes")).hasSize(1);
-    assertThat(captor.getValue().get("deviceAttributes")).contains(deviceAttributes.toString());
+    assertThat(captor.getValue().get("deviceAttributes")).contains(seen(deviceAttributes));
+
+  }
+
+  @Test(description = "Unchanged device attributes are not persisted")
+  public void testProcessWithUnchangedDevice()
+      throws NodeProcessException, IdRepoException, SSOException {
+    JsonValue deviceAttributes = JsonValueBuilder.jsonValue().build();
+    deviceAttributes.put("identifier", "testIdentifier");
+    deviceAttributes.put("profile", profile);
+    deviceAttributes.put("publicKey", publicKey);
+    deviceAttributes.put("location", location);
+
+    JsonValue sharedState = json(object(field(USERNAME, "bob"),
+        field(DeviceAttribute.IDENTIFIER.getVariableName(),
+            deviceAttributes.get(DeviceAttribute.IDENTIFIER.getAttributeName())),
+        field(DeviceAttribute.PROFILE.getVariableName(),
+            deviceAttributes.get(DeviceAttribute.PROFILE.getAttributeName())),
+        field(DeviceAttribute.PUBLIC_KEY.getVariableName(),
+            deviceAttributes.get(DeviceAttribute.PUBLIC_KEY.getAttributeName())),
+        field(DeviceAttribute.LOCATION.getVariableName(),
+            deviceAttributes.get(DeviceAttribute.LOCATION.getAttributeName()))
+    ));
+    JsonValue transientState = json(object());
+
+    //Stored with a different key order and number representation
+    JsonValue storedLocation = JsonValueBuilder.jsonValue().put("longitude", 456.0)
+        .put("latitude", 123).build();
+    JsonValue existingAttributes = JsonValueBuilder.jsonValue().build();
+    existingAttributes.put("location", storedLocation);
+    existingAttributes.put("identifier", "testIdentifier");
+    existingAttributes.put("publicKey", publicKey);
+    existingAttributes.put("profile", profile);
+    existingAttributes.put("profileFingerprint", JsonFingerprint.of(profile));
+    existingAttributes.put("locationSample", JsonValueBuilder.jsonValue().put("latitude", 123)
+        .put("longitude", 456).put("timestamp", NOW - 1000).build());
+    existingAttributes.put("lastSeen", NOW - 1000);
+
+    // When
+    when(amIdentity.getAttribute(anyString())).thenReturn(singleton(existingAttributes.toString()));
+    Action result = node.process(getContext(sharedState, transientState, emptyList()));
+
+    //Then
+    assertThat(result.outcome).isEqualTo("outcome");
+    verify(amIdentity, never()).setAttributes(any());
+    verify(amIdentity, never()).store();
+    assertThat(metrics.getCount("device.repository.write.skipped")).isEqualTo(1);
+    assertThat(metrics.getTimer("device.repository.write").getCount()).isEqualTo(0);
 
   }
 
@@ -232,7 +320,7 @@ public class DeviceAttributeStoreNodeTest {
     HiddenValueCallback hiddenValueCallback = new HiddenValueCallback("profile");
     hiddenValueCallback.setValue(newAttributes.toString());
 
-    ArgumentCaptor<Map<String, Set>> captor = ArgumentCaptor.forClass(Map.class);
+    ArgumentCaptor<Map<String, Set<String>>> captor = ArgumentCaptor.forClass(Map.class);
     amIdentity.setAttributes(captor.capture());
 
     // When
@@ -256,7 +344,7 @@ public class DeviceAttributeStoreNodeTest {
     expectedAttributes.put("location", location);
 
     assertThat(captor.getValue().get("deviceAttributes")).hasSize(1);
-    assertThat(captor.getValue().get("deviceAttributes")).contains(expectedAttributes.toString());
+    assertThat(captor.getValue().get("deviceAttributes")).contains(seen(expectedAttributes));
 
   }
 
@@ -287,7 +375,7 @@ public class DeviceAttributeStoreNodeTest {
     JsonValue existingProfile = JsonValueBuilder.jsonValue().build();
     existingProfile.put("identifier", "testIdentifier1");
 
-    ArgumentCaptor<Map<String, Set>> captor = ArgumentCaptor.forClass(Map.class);
+    ArgumentCaptor<Map<String, Set<String>>> captor = ArgumentCaptor.forClass(Map.class);
     amIdentity.setAttributes(captor.capture());
 
     // When
@@ -303,7 +391,7 @@ public class DeviceAttributeStoreNodeTest {
     assertThat(result.callbacks).isEmpty();
     //Make sure set Attribute contains the profile from the Callback
     assertThat(captor.getValue().get("deviceAttributes")).contains(existingProfile.toString());
-    assertThat(captor.getValue().get("deviceAttributes")).contains(collected.toString());
+    assertThat(captor.getValue().get("deviceAttributes")).contains(created(collected));
 
   }
 
@@ -323,7 +411,7 @@ public class DeviceAttributeStoreNodeTest {
     HiddenValueCallback hiddenValueCallback = new HiddenValueCallback("profile publicKey location");
     hiddenValueCallback.setValue(deviceAttributes.toString());
 
-    ArgumentCaptor<Map<String, Set>> captor = ArgumentCaptor.forClass(Map.class);
+    ArgumentCaptor<Map<String, Set<String>>> captor = ArgumentCaptor.forClass(Map.class);
     amIdentity.setAttributes(captor.capture());
 
     // When
@@ -337,7 +425,7 @@ public class DeviceAttributeStoreNodeTest {
     assertThat(result.outcome).isEqualTo("outcome");
     assertThat(result.callbacks).isEmpty();
     //Make sure set Attribute contains the profile from the Callback
-    assertThat(captor.getValue().get("deviceAttributes")).contains(deviceAttributes.toString());
+    assertThat(captor.getValue().get("deviceAttributes")).contains(created(deviceAttributes));
 
   }
 
@@ -365,18 +453,291 @@ public class DeviceAttributeStoreNodeTest {
     HiddenValueCallback hiddenValueCallback = new HiddenValueCallback("profile publicKey location");
     hiddenValueCallback.setValue(deviceAttributes.toString());
 
-    ArgumentCaptor<Map<String, Set>> captor = ArgumentCaptor.forClass(Map.class);
+    ArgumentCaptor<Map<String, Set<String>>> captor = ArgumentCaptor.forClass(Map.class);
     amIdentity.setAttributes(captor.capture());
 
+    JsonValue existingAttributes = deviceAttributes.copy();
+    existingAttributes.remove("location");
+
     // When
     given(amIdentity.isActive()).willReturn(true);
     doThrow(new IdRepoException()).when(amIdentity).store();
-    when(amIdentity.getAttribute(anyString())).thenReturn(singleton(deviceAttributes.toString()));
+    when(amIdentity.getAttribute(anyString())).thenReturn(singleton(existingAttributes.toString()));
     node.process(getContext(sharedState, transientState, singletonList(hiddenValueCallback)));
 
   }
 
 
+  @Test(description = "Delta mode adds a new device as a single value")
+  public void testProcessDeltaWithCreate()
+      throws NodeProcessException, IdRepoException, SSOException {
+    JsonValue collected = JsonValueBuilder.jsonValue().build();
+    collected.put("identifier", "testIdentifier");
+    collected.put("profile", profile);
+
+    JsonValue sharedState = json(object(field(USERNAME, "bob"),
+        field(DeviceAttribute.IDENTIFIER.getVariableName(),
+            collected.get(DeviceAttribute.IDENTIFIER.getAttributeName())),
+        field(DeviceAttribute.PROFILE.getVariableName(),
+            collected.get(DeviceAttribute.PROFILE.getAttributeName()))
+    ));
+    JsonValue transientState = json(object());
+
+    JsonValue existingProfile = JsonValueBuilder.jsonValue().build();
+    existingProfile.put("identifier", "testIdentifier1");
+
+    ArgumentCaptor<Map<String, Set<String>>> captor = ArgumentCaptor.forClass(Map.class);
+
+    // When
+    given(config.storeMode()).willReturn(StoreMode.DELTA);
+    doReturn(idServices).when(deviceRepository).getIdServices();
+    when(amIdentity.getAttribute(anyString())).thenReturn(singleton(existingProfile.toString()));
+    Action result = node.process(getContext(sharedState, transientState, emptyList()));
+
+    //Then
+    assertThat(result.outcome).isEqualTo("outcome");
+    verify(idServices).setAttributes(any(), any(), any(), captor.capture(), eq(true), any(),
+        any(), eq(true));
+    verify(amIdentity, never()).store();
+    //Only the new device is sent to the data store
+    assertThat(captor.getValue().get("deviceAttributes")).containsExactly(created(collected));
+
+  }
+
+  @Test(description = "Delta mode swaps the value of an existing device")
+  public void testProcessDeltaWithUpdate()
+      throws NodeProcessException, IdRepoException, SSOException {
+    JsonValue newAttributes = JsonValueBuilder.jsonValue().build();
+    newAttributes.put("identifier", "testIdentifier");
+    newAttributes.put("location", location);
+
+    JsonValue sharedState = json(object(field(USERNAME, "bob"),
+        field(DeviceAttribute.IDENTIFIER.getVariableName(),
+            newAttributes.get(DeviceAttribute.IDENTIFIER.getAttributeName())),
+        field(DeviceAttribute.LOCATION.getVariableName(),
+            newAttributes.get(DeviceAttribute.LOCATION.getAttributeName()))
+    ));
+    JsonValue transientState = json(object());
+
+    JsonValue existingAttributes = JsonValueBuilder.jsonValue().build();
+    existingAttributes.put("identifier", "testIdentifier");
+    existingAttributes.put("profile", profile);
+
+    JsonValue otherAttributes = JsonValueBuilder.jsonValue().build();
+    otherAttributes.put("identifier", "testIdentifier1");
+
+    ArgumentCaptor<Map<String, Set<String>>> captor = ArgumentCaptor.forClass(Map.class);
+
+    // When
+    given(config.storeMode()).willReturn(StoreMode.DELTA);
+    when(amIdentity.getAttribute(anyString())).thenReturn(new HashSet<>(
+        Arrays.asList(existingAttributes.toString(), otherAttributes.toString())));
+    doNothing().when(amIdentity).setAttributes(captor.capture());
+    Action result = node.process(getContext(sharedState, transientState, emptyList()));
+
+    //Then
+    assertThat(result.outcome).isEqualTo("outcome");
+    JsonValue expectedAttributes = JsonValueBuilder.jsonValue().build();
+    expectedAttributes.put("identifier", "testIdentifier");
+    expectedAttributes.put("profile", profile);
+    expectedAttributes.put("location", location);
+
+    assertThat(captor.getValue().get("deviceAttributes"))
+        .containsExactlyInAnyOrder(seen(expectedAttributes), otherAttributes.toString());
+    verify(amIdentity).store();
+
+  }
+
+  @Test(description = "Asynchronous mode enqueues the collected attributes")
+  public void testProcessAsynchronous()
+      throws NodeProcessException, IdRepoException, SSOException {
+    JsonValue sharedState = json(object(field(USERNAME, "bob"),
+        field(DeviceAttribute.IDENTIFIER.getVariableName(), "testIdentifier"),
+        field(DeviceAttribute.LOCATION.getVariableName(), location)
+    ));
+    JsonValue transientState = json(object());
+
+    ArgumentCaptor<JsonValue> captor = ArgumentCaptor.forClass(JsonValue.class);
+
+    // When
+    given(config.asynchronous()).willReturn(true);
+    given(writeBehindQueue.offer(anyInt(), any(), any(), anyString(), captor.capture()))
+        .willReturn(true);
+    Action result = node.process(getContext(sharedState, transientState, emptyList()));
+
+    //Then
+    assertThat(result.outcome).isEqualTo("outcome");
+    assertThat(captor.getValue().isEqualTo(json(object(field("location", location))))).isTrue();
+    verify(amIdentity, never()).getAttribute(anyString());
+    verify(amIdentity, never()).store();
+
+  }
+
+  @Test(description = "Asynchronous mode falls back to synchronous when the queue is full")
+  public void testProcessAsynchronousOverflowSynchronous()
+      throws NodeProcessException, IdRepoException, SSOException {
+    JsonValue sharedState = json(object(field(USERNAME, "bob"),
+        field(DeviceAttribute.IDENTIFIER.getVariableName(), "testIdentifier"),
+        field(DeviceAttribute.LOCATION.getVariableName(), location)
+    ));
+    JsonValue transientState = json(object());
+
+    // When
+    given(config.asynchronous()).willReturn(true);
+    given(config.overflowPolicy()).willReturn(OverflowPolicy.SYNCHRONOUS);
+    given(writeBehindQueue.offer(anyInt(), any(), any(), anyString(), any()))
+        .willReturn(false);
+    when(amIdentity.getAttribute(anyString())).thenReturn(new HashSet<>());
+    node.process(getContext(sharedState, transientState, emptyList()));
+
+    //Then
+    verify(amIdentity).store();
+
+  }
+
+  @Test(description = "Asynchronous mode drops the device when the queue is full")
+  public void testProcessAsynchronousOverflowDrop()
+      throws NodeProcessException, IdRepoException, SSOException {
+    JsonValue sharedState = json(object(field(USERNAME, "bob"),
+        field(DeviceAttribute.IDENTIFIER.getVariableName(), "testIdentifier"),
+        field(DeviceAttribute.LOCATION.getVariableName(), location)
+    ));
+    JsonValue transientState = json(object());
+
+    // When
+    given(config.asynchronous()).willReturn(true);
+    given(config.overflowPolicy()).willReturn(OverflowPolicy.DROP);
+    given(writeBehindQueue.offer(anyInt(), any(), any(), anyString(), any()))
+        .willReturn(false);
+    Action result = node.process(getContext(sharedState, transientState, emptyList()));
+
+    //Then
+    assertThat(result.outcome).isEqualTo("outcome");
+    verify(amIdentity, never()).store();
+
+  }
+
+  @Test(description = "Last seen timestamp of an unchanged device is refreshed once stale")
+  public void testProcessRefreshLastSeen()
+      throws NodeProcessException, IdRepoException, SSOException {
+    JsonValue sharedState = json(object(field(USERNAME, "bob"),
+        field(DeviceAttribute.IDENTIFIER.getVariableName(), "testIdentifier"),
+        field(DeviceAttribute.PROFILE.getVariableName(), profile)
+    ));
+    JsonValue transientState = json(object());
+
+    JsonValue existingAttributes = JsonValueBuilder.jsonValue().build();
+    existingAttributes.put("identifier", "testIdentifier");
+    existingAttributes.put("profile", profile);
+    existingAttributes.put("lastSeen", NOW - DeviceRepository.LAST_SEEN_RESOLUTION);
+
+    ArgumentCaptor<Map<String, Set<String>>> captor = ArgumentCaptor.forClass(Map.class);
+
+    // When
+    when(amIdentity.getAttribute(anyString())).thenReturn(singleton(existingAttributes.toString()));
+    doNothing().when(amIdentity).setAttributes(captor.capture());
+    node.process(getContext(sharedState, transientState, emptyList()));
+
+    //Then
+    JsonValue expectedAttributes = JsonValueBuilder.jsonValue().build();
+    expectedAttributes.put("identifier", "testIdentifier");
+    expectedAttributes.put("profile", profile);
+    assertThat(captor.getValue().get("deviceAttributes")).containsExactly(seen(expectedAttributes));
+
+  }
+
+  @Test(description = "Location history keeps the distinct recent locations")
+  public void testProcessLocationHistory()
+      throws NodeProcessException, IdRepoException, SSOException {
+    JsonValue home = JsonValueBuilder.jsonValue().put("latitude", 49.2827)
+        .put("longitude", -123.1207).build();
+    JsonValue office = JsonValueBuilder.jsonValue().put("latitude", 47.6062)
+        .put("longitude", -122.3321).build();
+    JsonValue nearHome = JsonValueBuilder.jsonValue().put("latitude", 49.2828)
+        .put("longitude", -123.1208).build();
+
+    JsonValue sharedState = json(object(field(USERNAME, "bob"),
+        field(DeviceAttribute.IDENTIFIER.getVariableName(), "testIdentifier"),
+        field(DeviceAttribute.LOCATION.getVariableName(), nearHome)
+    ));
+
+    JsonValue existingAttributes = JsonValueBuilder.jsonValue().build();
+    existingAttributes.put("identifier", "testIdentifier");
+    existingAttributes.put("location", office);
+    existingAttributes.put("locationHistory", Arrays.asList(home.getObject(), office.getObject()));
+
+    ArgumentCaptor<Map<String, Set<String>>> captor = ArgumentCaptor.forClass(Map.class);
+
+    // When
+    given(config.locationHistorySize()).willReturn(2);
+    when(amIdentity.getAttribute(anyString())).thenReturn(singleton(existingAttributes.toString()));
+    doNothing().when(amIdentity).setAttributes(captor.capture());
+    node.process(getContext(sharedState, json(object()), emptyList()));
+
+    //Then
+    JsonValue stored = JsonValueBuilder.toJsonValue(
+        (String) captor.getValue().get("deviceAttributes").iterator().next());
+    assertThat(stored.get("locationHistory").asList())
+        .containsExactly(office.getObject(), nearHome.getObject());
+
+  }
+
+  @Test(description = "Least recently seen devices are evicted when exceeding the maximum")
+  public void testProcessEvictLeastRecentlySeen()
+      throws NodeProcessException, IdRepoException, SSOException {
+    JsonValue sharedState = json(object(field(USERNAME, "bob"),
+        field(DeviceAttribute.IDENTIFIER.getVariableName(), "testIdentifier"),
+        field(DeviceAttribute.PROFILE.getVariableName(), profile)
+    ));
+    JsonValue transientState = json(object());
+
+    JsonValue recent = JsonValueBuilder.jsonValue().put("identifier", "recent")
+        .put("lastSeen", NOW - 1000).build();
+    JsonValue old = JsonValueBuilder.jsonValue().put("identifier", "old")
+        .put("lastSeen", NOW - 100000).build();
+    JsonValue unknown = JsonValueBuilder.jsonValue().put("identifier", "unknown").build();
+
+    ArgumentCaptor<Map<String, Set<String>>> captor = ArgumentCaptor.forClass(Map.class);
+
+    // When
+    given(config.storeMode()).willReturn(StoreMode.DELTA);
+    given(config.maxDevices()).willReturn(2);
+    when(amIdentity.getAttribute(anyString())).thenReturn(new HashSet<>(
+        Arrays.asList(recent.toString(), old.toString(), unknown.toString())));
+    doNothing().when(amIdentity).setAttributes(captor.capture());
+    node.process(getContext(sharedState, transientState, emptyList()));
+
+    //Then
+    JsonValue expectedAttributes = JsonValueBuilder.jsonValue().build();
+    expectedAttributes.put("identifier", "testIdentifier");
+    expectedAttributes.put("profile", profile);
+    assertThat(captor.getValue().get("deviceAttributes"))
+        .containsExactlyInAnyOrder(created(expectedAttributes), recent.toString());
+    verify(amIdentity).store();
+
+  }
+
+  private String created(JsonValue deviceAttributes) {
+    JsonValue expected = JsonValueBuilder.toJsonValue(seen(deviceAttributes));
+    expected.put("firstSeen", NOW);
+    return expected.toString();
+  }
+
+  private String seen(JsonValue deviceAttributes) {
+    JsonValue expected = deviceAttributes.copy();
+    if (expected.isDefined("profile") && !expected.isDefined("profileFingerprint")) {
+      expected.put("profileFingerprint", JsonFingerprint.of(expected.get("profile")));
+    }
+    if (expected.get("location").isDefined("latitude") && !expected.isDefined("locationSample")) {
+      expected.put("locationSample", JsonValueBuilder.jsonValue()
+          .put("latitude", expected.get("location").get("latitude").getObject())
+          .put("longitude", expected.get("location").get("longitude").getObject())
+          .put("timestamp", NOW).build().getObject());
+    }
+    expected.put("lastSeen", NOW);
+    return expected.toString();
+  }
+
   private TreeContext getContext(JsonValue sharedState, JsonValue transientState,
       List<? extends Callback> callbacks) {
     return new TreeContext(sharedState, transientState, new Builder().build(), callbacks);
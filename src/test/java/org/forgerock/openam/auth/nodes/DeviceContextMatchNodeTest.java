@@ -7,8 +7,13 @@ import static org.forgerock.json.JsonValue.field;
 import static org.forgerock.json.JsonValue.json;
 import static org.forgerock.json.JsonValue.object;
 import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
@@ -16,19 +21,25 @@ import com.iplanet.sso.SSOException;
 import com.sun.identity.idm.AMIdentity;
 import com.sun.identity.idm.IdRepoException;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import javax.security.auth.callback.Callback;
+import javax.servlet.http.HttpServletRequest;
 import org.forgerock.json.JsonValue;
 import org.forgerock.openam.auth.node.api.Action;
 import org.forgerock.openam.auth.node.api.ExternalRequestContext.Builder;
 import org.forgerock.openam.auth.node.api.NodeProcessException;
 import org.forgerock.openam.auth.node.api.TreeContext;
 import org.forgerock.openam.auth.nodes.DeviceContextMatchNode.Config;
+import org.forgerock.openam.auth.nodes.DeviceContextMatchNode.MatchMode;
 import org.forgerock.openam.core.CoreWrapper;
 import org.forgerock.openam.core.realms.Realm;
 import org.forgerock.openam.utils.JsonValueBuilder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
@@ -46,17 +57,28 @@ public class DeviceContextMatchNodeTest {
   @Mock
   Config config;
 
+  @Spy
+  InMemoryDeviceMetrics metrics;
+
+  @Spy
+  DeviceRepository deviceRepository;
+
   @InjectMocks
   DeviceContextMatchNode node;
 
   @BeforeMethod
   public void setup() throws IdRepoException, SSOException {
     node = null;
+    metrics = new InMemoryDeviceMetrics();
+    deviceRepository = new DeviceRepository(new DeviceRegistryCache(100, 1, TimeUnit.MINUTES),
+        metrics);
     initMocks(this);
     given(realm.asDN()).willReturn("/");
     given(coreWrapper.getIdentity(anyString(), anyString())).willReturn(amIdentity);
     given(amIdentity.isExists()).willReturn(true);
+    given(amIdentity.getUniversalId()).willReturn("id=bob,ou=user,dc=openam");
     given(amIdentity.isActive()).willReturn(true);
+    given(config.matchMode()).willReturn(MatchMode.EXACT);
   }
 
   @Test
@@ -92,6 +114,158 @@ public class DeviceContextMatchNodeTest {
     assertThat(result.outcome).isEqualTo("true");
   }
 
+  @Test
+  public void testProcessUsesCachedDevices()
+      throws NodeProcessException, IdRepoException, SSOException {
+
+    JsonValue profile = JsonValueBuilder.jsonValue().build();
+    profile.put("platform", "android");
+
+    JsonValue existing = JsonValueBuilder.jsonValue().build();
+    existing.put("identifier", "testIdentifier");
+    existing.put("profile", profile);
+
+    JsonValue sharedState = json(object(field(USERNAME, "bob"),
+        field(DeviceAttribute.IDENTIFIER.getVariableName(), "testIdentifier"),
+        field(DeviceAttribute.PROFILE.getVariableName(), profile)
+    ));
+
+    // When
+    when(amIdentity.getAttribute(anyString())).thenReturn(Collections.singleton(existing.toString()));
+    node.process(getContext(sharedState, json(object()), emptyList()));
+    Action result = node.process(getContext(sharedState, json(object()), emptyList()));
+
+    //Then
+    assertThat(result.outcome).isEqualTo("true");
+    verify(amIdentity, times(1)).getAttribute(anyString());
+    assertThat(metrics.getCount("device.repository.cache.miss")).isEqualTo(1);
+    assertThat(metrics.getCount("device.repository.cache.hit")).isEqualTo(1);
+    assertThat(metrics.getCount("device.contextMatch.outcome.true")).isEqualTo(2);
+    assertThat(metrics.getHistogram("device.repository.devices").getMax()).isEqualTo(1);
+  }
+
+  @Test
+  public void testProcessContextMatchByFingerprint()
+      throws NodeProcessException, IdRepoException, SSOException {
+
+    JsonValue profile = JsonValueBuilder.toJsonValue("{\"platform\":\"android\",\"version\":29}");
+    JsonValue storedProfile = JsonValueBuilder
+        .toJsonValue("{\"version\":29.0,\"platform\":\"android\"}");
+
+    JsonValue existing = JsonValueBuilder.jsonValue().build();
+    existing.put("identifier", "testIdentifier");
+    existing.put("profile", storedProfile);
+    existing.put("profileFingerprint", JsonFingerprint.of(storedProfile));
+
+    JsonValue sharedState = json(object(field(USERNAME, "bob"),
+        field(DeviceAttribute.IDENTIFIER.getVariableName(), "testIdentifier"),
+        field(DeviceAttribute.PROFILE.getVariableName(), profile)
+    ));
+
+    // When
+    when(amIdentity.getAttribute(anyString())).thenReturn(Collections.singleton(existing.toString()));
+    Action result = node.process(getContext(sharedState, json(object()), emptyList()));
+
+    //Then
+    assertThat(result.outcome).isEqualTo("true");
+  }
+
+  @Test
+  public void testProcessContextNotMatchByFingerprint()
+      throws NodeProcessException, IdRepoException, SSOException {
+
+    JsonValue profile = JsonValueBuilder.toJsonValue("{\"platform\":\"android\"}");
+
+    JsonValue existing = JsonValueBuilder.jsonValue().build();
+    existing.put("identifier", "testIdentifier");
+    existing.put("profile", profile);
+    existing.put("profileFingerprint", "stale");
+
+    JsonValue sharedState = json(object(field(USERNAME, "bob"),
+        field(DeviceAttribute.IDENTIFIER.getVariableName(), "testIdentifier"),
+        field(DeviceAttribute.PROFILE.getVariableName(), profile)
+    ));
+
+    // When
+    when(amIdentity.getAttribute(anyString())).thenReturn(Collections.singleton(existing.toString()));
+    Action result = node.process(getContext(sharedState, json(object()), emptyList()));
+
+    //Then
+    assertThat(result.outcome).isEqualTo("false");
+  }
+
+  @Test
+  public void testProcessScore()
+      throws NodeProcessException, IdRepoException, SSOException {
+
+    JsonValue profile = JsonValueBuilder
+        .toJsonValue("{\"platform\":{\"model\":\"Pixel\",\"version\":30}}");
+    JsonValue storedProfile = JsonValueBuilder
+        .toJsonValue("{\"platform\":{\"model\":\"Pixel\",\"version\":29}}");
+
+    JsonValue existing = JsonValueBuilder.jsonValue().build();
+    existing.put("identifier", "testIdentifier");
+    existing.put("profile", storedProfile);
+
+    JsonValue sharedState = json(object(field(USERNAME, "bob"),
+        field(DeviceAttribute.IDENTIFIER.getVariableName(), "testIdentifier"),
+        field(DeviceAttribute.PROFILE.getVariableName(), profile)
+    ));
+
+    Map<String, String> weights = new HashMap<>();
+    weights.put("platform/model", "3");
+    weights.put("platform/version", "1");
+
+    // When
+    given(config.matchMode()).willReturn(MatchMode.SCORE);
+    given(config.fieldWeights()).willReturn(weights);
+    given(config.threshold()).willReturn(75);
+    node = new DeviceContextMatchNode(coreWrapper, deviceRepository, metrics, config, realm);
+    when(amIdentity.getAttribute(anyString())).thenReturn(Collections.singleton(existing.toString()));
+    Action result = node.process(getContext(sharedState, json(object()), emptyList()));
+
+    //Then
+    assertThat(result.outcome).isEqualTo("true");
+    assertThat(result.sharedState.get(DeviceContextMatchNode.PROFILE_SCORE).asDouble())
+        .isEqualTo(75);
+  }
+
+  @Test
+  public void testProcessMemoizesIdentityAndDevicesPerRequest()
+      throws NodeProcessException, IdRepoException, SSOException {
+
+    JsonValue profile = JsonValueBuilder.jsonValue().build();
+    profile.put("platform", "android");
+
+    JsonValue existing = JsonValueBuilder.jsonValue().build();
+    existing.put("identifier", "testIdentifier");
+    existing.put("profile", profile);
+
+    JsonValue sharedState = json(object(field(USERNAME, "bob"),
+        field(DeviceAttribute.IDENTIFIER.getVariableName(), "testIdentifier"),
+        field(DeviceAttribute.PROFILE.getVariableName(), profile)
+    ));
+
+    Map<String, Object> attributes = new HashMap<>();
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    doAnswer(invocation -> attributes.put(invocation.getArgument(0), invocation.getArgument(1)))
+        .when(request).setAttribute(anyString(), any());
+    given(request.getAttribute(anyString()))
+        .willAnswer(invocation -> attributes.get(invocation.<String>getArgument(0)));
+    TreeContext context = new TreeContext(sharedState, json(object()),
+        new Builder().servletRequest(request).build(), emptyList());
+
+    // When
+    when(amIdentity.getAttribute(anyString())).thenReturn(Collections.singleton(existing.toString()));
+    node.process(context);
+    Action result = node.process(context);
+
+    //Then
+    assertThat(result.outcome).isEqualTo("true");
+    verify(coreWrapper, times(1)).getIdentity(anyString(), anyString());
+    verify(deviceRepository, times(1)).getDevices(amIdentity);
+  }
+
   @Test
   public void testProcessContextNotMatch()
       throws NodeProcessException, IdRepoException, SSOException {
@@ -234,6 +408,29 @@ public class DeviceContextMatchNodeTest {
 
   }
 
+  @Test
+  public void testThresholdValidator() {
+    PercentageValidator validator = new PercentageValidator();
+
+    assertThat(validator.validate(Collections.singleton("0"))).isTrue();
+    assertThat(validator.validate(Collections.singleton(" 100"))).isTrue();
+    assertThat(validator.validate(Collections.singleton("101"))).isFalse();
+    assertThat(validator.validate(Collections.singleton("-1"))).isFalse();
+    assertThat(validator.validate(Collections.singleton("80%"))).isFalse();
+  }
+
+  @Test
+  public void testValidator() {
+    FieldWeightValidator validator = new FieldWeightValidator();
+
+    assertThat(validator.validate(Collections.singleton("[platform/model]= 3"))).isTrue();
+    assertThat(validator.validate(Collections.singleton("[platform/model]=0.5"))).isTrue();
+    assertThat(validator.validate(Collections.singleton("[platform/model]=-1"))).isFalse();
+    assertThat(validator.validate(Collections.singleton("[platform/model]=three"))).isFalse();
+    assertThat(validator.validate(Collections.singleton("[platform/model]=NaN"))).isFalse();
+    assertThat(validator.validate(Collections.singleton("platform/model=3"))).isFalse();
+  }
+
   private TreeContext getContext(JsonValue sharedState, JsonValue transientState,
       List<? extends Callback> callbacks) {
     return new TreeContext(sharedState, transientState, new Builder().build(), callbacks);
@@ -0,0 +1,100 @@
+package org.forgerock.openam.auth.nodes;
+
+
+import static java.util.Collections.emptyList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.util.Collections;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.ExternalRequestContext.Builder;
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.openam.auth.nodes.DeviceGeofenceNode.Config;
+import org.forgerock.openam.utils.JsonValueBuilder;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class DeviceGeofenceNodeTest {
+
+  @Mock
+  Config config;
+
+  @Spy
+  InMemoryDeviceMetrics metrics;
+
+  @InjectMocks
+  DeviceGeofenceNode node;
+
+  @BeforeMethod
+  public void setup() {
+    node = null;
+    metrics = new InMemoryDeviceMetrics();
+    initMocks(this);
+    given(config.polygons()).willReturn(Collections.singletonMap("vancouver",
+        "49.32,-123.27;49.32,-123.02;49.19,-123.02;49.19,-123.27"));
+  }
+
+  @Test
+  public void testProcessInside() throws NodeProcessException {
+    Action result = node.process(getContext(49.2827, -123.1207));
+
+    assertThat(result.outcome).isEqualTo("true");
+    assertThat(result.sharedState.get(DeviceGeofenceNode.GEOFENCE).asString())
+        .isEqualTo("vancouver");
+  }
+
+  @Test
+  public void testProcessOutside() throws NodeProcessException {
+    Action result = node.process(getContext(47.6062, -122.3321));
+
+    assertThat(result.outcome).isEqualTo("false");
+  }
+
+  @Test(expectedExceptions = NodeProcessException.class)
+  public void testProcessWithoutLocation() throws NodeProcessException {
+    node.process(new TreeContext(json(object(field(USERNAME, "bob"))), json(object()),
+        new Builder().build(), emptyList()));
+  }
+
+  @Test
+  public void testValidator() {
+    PolygonValidator validator = new PolygonValidator();
+
+    assertThat(validator.validate(Collections.singleton(
+        "[vancouver]=49.0,-123.5;49.5,-123.5;49.5,-122.5;49.0,-122.5"))).isTrue();
+    assertThat(validator.validate(Collections.singleton("[line]=49.0,-123.5;49.5,-123.5")))
+        .isFalse();
+    assertThat(validator.validate(Collections.singleton("[typo]=49.0,-123.5;49.5;49.5,-122.5")))
+        .isFalse();
+    assertThat(validator.validate(Collections.singleton("[text]=a,b;c,d;e,f"))).isFalse();
+    assertThat(validator.validate(Collections.singleton("[nan]=NaN,0;1,1;1,0"))).isFalse();
+    assertThat(validator.validate(Collections.singleton("[infinite]=0,0;1,Infinity;1,0")))
+        .isFalse();
+    assertThat(validator.validate(Collections.singleton("[north]=0,0;91,1;1,0"))).isFalse();
+    assertThat(validator.validate(Collections.singleton("[east]=0,0;1,180.5;1,0"))).isFalse();
+    assertThat(validator.validate(Collections.singleton("[edges]=-90,-180;90,-180;90,180")))
+        .isTrue();
+    assertThat(validator.validate(Collections.singleton("49.0,-123.5;49.5,-123.5;49.5,-122.5")))
+        .isFalse();
+  }
+
+  private TreeContext getContext(double latitude, double longitude) {
+    JsonValue sharedState = json(object(field(USERNAME, "bob"),
+        field(DeviceAttribute.LOCATION.getVariableName(),
+            JsonValueBuilder.jsonValue().put("latitude", latitude).put("longitude", longitude)
+                .build())
+    ));
+    return new TreeContext(sharedState, json(object()), new Builder().build(), emptyList());
+  }
+
+}
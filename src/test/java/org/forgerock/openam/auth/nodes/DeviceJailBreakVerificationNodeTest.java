@@ -9,6 +9,7 @@ import static org.forgerock.json.JsonValue.object;
 import static org.mockito.BDDMockito.given;
 import static org.mockito.MockitoAnnotations.initMocks;
 
+import java.util.Collections;
 import java.util.List;
 import javax.security.auth.callback.Callback;
 import org.forgerock.json.JsonValue;
@@ -20,6 +21,7 @@ import org.forgerock.openam.auth.nodes.DeviceJailBreakVerificationNode.Config;
 import org.forgerock.openam.utils.JsonValueBuilder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
@@ -28,12 +30,16 @@ public class DeviceJailBreakVerificationNodeTest {
   @Mock
   Config config;
 
+  @Spy
+  InMemoryDeviceMetrics metrics;
+
   @InjectMocks
   DeviceJailBreakVerificationNode node;
 
   @BeforeMethod
   public void setup() {
     node = null;
+    metrics = new InMemoryDeviceMetrics();
     initMocks(this);
     given(config.score()).willReturn("0.5"); //min score to pass
   }
@@ -119,6 +125,47 @@ public class DeviceJailBreakVerificationNodeTest {
     assertThat(result.outcome).isEqualTo("true");
   }
 
+  @Test
+  public void testProcessWithoutScore()
+      throws NodeProcessException {
+
+    JsonValue sharedState = json(object(
+        field(DeviceAttribute.PROFILE.getVariableName(), JsonValueBuilder.jsonValue().build())
+    ));
+
+    JsonValue transientState = json(object());
+
+    // When
+    Action result = node.process(getContext(sharedState, transientState, emptyList()));
+
+    //Then
+    assertThat(result.outcome).isEqualTo("false");
+  }
+
+  @Test(expectedExceptions = NodeProcessException.class)
+  public void testProcessWithInvalidScoreLimit()
+      throws NodeProcessException {
+    given(config.score()).willReturn("1 || true");
+    JsonValue platform = JsonValueBuilder.jsonValue().put("jailBreakScore", 0).build();
+    JsonValue sharedState = json(object(
+        field(DeviceAttribute.PROFILE.getVariableName(),
+            JsonValueBuilder.jsonValue().put("platform", platform.getObject()).build())
+    ));
+
+    // When
+    node.process(getContext(sharedState, json(object()), emptyList()));
+  }
+
+  @Test
+  public void testValidator() {
+    DecimalValidator validator = new DecimalValidator();
+
+    assertThat(validator.validate(Collections.singleton(" 0.5"))).isTrue();
+    assertThat(validator.validate(Collections.singleton("1 || true"))).isFalse();
+    assertThat(validator.validate(Collections.singleton("platform.version"))).isFalse();
+    assertThat(validator.validate(Collections.singleton("NaN"))).isFalse();
+  }
+
   @Test(expectedExceptions = NodeProcessException.class)
   public void testProcessNoProfileCollected()
       throws NodeProcessException {
@@ -0,0 +1,282 @@
+package org.forgerock.openam.auth.nodes;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+import com.sun.identity.authentication.callbacks.HiddenValueCallback;
+import com.sun.identity.idm.IdServices;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.security.auth.callback.Callback;
+import javax.servlet.http.HttpServletRequest;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.ExternalRequestContext.Builder;
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.openam.auth.nodes.DeviceAttributeStoreNode.StoreMode;
+import org.forgerock.openam.auth.nodes.InMemoryIdentityStore.Latency;
+import org.forgerock.openam.core.realms.Realm;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Load driver running Collector, Context Match, Location Range and Store journeys concurrently
+ * against an {@link InMemoryIdentityStore}, to measure the throughput and contention of the
+ * device nodes without a directory. The nodes run with their default configuration, the collector
+ * also collecting the location, and share one {@link InMemoryDeviceMetrics}.
+ *
+ * <p>
+ * Each journey picks a random user and device, and moves the device one time out of ten. All
+ * the nodes of a journey share a request, as when the collected attributes are posted.
+ * </p>
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *   -Dexec.mainClass=org.forgerock.openam.auth.nodes.DeviceLoadDriver \
+ *   -Dexec.args="threads journeys users devices readMicros writeMicros failureRate"
+ * </pre>
+ */
+public final class DeviceLoadDriver {
+
+  static final String REALM = "/";
+  private static final String CALLBACK = DeviceAttributeCollectorNode.SCHEME + "://"
+      + DeviceAttributeCollectorNode.HOST + "?attributes=profile&attributes=location";
+
+  private final int users;
+  private final int devices;
+  private final InMemoryDeviceMetrics metrics = new InMemoryDeviceMetrics(0);
+  private final DeviceAttributeCollectorNode collector;
+  private final DeviceContextMatchNode match;
+  private final DeviceLocationRangeNode locationRange;
+  private final DeviceAttributeStoreNode store;
+
+  /**
+   * Create the driver and its users in the store.
+   *
+   * @param identityStore The identity store
+   * @param users The number of users
+   * @param devices The number of devices of each user
+   */
+  DeviceLoadDriver(InMemoryIdentityStore identityStore, int users, int devices) {
+    this(identityStore, users, devices, StoreMode.REPLACE);
+  }
+
+  /**
+   * Create the driver and its users in the store.
+   *
+   * @param identityStore The identity store
+   * @param users The number of users
+   * @param devices The number of devices of each user
+   * @param storeMode How the store node writes the device records
+   */
+  DeviceLoadDriver(InMemoryIdentityStore identityStore, int users, int devices,
+      StoreMode storeMode) {
+    this.users = users;
+    this.devices = devices;
+    for (int i = 0; i < users; i++) {
+      identityStore.add(username(i), REALM);
+    }
+    Realm realm = new Realm() {
+      @Override
+      public String asDN() {
+        return REALM;
+      }
+
+      @Override
+      public String asPath() {
+        return REALM;
+      }
+    };
+    DeviceRepository deviceRepository = new DeviceRepository(
+        new DeviceRegistryCache(10000, 30, TimeUnit.SECONDS), metrics) {
+      @Override
+      IdServices getIdServices() {
+        return identityStore.getIdServices();
+      }
+    };
+    collector = new DeviceAttributeCollectorNode(identityStore.getCoreWrapper(), deviceRepository,
+        metrics, new DeviceAttributeCollectorNode.Config() {
+          @Override
+          public boolean deviceLocation() {
+            return true;
+          }
+        }, realm);
+    match = new DeviceContextMatchNode(identityStore.getCoreWrapper(), deviceRepository, metrics,
+        new DeviceContextMatchNode.Config() {
+        }, realm);
+    locationRange = new DeviceLocationRangeNode(identityStore.getCoreWrapper(), deviceRepository,
+        metrics, new DeviceLocationRangeNode.Config() {
+        }, realm);
+    store = new DeviceAttributeStoreNode(identityStore.getCoreWrapper(), deviceRepository,
+        new DeviceWriteBehindQueue(deviceRepository), metrics,
+        new DeviceAttributeStoreNode.Config() {
+          @Override
+          public StoreMode storeMode() {
+            return storeMode;
+          }
+        }, realm);
+  }
+
+  /**
+   * Run journeys until the given number has been run.
+   *
+   * @param threads The number of concurrent journeys
+   * @param journeys The number of journeys
+   * @return The outcome of the run
+   */
+  Result run(int threads, int journeys) throws InterruptedException {
+    AtomicInteger remaining = new AtomicInteger(journeys);
+    LongAdder completed = new LongAdder();
+    LongAdder failed = new LongAdder();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    long start = System.nanoTime();
+    for (int i = 0; i < threads; i++) {
+      executor.execute(() -> {
+        Map<String, Object> attributes = new HashMap<>();
+        HttpServletRequest request = request(attributes);
+        while (remaining.getAndDecrement() > 0) {
+          attributes.clear();
+          try {
+            journey(request);
+            completed.increment();
+          } catch (NodeProcessException | RuntimeException e) {
+            failed.increment();
+          }
+        }
+      });
+    }
+    executor.shutdown();
+    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    return new Result(completed.sum(), failed.sum(), System.nanoTime() - start);
+  }
+
+  /**
+   * The metrics recorded by the nodes.
+   */
+  InMemoryDeviceMetrics getMetrics() {
+    return metrics;
+  }
+
+  private void journey(HttpServletRequest request) throws NodeProcessException {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int user = random.nextInt(users);
+    int device = random.nextInt(devices);
+    HiddenValueCallback callback = new HiddenValueCallback(CALLBACK);
+    callback.setValue(payload(user, device, random.nextInt(10) == 0 ? 1 : 0).toString());
+
+    JsonValue sharedState = collector.process(context(request,
+        json(object(field(USERNAME, username(user)))), singletonList(callback))).sharedState;
+    match.process(context(request, sharedState, emptyList()));
+    locationRange.process(context(request, sharedState, emptyList()));
+    store.process(context(request, sharedState, emptyList()));
+  }
+
+  private static TreeContext context(HttpServletRequest request, JsonValue sharedState,
+      List<? extends Callback> callbacks) {
+    return new TreeContext(sharedState, json(object()),
+        new Builder().servletRequest(request).build(), callbacks);
+  }
+
+  /**
+   * A request of one thread, keeping its attributes in the given map.
+   */
+  private static HttpServletRequest request(Map<String, Object> attributes) {
+    HttpServletRequest request = mock(HttpServletRequest.class, withSettings().stubOnly());
+    given(request.getAttribute(anyString()))
+        .willAnswer(invocation -> attributes.get(invocation.<String>getArgument(0)));
+    willAnswer(invocation -> attributes.put(invocation.getArgument(0), invocation.getArgument(1)))
+        .given(request).setAttribute(anyString(), any());
+    willAnswer(invocation -> attributes.remove(invocation.<String>getArgument(0)))
+        .given(request).removeAttribute(anyString());
+    return request;
+  }
+
+  private static JsonValue payload(int user, int device, int moved) {
+    return json(object(
+        field("identifier", String.format("%08x-%04x", user, device)),
+        field("profile", object(
+            field("platform", object(
+                field("jailBreakScore", 0),
+                field("model", "Model " + device % 5),
+                field("version", 29),
+                field("platform", "Android"))),
+            field("hardware", object(
+                field("memory", 1494),
+                field("storage", 774 + device))))),
+        field("location", object(
+            field("latitude", 49.2827 + user % 90 * 0.01 + moved * 0.5),
+            field("longitude", -123.1207 + device * 0.01)))));
+  }
+
+  static String username(int user) {
+    return "user" + user;
+  }
+
+  /**
+   * Outcome of a run.
+   */
+  static final class Result {
+
+    final long completed;
+    final long failed;
+    final long elapsedNanos;
+
+    Result(long completed, long failed, long elapsedNanos) {
+      this.completed = completed;
+      this.failed = failed;
+      this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * @return The number of journeys run per second, failed ones included
+     */
+    double getThroughput() {
+      return (completed + failed) * 1e9 / Math.max(elapsedNanos, 1);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d journeys completed, %d failed in %d ms, %.1f journeys/s",
+          completed, failed, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), getThroughput());
+    }
+  }
+
+  /**
+   * Run the journeys and log the result and the metrics.
+   */
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+    int journeys = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+    int users = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+    int devices = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+    long readMicros = args.length > 4 ? Long.parseLong(args[4]) : 500;
+    long writeMicros = args.length > 5 ? Long.parseLong(args[5]) : 2000;
+    double failureRate = args.length > 6 ? Double.parseDouble(args[6]) : 0;
+
+    DeviceLoadDriver driver = new DeviceLoadDriver(new InMemoryIdentityStore(
+        Latency.exponential(readMicros), Latency.exponential(writeMicros), failureRate),
+        users, devices);
+    Logger logger = LoggerFactory.getLogger(DeviceLoadDriver.class);
+    logger.info("{}", driver.run(threads, journeys));
+    logger.info("{}", driver.getMetrics().snapshot());
+  }
+
+}
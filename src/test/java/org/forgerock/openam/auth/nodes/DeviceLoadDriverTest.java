@@ -0,0 +1,66 @@
+package org.forgerock.openam.auth.nodes;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.forgerock.openam.auth.nodes.DeviceAttributeStoreNode.StoreMode;
+import org.forgerock.openam.auth.nodes.DeviceLoadDriver.Result;
+import org.forgerock.openam.auth.nodes.InMemoryIdentityStore.Latency;
+import org.testng.annotations.Test;
+
+public class DeviceLoadDriverTest {
+
+  @Test
+  public void testRun() throws Exception {
+    InMemoryIdentityStore identityStore = new InMemoryIdentityStore();
+    DeviceLoadDriver driver = new DeviceLoadDriver(identityStore, 20, 3);
+
+    Result result = driver.run(4, 200);
+
+    assertThat(result.completed).isEqualTo(200);
+    assertThat(result.failed).isEqualTo(0);
+    assertThat(identityStore.getWrites()).isGreaterThan(0);
+    for (int i = 0; i < 20; i++) {
+      assertThat(identityStore.get(DeviceLoadDriver.username(i), DeviceLoadDriver.REALM,
+          DeviceRepository.DEVICE_ATTRIBUTES).size()).isLessThanOrEqualTo(3);
+    }
+    InMemoryDeviceMetrics metrics = driver.getMetrics();
+    assertThat(metrics.getTimer("device.collector.process").getCount()).isEqualTo(200);
+    assertThat(metrics.getTimer("device.store.process").getCount()).isEqualTo(200);
+    //The identity is looked up once per journey
+    assertThat(metrics.getTimer("device.identity.lookup").getCount()).isEqualTo(200);
+  }
+
+  @Test
+  public void testRunAddingNewDevices() throws Exception {
+    InMemoryIdentityStore identityStore = new InMemoryIdentityStore();
+    DeviceLoadDriver driver = new DeviceLoadDriver(identityStore, 20, 3, StoreMode.DELTA);
+
+    Result result = driver.run(1, 200);
+
+    assertThat(result.completed).isEqualTo(200);
+    assertThat(result.failed).isEqualTo(0);
+    for (int i = 0; i < 20; i++) {
+      assertThat(identityStore.get(DeviceLoadDriver.username(i), DeviceLoadDriver.REALM,
+          DeviceRepository.DEVICE_ATTRIBUTES).size()).isLessThanOrEqualTo(3);
+    }
+    InMemoryDeviceMetrics metrics = driver.getMetrics();
+    //Each device is enrolled by an addition, then rewritten when it moves
+    assertThat(metrics.getCount("device.repository.write.add")).isGreaterThan(0);
+    assertThat(metrics.getCount("device.repository.write.replace")).isGreaterThan(0);
+    assertThat(metrics.getCount("device.repository.write.add")
+        + metrics.getCount("device.repository.write.replace")).isEqualTo(identityStore.getWrites());
+  }
+
+  @Test
+  public void testRunWithFailures() throws Exception {
+    DeviceLoadDriver driver = new DeviceLoadDriver(
+        new InMemoryIdentityStore(Latency.NONE, Latency.NONE, 1), 5, 2);
+
+    Result result = driver.run(2, 50);
+
+    assertThat(result.completed).isEqualTo(0);
+    assertThat(result.failed).isEqualTo(50);
+    assertThat(driver.getMetrics().getCount("device.contextMatch.error")).isEqualTo(50);
+  }
+
+}
@@ -15,8 +15,10 @@ import static org.mockito.MockitoAnnotations.initMocks;
 import com.iplanet.sso.SSOException;
 import com.sun.identity.idm.AMIdentity;
 import com.sun.identity.idm.IdRepoException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import javax.security.auth.callback.Callback;
 import org.forgerock.json.JsonValue;
 import org.forgerock.openam.auth.node.api.Action;
@@ -29,6 +31,7 @@ import org.forgerock.openam.core.realms.Realm;
 import org.forgerock.openam.utils.JsonValueBuilder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
@@ -46,16 +49,26 @@ public class DeviceLocationRangeNodeTest {
   @Mock
   Config config;
 
+  @Spy
+  InMemoryDeviceMetrics metrics;
+
+  @Spy
+  DeviceRepository deviceRepository;
+
   @InjectMocks
   DeviceLocationRangeNode node;
 
   @BeforeMethod
   public void setup() throws IdRepoException, SSOException {
     node = null;
+    metrics = new InMemoryDeviceMetrics();
+    deviceRepository = new DeviceRepository(new DeviceRegistryCache(100, 1, TimeUnit.MINUTES),
+        metrics);
     initMocks(this);
     given(realm.asDN()).willReturn("/");
     given(coreWrapper.getIdentity(anyString(), anyString())).willReturn(amIdentity);
     given(amIdentity.isExists()).willReturn(true);
+    given(amIdentity.getUniversalId()).willReturn("id=bob,ou=user,dc=openam");
     given(amIdentity.isActive()).willReturn(true);
     given(config.distance()).willReturn("100");
   }
@@ -98,6 +111,46 @@ public class DeviceLocationRangeNodeTest {
     assertThat(result.outcome).isEqualTo("true");
   }
 
+  @Test
+  public void testProcessContextWithinRangeOfLocationHistory()
+      throws NodeProcessException, IdRepoException, SSOException {
+
+    JsonValue storedLocation = JsonValueBuilder.jsonValue().build();
+    storedLocation.put("latitude", 49.2827);
+    storedLocation.put("longitude", -123.1207);
+
+    JsonValue pastLocation = JsonValueBuilder.jsonValue().build();
+    pastLocation.put("latitude", 47.6062);
+    pastLocation.put("longitude", -122.3321);
+
+    JsonValue newLocation = JsonValueBuilder.jsonValue().build();
+    newLocation.put("latitude", 47.6101);
+    newLocation.put("longitude", -122.3344);
+
+    JsonValue existing = JsonValueBuilder.jsonValue().build();
+    existing.put("identifier", "testIdentifier");
+    existing.put("location", storedLocation);
+    existing.put("locationHistory", Arrays.asList(pastLocation.getObject(),
+        storedLocation.getObject()));
+
+    JsonValue sharedState = json(object(field(USERNAME, "bob"),
+        field(DeviceAttribute.IDENTIFIER.getVariableName(), "testIdentifier"),
+        field(DeviceAttribute.LOCATION.getVariableName(), newLocation)
+    ));
+
+    // When
+    when(amIdentity.getAttribute(anyString()))
+        .thenReturn(Collections.singleton(existing.toString()));
+    given(config.locationHistory()).willReturn(false);
+    Action lastLocation = node.process(getContext(sharedState, json(object()), emptyList()));
+    given(config.locationHistory()).willReturn(true);
+    Action history = node.process(getContext(sharedState, json(object()), emptyList()));
+
+    //Then
+    assertThat(lastLocation.outcome).isEqualTo("false");
+    assertThat(history.outcome).isEqualTo("true");
+  }
+
   @Test
   public void testProcessContextWithExactMatch()
       throws NodeProcessException, IdRepoException, SSOException {
@@ -0,0 +1,203 @@
+package org.forgerock.openam.auth.nodes;
+
+
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.sun.identity.idm.AMIdentity;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.forgerock.openam.utils.JsonValueBuilder;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class DeviceMigrationTest {
+
+  private static final String LEGACY = "{\"identifier\":\"id\",\"profile\":{\"test\":1}}";
+
+  private final List<AMIdentity> users = new ArrayList<>();
+  private final AtomicInteger searches = new AtomicInteger();
+  private Path directory;
+  private Path checkpoint;
+  private DeviceMigration migration;
+
+  @BeforeMethod
+  public void setup() throws Exception {
+    users.clear();
+    searches.set(0);
+    for (String name : new String[]{"a", "alice", "albert", "bob", "carol"}) {
+      users.add(user(name, LEGACY));
+    }
+    users.add(user("dave", "{\"identifier\":\"id\",\"profile\":{\"test\":1},"
+        + "\"profileFingerprint\":\"done\"}"));
+    directory = Files.createTempDirectory("migration");
+    checkpoint = directory.resolve(DeviceAttributeCollectorPlugin.MIGRATION_STATE);
+    DeviceMigration.schedule("test", checkpoint);
+    migration = new DeviceMigration("test", checkpoint, this::search,
+        new DeviceRepository(new DeviceRegistryCache(100, 1, TimeUnit.MINUTES),
+            new InMemoryDeviceMetrics()),
+        DeviceMigration.PROFILE_FINGERPRINT_MIGRATION, 2, 1000, 2);
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    try (Stream<Path> paths = Files.walk(directory)) {
+      paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testRun() throws Exception {
+    assertThat(migration.isPending()).isTrue();
+
+    migration.run(singletonList("/"));
+
+    for (AMIdentity user : users.subList(0, 5)) {
+      ArgumentCaptor<Map> attributes = ArgumentCaptor.forClass(Map.class);
+      verify(user).setAttributes(attributes.capture());
+      Set<String> values = (Set<String>) attributes.getValue()
+          .get(DeviceRepository.DEVICE_ATTRIBUTES);
+      assertThat(values).hasSize(1);
+      assertThat(values.iterator().next()).contains("\"profileFingerprint\":\""
+          + JsonFingerprint.of(JsonValueBuilder.toJsonValue("{\"test\":1}")) + "\"");
+    }
+    verify(users.get(5), never()).setAttributes(anyMap());
+    assertThat(migration.getScanned()).isEqualTo(6);
+    assertThat(migration.getMigrated()).isEqualTo(5);
+    assertThat(migration.getFailed()).isZero();
+    assertThat(migration.isPending()).isFalse();
+
+    //A completed migration does nothing
+    searches.set(0);
+    migration.run(singletonList("/"));
+    assertThat(searches.get()).isZero();
+  }
+
+  @Test
+  public void testResume() throws Exception {
+    StateFile.append(checkpoint, "/\ta");
+
+    migration.run(singletonList("/"));
+
+    verify(users.get(1), never()).setAttributes(anyMap());
+    verify(users.get(3)).setAttributes(anyMap());
+    assertThat(migration.getMigrated()).isEqualTo(2);
+  }
+
+  @Test
+  public void testRunReportsFailures() throws Exception {
+    doThrow(new IllegalStateException("Failed")).when(users.get(3)).store();
+
+    migration.run(singletonList("/"));
+
+    assertThat(migration.getFailed()).isEqualTo(1);
+    assertThat(migration.getMigrated()).isEqualTo(4);
+    assertThat(migration.isPending()).isTrue();
+  }
+
+  @Test
+  public void testRunRetriesFailures() throws Exception {
+    doThrow(new IllegalStateException("Failed")).doNothing().when(users.get(3)).store();
+    migration.run(singletonList("/"));
+    assertThat(Files.readAllLines(checkpoint))
+        .contains("/\ta").doesNotContain("/\tb");
+
+    migration.run(singletonList("/"));
+
+    verify(users.get(1)).setAttributes(anyMap());
+    verify(users.get(3), times(2)).setAttributes(anyMap());
+    assertThat(migration.getFailed()).isEqualTo(1);
+    assertThat(migration.getMigrated()).isEqualTo(5);
+    assertThat(migration.isPending()).isFalse();
+  }
+
+  @Test
+  public void testRunPagesThroughLongPrefix() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      users.add(user("abcdefghij" + i, LEGACY));
+    }
+
+    migration.run(singletonList("/"));
+
+    for (AMIdentity user : users.subList(6, 11)) {
+      verify(user).setAttributes(anyMap());
+    }
+    assertThat(migration.getMigrated()).isEqualTo(10);
+    assertThat(migration.isPending()).isFalse();
+  }
+
+  @Test
+  public void testRunMigratesNamesOutsideOfTheAlphabet() throws Exception {
+    users.add(user("Zed", LEGACY));
+    users.add(user("+plus", LEGACY));
+
+    migration.run(singletonList("/"));
+
+    verify(users.get(6)).setAttributes(anyMap());
+    verify(users.get(7)).setAttributes(anyMap());
+    //Users of the alphabet pages are not migrated again
+    verify(users.get(1)).setAttributes(anyMap());
+    assertThat(migration.getMigrated()).isEqualTo(7);
+    assertThat(Files.readAllLines(checkpoint)).contains("/\t*");
+    assertThat(migration.isPending()).isFalse();
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testRunMigratesRecordsChangedConcurrently() throws Exception {
+    String updated = "{\"identifier\":\"id\",\"profile\":{\"test\":2}}";
+    given(users.get(4).getAttribute(anyString())).willReturn(Collections.singleton(LEGACY),
+        Collections.singleton(updated));
+
+    migration.run(singletonList("/"));
+
+    ArgumentCaptor<Map> attributes = ArgumentCaptor.forClass(Map.class);
+    verify(users.get(4)).setAttributes(attributes.capture());
+    Set<String> values = (Set<String>) attributes.getValue()
+        .get(DeviceRepository.DEVICE_ATTRIBUTES);
+    assertThat(values).hasSize(1);
+    assertThat(values.iterator().next()).contains("\"test\":2").contains("\"profileFingerprint\":\""
+        + JsonFingerprint.of(JsonValueBuilder.toJsonValue("{\"test\":2}")) + "\"");
+  }
+
+  private List<AMIdentity> search(String realm, String pattern, int maxResults) {
+    searches.incrementAndGet();
+    String prefix = pattern.endsWith("*") ? pattern.substring(0, pattern.length() - 1) : null;
+    return users.stream()
+        .filter(user -> prefix != null ? user.getName().startsWith(prefix)
+            : user.getName().equals(pattern))
+        .limit(maxResults)
+        .collect(Collectors.toList());
+  }
+
+  private static AMIdentity user(String name, String value) throws Exception {
+    AMIdentity user = mock(AMIdentity.class);
+    given(user.getName()).willReturn(name);
+    given(user.getUniversalId()).willReturn("id=" + name + ",ou=user,dc=openam");
+    given(user.getAttribute(anyString())).willReturn(Collections.singleton(value));
+    return user;
+  }
+
+}
@@ -0,0 +1,103 @@
+package org.forgerock.openam.auth.nodes;
+
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.zip.Deflater;
+import org.testng.annotations.Test;
+
+public class DevicePayloadParserTest {
+
+  private static final String PAYLOAD = "{\"identifier\":\"id\",\"profile\":{\"platform\":"
+      + "{\"version\":29,\"jailBreakScore\":0.5},\"cameras\":[1,2]},\"ignored\":{\"a\":{\"b\":1}}}";
+
+  @Test
+  public void testParseRequestedAttributes() {
+    Map<String, Object> result = new DevicePayloadParser(0, 0, 0)
+        .parse(PAYLOAD, asList("identifier", "profile", "location"), false);
+
+    assertThat(result).containsOnlyKeys("identifier", "profile");
+    assertThat(result.get("identifier")).isEqualTo("id");
+    assertThat(result.get("profile").toString())
+        .isEqualTo("{platform={version=29, jailBreakScore=0.5}, cameras=[1, 2]}");
+  }
+
+  @Test
+  public void testWithinLimits() {
+    assertThat(new DevicePayloadParser(PAYLOAD.length(), 3, 11)
+        .parse(PAYLOAD, asList("profile"), false)).containsOnlyKeys("profile");
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testTooLarge() {
+    new DevicePayloadParser(PAYLOAD.length() - 1, 0, 0).parse(PAYLOAD, asList("profile"), false);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testTooDeep() {
+    new DevicePayloadParser(0, 2, 0).parse(PAYLOAD, asList("profile"), false);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testTooDeepInSkippedAttribute() {
+    new DevicePayloadParser(0, 3, 0)
+        .parse("{\"ignored\":[[[[1]]]],\"profile\":{}}", asList("profile"), false);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testTooManyFields() {
+    new DevicePayloadParser(0, 0, 10).parse(PAYLOAD, asList("profile"), false);
+  }
+
+  @Test
+  public void testParseDeflated() {
+    Map<String, Object> result = new DevicePayloadParser(2 * PAYLOAD.length(), 0, 0)
+        .parse(deflate(PAYLOAD), asList("identifier"), true);
+
+    assertThat(result).containsOnlyKeys("identifier");
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testDeflatedNotAccepted() {
+    new DevicePayloadParser(0, 0, 0).parse(deflate(PAYLOAD), asList("identifier"), false);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testDeflatedTooLarge() {
+    String padded = "{\"padding\":\"" + new String(new char[10000]).replace('\0', 'x') + "\"}";
+
+    new DevicePayloadParser(1000, 0, 0).parse(deflate(padded), asList("identifier"), true);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testDeflatedMalformed() {
+    new DevicePayloadParser(0, 0, 0).parse("deflate:bm90IGRlZmxhdGVk", asList("identifier"), true);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testNotAnObject() {
+    new DevicePayloadParser(0, 0, 0).parse("[1]", asList("profile"), false);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testTrailingContent() {
+    new DevicePayloadParser(0, 0, 0).parse("{} {}", asList("profile"), false);
+  }
+
+  static String deflate(String json) {
+    Deflater deflater = new Deflater();
+    deflater.setInput(json.getBytes(StandardCharsets.UTF_8));
+    deflater.finish();
+    byte[] buffer = new byte[json.length() + 64];
+    int length = deflater.deflate(buffer);
+    deflater.end();
+    return DevicePayloadParser.DEFLATE + ":"
+        + Base64.getEncoder().encodeToString(Arrays.copyOf(buffer, length));
+  }
+
+}
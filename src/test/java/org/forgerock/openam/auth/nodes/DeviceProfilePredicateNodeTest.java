@@ -0,0 +1,85 @@
+package org.forgerock.openam.auth.nodes;
+
+
+import static java.util.Collections.emptyList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.util.Collections;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.ExternalRequestContext.Builder;
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.openam.auth.nodes.DeviceProfilePredicateNode.Config;
+import org.forgerock.openam.utils.JsonValueBuilder;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class DeviceProfilePredicateNodeTest {
+
+  @Mock
+  Config config;
+
+  @Spy
+  InMemoryDeviceMetrics metrics;
+
+  @InjectMocks
+  DeviceProfilePredicateNode node;
+
+  @BeforeMethod
+  public void setup() {
+    node = null;
+    metrics = new InMemoryDeviceMetrics();
+    initMocks(this);
+    given(config.expression())
+        .willReturn("platform.jailBreakScore <= 0.5 && platform.version >= 10");
+  }
+
+  @Test
+  public void testProcessMatch() throws NodeProcessException {
+    Action result = node.process(getContext(0, 12));
+
+    assertThat(result.outcome).isEqualTo("true");
+  }
+
+  @Test
+  public void testProcessNoMatch() throws NodeProcessException {
+    Action result = node.process(getContext(0, 9));
+
+    assertThat(result.outcome).isEqualTo("false");
+  }
+
+  @Test(expectedExceptions = NodeProcessException.class)
+  public void testProcessMalformedExpression() throws NodeProcessException {
+    given(config.expression()).willReturn("platform.version >=");
+
+    node.process(getContext(0, 12));
+  }
+
+  @Test
+  public void testValidator() {
+    ProfilePredicateValidator validator = new ProfilePredicateValidator();
+
+    assertThat(validator.validate(Collections.singleton("platform.version > 1")))
+        .isTrue();
+    assertThat(validator.validate(Collections.singleton("platform.version >")))
+        .isFalse();
+  }
+
+  private TreeContext getContext(double jailBreakScore, int version) {
+    JsonValue profile = JsonValueBuilder.toJsonValue("{\"platform\":{\"jailBreakScore\":"
+        + jailBreakScore + ",\"version\":" + version + "}}");
+    JsonValue sharedState = json(object(
+        field(DeviceAttribute.PROFILE.getVariableName(), profile)));
+    return new TreeContext(sharedState, json(object()), new Builder().build(), emptyList());
+  }
+
+}
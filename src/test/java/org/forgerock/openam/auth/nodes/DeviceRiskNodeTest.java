@@ -0,0 +1,165 @@
+package org.forgerock.openam.auth.nodes;
+
+
+import static java.util.Collections.emptyList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import com.iplanet.sso.SSOException;
+import com.sun.identity.idm.AMIdentity;
+import com.sun.identity.idm.IdRepoException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.ExternalRequestContext.Builder;
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.openam.auth.nodes.DeviceRiskNode.Config;
+import org.forgerock.openam.core.CoreWrapper;
+import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.openam.utils.JsonValueBuilder;
+import org.mockito.Mock;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class DeviceRiskNodeTest {
+
+  private static final long NOW = 1577836800000L;
+
+  @Mock
+  CoreWrapper coreWrapper;
+
+  @Mock
+  AMIdentity amIdentity;
+
+  @Mock
+  Realm realm;
+
+  @Mock
+  Config config;
+
+  InMemoryDeviceMetrics metrics;
+
+  DeviceRiskNode node;
+
+  @BeforeMethod
+  public void setup() throws IdRepoException, SSOException {
+    initMocks(this);
+    metrics = new InMemoryDeviceMetrics();
+    node = new DeviceRiskNode(coreWrapper,
+        new DeviceRepository(new DeviceRegistryCache(100, 1, TimeUnit.MINUTES), metrics), metrics,
+        config, realm, Clock.fixed(Instant.ofEpochMilli(NOW), ZoneOffset.UTC));
+    given(realm.asDN()).willReturn("/");
+    given(coreWrapper.getIdentity(anyString(), anyString())).willReturn(amIdentity);
+    given(amIdentity.isExists()).willReturn(true);
+    given(amIdentity.getUniversalId()).willReturn("id=bob,ou=user,dc=openam");
+    given(amIdentity.isActive()).willReturn(true);
+    given(config.jailBreakWeight()).willReturn(40);
+    given(config.profileWeight()).willReturn(30);
+    given(config.locationWeight()).willReturn(20);
+    given(config.ageWeight()).willReturn(10);
+    given(config.threshold()).willReturn(50);
+    given(config.distance()).willReturn(100);
+    given(config.minimumAge()).willReturn(7);
+  }
+
+  @Test
+  public void testProcessKnownDevice() throws NodeProcessException, IdRepoException, SSOException {
+    given(amIdentity.getAttribute(anyString()))
+        .willReturn(Collections.singleton(existing(NOW - TimeUnit.DAYS.toMillis(30)).toString()));
+
+    Action result = node.process(getContext(0, 49.2827, -123.1207));
+
+    assertThat(result.outcome).isEqualTo("true");
+    assertThat(result.sharedState.get(DeviceRiskNode.RISK_SCORE).asDouble()).isEqualTo(0);
+  }
+
+  @Test
+  public void testProcessJailBrokenDeviceShortCircuits()
+      throws NodeProcessException, IdRepoException, SSOException {
+    given(config.threshold()).willReturn(40);
+
+    Action result = node.process(getContext(1, 49.2827, -123.1207));
+
+    assertThat(result.outcome).isEqualTo("false");
+    assertThat(result.sharedState.get(DeviceRiskNode.RISK_SCORE).asDouble()).isEqualTo(40);
+    verify(coreWrapper, never()).getIdentity(anyString(), anyString());
+  }
+
+  @Test
+  public void testProcessUnknownDevice()
+      throws NodeProcessException, IdRepoException, SSOException {
+    given(amIdentity.getAttribute(anyString())).willReturn(Collections.emptySet());
+
+    Action result = node.process(getContext(0, 49.2827, -123.1207));
+
+    assertThat(result.outcome).isEqualTo("false");
+    assertThat(result.sharedState.get(DeviceRiskNode.RISK_SCORE).asDouble()).isEqualTo(50);
+  }
+
+  @Test
+  public void testProcessFarLocationOfNewDevice()
+      throws NodeProcessException, IdRepoException, SSOException {
+    given(amIdentity.getAttribute(anyString()))
+        .willReturn(Collections.singleton(existing(NOW).toString()));
+    given(config.threshold()).willReturn(25);
+
+    //London is far from Vancouver
+    Action result = node.process(getContext(0, 51.5074, -0.1278));
+
+    assertThat(result.outcome).isEqualTo("false");
+    assertThat(result.sharedState.get(DeviceRiskNode.RISK_SCORE).asDouble()).isEqualTo(30);
+  }
+
+  @Test
+  public void testProcessDecidedLowRiskSkipsRemainingSignals()
+      throws NodeProcessException, IdRepoException, SSOException {
+    given(config.profileWeight()).willReturn(0);
+    given(config.locationWeight()).willReturn(0);
+
+    Action result = node.process(getContext(0, 49.2827, -123.1207));
+
+    assertThat(result.outcome).isEqualTo("true");
+    verify(coreWrapper, never()).getIdentity(anyString(), anyString());
+  }
+
+  private JsonValue existing(long firstSeen) {
+    JsonValue existing = JsonValueBuilder.jsonValue().build();
+    existing.put("identifier", "testIdentifier");
+    existing.put("profile", profile(0).getObject());
+    existing.put("location", JsonValueBuilder.jsonValue().put("latitude", 49.2827)
+        .put("longitude", -123.1207).build().getObject());
+    existing.put("firstSeen", firstSeen);
+    return existing;
+  }
+
+  private JsonValue profile(int jailBreakScore) {
+    return JsonValueBuilder.jsonValue().put("platform",
+        JsonValueBuilder.jsonValue().put("jailBreakScore", jailBreakScore).build().getObject())
+        .build();
+  }
+
+  private TreeContext getContext(int jailBreakScore, double latitude, double longitude) {
+    JsonValue sharedState = json(object(field(USERNAME, "bob"),
+        field(DeviceAttribute.IDENTIFIER.getVariableName(), "testIdentifier"),
+        field(DeviceAttribute.PROFILE.getVariableName(), profile(jailBreakScore)),
+        field(DeviceAttribute.LOCATION.getVariableName(),
+            JsonValueBuilder.jsonValue().put("latitude", latitude).put("longitude", longitude)
+                .build())
+    ));
+    return new TreeContext(sharedState, json(object()), new Builder().build(), emptyList());
+  }
+
+}
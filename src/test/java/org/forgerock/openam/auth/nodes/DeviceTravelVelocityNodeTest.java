@@ -0,0 +1,184 @@
+package org.forgerock.openam.auth.nodes;
+
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonMap;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import com.iplanet.sso.SSOException;
+import com.sun.identity.idm.AMIdentity;
+import com.sun.identity.idm.IdRepoException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.ExternalRequestContext.Builder;
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.openam.auth.nodes.DeviceAttributeStoreNode.StoreMode;
+import org.forgerock.openam.auth.nodes.DeviceTravelVelocityNode.Config;
+import org.forgerock.openam.core.CoreWrapper;
+import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.openam.utils.JsonValueBuilder;
+import org.mockito.Mock;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class DeviceTravelVelocityNodeTest {
+
+  private static final long NOW = 1577836800000L;
+
+  @Mock
+  CoreWrapper coreWrapper;
+
+  @Mock
+  AMIdentity amIdentity;
+
+  @Mock
+  Realm realm;
+
+  @Mock
+  Config config;
+
+  InMemoryDeviceMetrics metrics;
+
+  DeviceTravelVelocityNode node;
+
+  @BeforeMethod
+  public void setup() throws IdRepoException, SSOException {
+    initMocks(this);
+    metrics = new InMemoryDeviceMetrics();
+    node = new DeviceTravelVelocityNode(coreWrapper,
+        new DeviceRepository(new DeviceRegistryCache(100, 1, TimeUnit.MINUTES), metrics), metrics,
+        config, realm, Clock.fixed(Instant.ofEpochMilli(NOW), ZoneOffset.UTC));
+    given(realm.asDN()).willReturn("/");
+    given(coreWrapper.getIdentity(anyString(), anyString())).willReturn(amIdentity);
+    given(amIdentity.isExists()).willReturn(true);
+    given(amIdentity.getUniversalId()).willReturn("id=bob,ou=user,dc=openam");
+    given(amIdentity.isActive()).willReturn(true);
+    given(config.maxSpeed()).willReturn(1000);
+    given(config.tolerance()).willReturn(5);
+  }
+
+  @Test
+  public void testProcessPlausibleTravel()
+      throws NodeProcessException, IdRepoException, SSOException {
+    //Vancouver to Seattle, about 195 km, in 3 hours
+    Action result = process(49.2827, -123.1207, NOW - TimeUnit.HOURS.toMillis(3),
+        47.6062, -122.3321);
+
+    assertThat(result.outcome).isEqualTo("true");
+  }
+
+  @Test
+  public void testProcessImpossibleTravel()
+      throws NodeProcessException, IdRepoException, SSOException {
+    //Vancouver to London, about 7600 km, in 2 hours
+    Action result = process(49.2827, -123.1207, NOW - TimeUnit.HOURS.toMillis(2),
+        51.5074, -0.1278);
+
+    assertThat(result.outcome).isEqualTo("false");
+  }
+
+  @Test
+  public void testProcessImpossibleTravelAfterLongStay() throws Exception {
+    //Stored in Vancouver three weeks ago, and seen there again an hour ago
+    JsonValue existing = JsonValueBuilder.jsonValue().build();
+    existing.put("identifier", "testIdentifier");
+    existing.put("location", JsonValueBuilder.jsonValue().put("latitude", 49.2827)
+        .put("longitude", -123.1207).build().getObject());
+    existing.put("locationSample", JsonValueBuilder.jsonValue().put("latitude", 49.2827)
+        .put("longitude", -123.1207).put("timestamp", NOW - TimeUnit.DAYS.toMillis(21)).build()
+        .getObject());
+    existing.put("lastSeen", NOW - TimeUnit.HOURS.toMillis(2));
+    AtomicReference<Set<String>> stored = new AtomicReference<>(singleton(existing.toString()));
+    given(amIdentity.getAttribute(anyString())).willAnswer(invocation -> stored.get());
+    willAnswer(invocation -> {
+      stored.set(invocation.<Map<String, Set<String>>>getArgument(0).get("deviceAttributes"));
+      return null;
+    }).given(amIdentity).setAttributes(anyMap());
+    DeviceAttributeStoreNode.Config storeConfig = mock(DeviceAttributeStoreNode.Config.class);
+    given(storeConfig.storeMode()).willReturn(StoreMode.REPLACE);
+    new DeviceRepository(new DeviceRegistryCache(100, 1, TimeUnit.MINUTES), metrics,
+        Clock.fixed(Instant.ofEpochMilli(NOW - TimeUnit.HOURS.toMillis(1)), ZoneOffset.UTC))
+        .save(amIdentity, storeConfig, singletonMap("testIdentifier", json(object(
+            field("location", existing.get("location").getObject())))));
+
+    //Then in London
+    Action result = node.process(getContext(51.5074, -0.1278));
+
+    assertThat(result.outcome).isEqualTo("false");
+  }
+
+  @Test
+  public void testProcessWithinTolerance()
+      throws NodeProcessException, IdRepoException, SSOException {
+    Action result = process(49.2827, -123.1207, NOW, 49.2927, -123.1207);
+
+    assertThat(result.outcome).isEqualTo("true");
+  }
+
+  @Test
+  public void testProcessWithoutSample()
+      throws NodeProcessException, IdRepoException, SSOException {
+    JsonValue existing = JsonValueBuilder.jsonValue().build();
+    existing.put("identifier", "testIdentifier");
+
+    given(amIdentity.getAttribute(anyString()))
+        .willReturn(Collections.singleton(existing.toString()));
+    Action result = node.process(getContext(49.2827, -123.1207));
+
+    assertThat(result.outcome).isEqualTo("true");
+  }
+
+  @Test
+  public void testToleranceValidator() {
+    NonNegativeIntegerValidator validator = new NonNegativeIntegerValidator();
+
+    assertThat(validator.validate(singleton("0"))).isTrue();
+    assertThat(validator.validate(singleton(" 5"))).isTrue();
+    assertThat(validator.validate(singleton("-1"))).isFalse();
+    assertThat(validator.validate(singleton("5km"))).isFalse();
+  }
+
+  private Action process(double fromLatitude, double fromLongitude, long timestamp,
+      double toLatitude, double toLongitude)
+      throws NodeProcessException, IdRepoException, SSOException {
+    JsonValue existing = JsonValueBuilder.jsonValue().build();
+    existing.put("identifier", "testIdentifier");
+    existing.put("locationSample", JsonValueBuilder.jsonValue().put("latitude", fromLatitude)
+        .put("longitude", fromLongitude).put("timestamp", timestamp).build());
+
+    given(amIdentity.getAttribute(anyString()))
+        .willReturn(Collections.singleton(existing.toString()));
+    return node.process(getContext(toLatitude, toLongitude));
+  }
+
+  private TreeContext getContext(double latitude, double longitude) {
+    JsonValue sharedState = json(object(field(USERNAME, "bob"),
+        field(DeviceAttribute.IDENTIFIER.getVariableName(), "testIdentifier"),
+        field(DeviceAttribute.LOCATION.getVariableName(),
+            JsonValueBuilder.jsonValue().put("latitude", latitude).put("longitude", longitude)
+                .build())
+    ));
+    return new TreeContext(sharedState, json(object()), new Builder().build(), emptyList());
+  }
+
+}
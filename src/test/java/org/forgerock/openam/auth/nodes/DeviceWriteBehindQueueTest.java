@@ -0,0 +1,236 @@
+package org.forgerock.openam.auth.nodes;
+
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willAnswer;
+import static org.mockito.BDDMockito.willThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import com.iplanet.sso.SSOException;
+import com.sun.identity.idm.AMIdentity;
+import com.sun.identity.idm.IdRepoException;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.nodes.DeviceAttributeStoreNode.Config;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class DeviceWriteBehindQueueTest {
+
+  private static final int FLUSH_INTERVAL = 60000;
+
+  @Mock
+  DeviceRepository deviceRepository;
+
+  @Mock
+  Config config;
+
+  @Mock
+  AMIdentity bob;
+
+  @Mock
+  AMIdentity alice;
+
+  DeviceWriteBehindQueue queue;
+
+  @BeforeMethod
+  public void setup() {
+    initMocks(this);
+    given(bob.getUniversalId()).willReturn("id=bob,ou=user,dc=openam");
+    given(alice.getUniversalId()).willReturn("id=alice,ou=user,dc=openam");
+    queue = new DeviceWriteBehindQueue(deviceRepository, 2, 10);
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    queue.shutdown();
+  }
+
+  @Test
+  public void testCoalesceUpdatesOfTheSameUser() throws IdRepoException, SSOException {
+    JsonValue first = json(object(field("profile", "first"), field("location", "first")));
+    JsonValue second = json(object(field("location", "second")));
+    JsonValue other = json(object(field("profile", "other")));
+
+    // When
+    assertThat(queue.offer(FLUSH_INTERVAL, bob, config, "device1", first)).isTrue();
+    assertThat(queue.offer(FLUSH_INTERVAL, bob, config, "device1", second)).isTrue();
+    assertThat(queue.offer(FLUSH_INTERVAL, bob, config, "device2", other)).isTrue();
+    queue.flush();
+
+    //Then
+    ArgumentCaptor<Map<String, JsonValue>> captor = ArgumentCaptor.forClass(Map.class);
+    verify(deviceRepository).save(eq(bob), eq(config), captor.capture());
+    assertThat(captor.getValue()).containsOnlyKeys("device1", "device2");
+    assertThat(captor.getValue().get("device1").isEqualTo(
+        json(object(field("profile", "first"), field("location", "second"))))).isTrue();
+  }
+
+  @Test
+  public void testRejectWhenFull() throws IdRepoException, SSOException {
+    JsonValue attributes = json(object(field("profile", "value")));
+    DeviceWriteBehindQueue full = new DeviceWriteBehindQueue(deviceRepository, 1, 1);
+
+    try {
+      // When
+      assertThat(full.offer(FLUSH_INTERVAL, bob, config, "device1", attributes)).isTrue();
+      //Pending user can still be updated, whatever the flush interval of the node
+      assertThat(full.offer(1000, bob, config, "device2", attributes)).isTrue();
+
+      //Then
+      assertThat(full.offer(1000, alice, config, "device1", attributes)).isFalse();
+      verify(deviceRepository, never()).save(eq(alice), any(), any());
+    } finally {
+      full.shutdown();
+    }
+  }
+
+  @Test
+  public void testBoundUnderContention() throws Exception {
+    JsonValue attributes = json(object(field("profile", "value")));
+    AtomicInteger accepted = new AtomicInteger();
+    CountDownLatch ready = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    DeviceWriteBehindQueue bounded = new DeviceWriteBehindQueue(deviceRepository, 1, 100);
+
+    // When
+    try {
+      Future<?>[] results = new Future<?>[8];
+      for (int t = 0; t < results.length; t++) {
+        int thread = t;
+        results[t] = executor.submit(() -> {
+          ready.await();
+          for (int i = 0; i < 100; i++) {
+            AMIdentity user = mock(AMIdentity.class);
+            given(user.getUniversalId()).willReturn("id=user" + thread + "-" + i);
+            if (bounded.offer(FLUSH_INTERVAL, user, config, "device1", attributes)) {
+              accepted.incrementAndGet();
+            }
+          }
+          return null;
+        });
+      }
+      ready.countDown();
+      for (Future<?> result : results) {
+        result.get();
+      }
+    } finally {
+      executor.shutdownNow();
+      bounded.shutdown();
+    }
+
+    //Then
+    assertThat(accepted.get()).isEqualTo(100);
+  }
+
+  @Test
+  public void testWriteAfterFlushInterval() throws IdRepoException, SSOException {
+    JsonValue attributes = json(object(field("profile", "value")));
+
+    // When
+    assertThat(queue.offer(10, bob, config, "device1", attributes)).isTrue();
+
+    //Then
+    verify(deviceRepository, timeout(TimeUnit.SECONDS.toMillis(10))).save(eq(bob), eq(config),
+        any());
+  }
+
+  @Test
+  public void testRetryFailedWrite() throws IdRepoException, SSOException {
+    JsonValue first = json(object(field("profile", "first"), field("location", "first")));
+    JsonValue second = json(object(field("location", "second")));
+    willThrow(new IdRepoException("Unavailable")).willDoNothing().given(deviceRepository)
+        .save(eq(bob), eq(config), any());
+
+    // When
+    queue.offer(FLUSH_INTERVAL, bob, config, "device1", first);
+    queue.flush();
+    queue.offer(FLUSH_INTERVAL, bob, config, "device1", second);
+    queue.flush();
+
+    //Then
+    ArgumentCaptor<Map<String, JsonValue>> captor = ArgumentCaptor.forClass(Map.class);
+    verify(deviceRepository, times(2)).save(eq(bob), eq(config), captor.capture());
+    assertThat(captor.getValue().get("device1").isEqualTo(
+        json(object(field("profile", "first"), field("location", "second"))))).isTrue();
+  }
+
+  @Test
+  public void testGiveUpAfterMaxAttempts() throws IdRepoException, SSOException {
+    JsonValue attributes = json(object(field("profile", "value")));
+    willThrow(new IdRepoException("Unavailable")).given(deviceRepository)
+        .save(eq(bob), eq(config), any());
+
+    // When
+    queue.offer(FLUSH_INTERVAL, bob, config, "device1", attributes);
+    for (int i = 0; i < DeviceWriteBehindQueue.MAX_ATTEMPTS + 1; i++) {
+      queue.flush();
+    }
+
+    //Then
+    verify(deviceRepository, times(DeviceWriteBehindQueue.MAX_ATTEMPTS))
+        .save(eq(bob), eq(config), any());
+    //The capacity is released
+    for (int i = 0; i < 10; i++) {
+      AMIdentity user = mock(AMIdentity.class);
+      given(user.getUniversalId()).willReturn("id=user" + i);
+      assertThat(queue.offer(FLUSH_INTERVAL, user, config, "device1", attributes)).isTrue();
+    }
+  }
+
+  @Test
+  public void testRejectAfterShutdown() throws IdRepoException, SSOException {
+    JsonValue attributes = json(object(field("profile", "value")));
+
+    // When
+    queue.shutdown();
+
+    //Then
+    assertThat(queue.offer(FLUSH_INTERVAL, bob, config, "device1", attributes)).isFalse();
+    verify(deviceRepository, never()).save(any(), any(), any());
+  }
+
+  @Test
+  public void testFlushOnShutdown() throws Exception {
+    JsonValue attributes = json(object(field("profile", "value")));
+    CountDownLatch saving = new CountDownLatch(1);
+    CountDownLatch saved = new CountDownLatch(1);
+    willAnswer(invocation -> {
+      saving.countDown();
+      Thread.sleep(200);
+      saved.countDown();
+      return null;
+    }).given(deviceRepository).save(eq(bob), eq(config), any());
+
+    // When
+    queue.offer(0, bob, config, "device1", attributes);
+    queue.offer(FLUSH_INTERVAL, alice, config, "device1", attributes);
+    saving.await(10, TimeUnit.SECONDS);
+    queue.shutdown();
+
+    //Then the write in flight is not interrupted
+    assertThat(saved.getCount()).isZero();
+    verify(deviceRepository).save(eq(alice), eq(config), any());
+  }
+
+}
@@ -0,0 +1,73 @@
+package org.forgerock.openam.auth.nodes;
+
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.testng.annotations.Test;
+
+public class GeoIndexTest {
+
+  @Test
+  public void testGeoHash() {
+    assertThat(GeoHash.encode(57.64911, 10.40744, 11)).isEqualTo("u4pruydqqvj");
+  }
+
+  @Test
+  public void testAnyWithin() {
+    GeoIndex index = new GeoIndex(Arrays.asList(new GeoPoint(49.2827, -123.1207),
+        new GeoPoint(47.6062, -122.3321)));
+
+    assertThat(index.anyWithin(new GeoPoint(47.61, -122.33), 1)).isTrue();
+    assertThat(index.anyWithin(new GeoPoint(49.28, -123.12), 1)).isTrue();
+    assertThat(index.anyWithin(new GeoPoint(48.4284, -123.3656), 50)).isFalse();
+  }
+
+  @Test
+  public void testAgreesWithLinearScan() {
+    Random random = new Random(7);
+    for (int i = 0; i < 2000; i++) {
+      double latitude = random.nextDouble() * 170 - 85;
+      double longitude = random.nextDouble() * 360 - 180;
+      List<GeoPoint> points = new ArrayList<>();
+      for (int j = 0; j < 10; j++) {
+        points.add(new GeoPoint(latitude + random.nextGaussian() * 0.5,
+            longitude + random.nextGaussian() * 0.5));
+      }
+      GeoIndex index = new GeoIndex(points);
+      GeoPoint point = new GeoPoint(latitude, longitude);
+      double distance = Math.exp(random.nextDouble() * 8 - 3);
+
+      assertThat(index.anyWithin(point, distance))
+          .isEqualTo(points.stream().anyMatch(p -> p.isWithin(point, distance)));
+    }
+  }
+
+  @Test
+  public void testAgreesWithLinearScanAtHighLatitudes() {
+    Random random = new Random(11);
+    for (int i = 0; i < 2000; i++) {
+      GeoPoint point = new GeoPoint(70 + random.nextDouble() * 15,
+          random.nextDouble() * 360 - 180);
+      double distance = 100 + random.nextDouble() * 400;
+      GeoPoint edge = widest(point, distance * (0.99 + random.nextDouble() * 0.01),
+          random.nextBoolean());
+      GeoIndex index = new GeoIndex(Arrays.asList(edge));
+
+      assertThat(index.anyWithin(point, distance)).isEqualTo(edge.isWithin(point, distance));
+    }
+  }
+
+  //The point of the range furthest east or west, which is poleward of the centre
+  private static GeoPoint widest(GeoPoint centre, double distance, boolean east) {
+    double angle = distance / GeoPoint.EARTH_RADIUS;
+    double lat = Math.toRadians(centre.getLatitude());
+    double latitude = Math.toDegrees(Math.asin(Math.sin(lat) / Math.cos(angle)));
+    double span = Math.toDegrees(Math.asin(Math.sin(angle) / Math.cos(lat)));
+    double longitude = centre.getLongitude() + (east ? span : -span);
+    return new GeoPoint(latitude, (longitude + 540) % 360 - 180);
+  }
+}
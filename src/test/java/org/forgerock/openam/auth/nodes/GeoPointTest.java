@@ -0,0 +1,45 @@
+package org.forgerock.openam.auth.nodes;
+
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+import java.util.Random;
+import org.testng.annotations.Test;
+
+public class GeoPointTest {
+
+  @Test
+  public void testDistance() {
+    GeoPoint vancouver = new GeoPoint(49.2827, -123.1207);
+    GeoPoint seattle = new GeoPoint(47.6062, -122.3321);
+
+    assertThat(vancouver.distanceTo(seattle)).isCloseTo(195.6, within(0.5));
+    assertThat(vancouver.isWithin(seattle, 200)).isTrue();
+    assertThat(vancouver.isWithin(seattle, 190)).isFalse();
+  }
+
+  @Test
+  public void testAcrossAntimeridian() {
+    GeoPoint east = new GeoPoint(0, 179.9);
+    GeoPoint west = new GeoPoint(0, -179.9);
+
+    assertThat(east.isWithin(west, 25)).isTrue();
+    assertThat(east.isWithin(west, 20)).isFalse();
+  }
+
+  @Test
+  public void testPrefilterAgreesWithHaversine() {
+    Random random = new Random(42);
+    for (int i = 0; i < 10000; i++) {
+      GeoPoint from = new GeoPoint(random.nextDouble() * 170 - 85,
+          random.nextDouble() * 360 - 180);
+      GeoPoint to = new GeoPoint(from.getLatitude() + random.nextGaussian(),
+          from.getLongitude() + random.nextGaussian());
+      double distance = from.distanceTo(to);
+      assertThat(from.isWithin(to, distance * 1.001)).isTrue();
+      assertThat(from.isWithin(to, distance * 0.999)).isFalse();
+    }
+  }
+
+}
@@ -0,0 +1,101 @@
+package org.forgerock.openam.auth.nodes;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+import org.forgerock.openam.auth.nodes.InMemoryDeviceMetrics.Histogram;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class InMemoryDeviceMetricsTest {
+
+  InMemoryDeviceMetrics metrics;
+
+  @BeforeMethod
+  public void setup() {
+    metrics = new InMemoryDeviceMetrics(0);
+  }
+
+  @Test
+  public void testCounter() {
+    metrics.increment("device.test.event");
+    metrics.increment("device.test.event");
+
+    assertThat(metrics.getCount("device.test.event")).isEqualTo(2);
+    assertThat(metrics.getCount("device.test.other")).isEqualTo(0);
+  }
+
+  @Test
+  public void testHistogram() {
+    for (int i = 1; i <= 100; i++) {
+      metrics.record("device.test.size", i);
+    }
+
+    Histogram histogram = metrics.getHistogram("device.test.size");
+    assertThat(histogram.getCount()).isEqualTo(100);
+    assertThat(histogram.getMean()).isEqualTo(50.5);
+    assertThat(histogram.getMax()).isEqualTo(100);
+    //Within the power of two bucket of the exact value
+    assertThat(histogram.getPercentile(50)).isBetween(50L, 63L);
+    assertThat(histogram.getPercentile(99)).isEqualTo(100);
+    assertThat(histogram.getPercentile(1)).isEqualTo(1);
+  }
+
+  @Test
+  public void testEmptyHistogram() {
+    Histogram histogram = metrics.getHistogram("device.test.size");
+
+    assertThat(histogram.getCount()).isEqualTo(0);
+    assertThat(histogram.getMean()).isEqualTo(0);
+    assertThat(histogram.getPercentile(99)).isEqualTo(0);
+  }
+
+  @Test
+  public void testTimer() {
+    DeviceMetrics.Timer timer = metrics.start("device.test.duration");
+    assertThat(metrics.getTimer("device.test.duration").getCount()).isEqualTo(0);
+    timer.stop();
+
+    assertThat(metrics.getTimer("device.test.duration").getCount()).isEqualTo(1);
+    assertThat(metrics.getHistogram("device.test.duration").getCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testProcessCountsOutcomes() throws NodeProcessException {
+    Action action = metrics.process("device.test.", () -> Action.goTo("true").build());
+
+    assertThat(action.outcome).isEqualTo("true");
+    assertThat(metrics.getCount("device.test.outcome.true")).isEqualTo(1);
+    assertThat(metrics.getTimer("device.test.process").getCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testProcessCountsErrors() {
+    assertThatThrownBy(() -> metrics.process("device.test.", () -> {
+      throw new NodeProcessException("Failed");
+    })).isInstanceOf(NodeProcessException.class);
+
+    assertThat(metrics.getCount("device.test.error")).isEqualTo(1);
+    assertThat(metrics.getTimer("device.test.process").getCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testSnapshot() {
+    metrics.increment("device.test.event");
+    metrics.record("device.test.size", 10);
+    metrics.time("device.test.duration", 5000);
+
+    JsonValue snapshot = metrics.snapshot();
+
+    assertThat(snapshot.get("counters").get("device.test.event").asLong()).isEqualTo(1);
+    assertThat(snapshot.get("histograms").get("device.test.size").get("max").asLong())
+        .isEqualTo(10);
+    //Timers are reported in microseconds
+    assertThat(snapshot.get("timers").get("device.test.duration").get("max").asLong())
+        .isEqualTo(5);
+  }
+
+}
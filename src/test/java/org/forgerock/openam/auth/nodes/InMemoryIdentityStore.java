@@ -0,0 +1,281 @@
+package org.forgerock.openam.auth.nodes;
+
+import com.sun.identity.idm.AMIdentity;
+import com.sun.identity.idm.IdRepoException;
+import com.sun.identity.idm.IdServices;
+import com.sun.identity.idm.IdType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.forgerock.openam.core.CoreWrapper;
+
+/**
+ * In-memory stand-in of the AM identity repository, for tests and load tests running whole
+ * device journeys without a directory. It backs the {@link CoreWrapper} lookups, the {@link
+ * AMIdentity} attribute reads and writes and the {@link IdServices} attribute additions used by
+ * the nodes, with a latency and a failure rate injected in each data store access.
+ *
+ * <p>
+ * Like the data store, a write through an identity replaces the whole attribute, so concurrent
+ * writes of the same user are last writer wins, while an addition through the services adds its
+ * values to the stored ones. As in AM, each lookup returns a new identity, and the attributes set
+ * on an identity are staged on it until stored.
+ * </p>
+ */
+final class InMemoryIdentityStore {
+
+  private final ConcurrentMap<String, Map<String, Set<String>>> attributes =
+      new ConcurrentHashMap<>();
+  private final Latency readLatency;
+  private final Latency writeLatency;
+  private final double failureRate;
+  private final CoreWrapper coreWrapper = new CoreWrapper() {
+    @Override
+    public AMIdentity getIdentity(String username, String realm) {
+      delay(readLatency);
+      return attributes.containsKey(universalId(username, realm))
+          ? new StoredIdentity(username, realm) : null;
+    }
+  };
+  private final IdServices idServices = (IdServices) Proxy.newProxyInstance(
+      IdServices.class.getClassLoader(), new Class<?>[] {IdServices.class}, this::invoke);
+  private final LongAdder reads = new LongAdder();
+  private final LongAdder writes = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+
+  /**
+   * Distribution of the latency of a data store access.
+   */
+  @FunctionalInterface
+  interface Latency {
+
+    Latency NONE = random -> 0;
+
+    /**
+     * @param random The random number generator of the calling thread
+     * @return A latency in microseconds
+     */
+    long sample(ThreadLocalRandom random);
+
+    static Latency fixed(long micros) {
+      return random -> micros;
+    }
+
+    static Latency uniform(long minMicros, long maxMicros) {
+      return random -> random.nextLong(minMicros, maxMicros + 1);
+    }
+
+    static Latency exponential(long meanMicros) {
+      return random -> (long) (-meanMicros * Math.log(1 - random.nextDouble()));
+    }
+  }
+
+  /**
+   * Create a store without latency nor failures.
+   */
+  InMemoryIdentityStore() {
+    this(Latency.NONE, Latency.NONE, 0);
+  }
+
+  /**
+   * Create a store.
+   *
+   * @param readLatency The latency of the lookups and attribute reads
+   * @param writeLatency The latency of the attribute writes
+   * @param failureRate The probability of a read or write to fail, between 0 and 1
+   */
+  InMemoryIdentityStore(Latency readLatency, Latency writeLatency, double failureRate) {
+    this.readLatency = readLatency;
+    this.writeLatency = writeLatency;
+    this.failureRate = failureRate;
+  }
+
+  /**
+   * Add an active user without attributes.
+   *
+   * @param username The username
+   * @param realm The realm DN
+   */
+  void add(String username, String realm) {
+    attributes.put(universalId(username, realm), new ConcurrentHashMap<>());
+  }
+
+  /**
+   * The lookups of the users of this store.
+   */
+  CoreWrapper getCoreWrapper() {
+    return coreWrapper;
+  }
+
+  /**
+   * The data store services of this store, only supporting {@code setAttributes}.
+   */
+  IdServices getIdServices() {
+    return idServices;
+  }
+
+  /**
+   * Get the stored values of an attribute of a user, without latency.
+   *
+   * @return The values, empty when none
+   */
+  Set<String> get(String username, String realm, String name) {
+    Set<String> values = attributes.get(universalId(username, realm)).get(name);
+    return values == null ? Collections.emptySet() : Collections.unmodifiableSet(values);
+  }
+
+  /**
+   * @return The number of attribute reads, failed ones included
+   */
+  long getReads() {
+    return reads.sum();
+  }
+
+  /**
+   * @return The number of attribute writes, failed ones included
+   */
+  long getWrites() {
+    return writes.sum();
+  }
+
+  /**
+   * @return The number of injected failures
+   */
+  long getFailures() {
+    return failures.sum();
+  }
+
+  private Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+    if (!"setAttributes".equals(method.getName()) || args.length != 8) {
+      throw new UnsupportedOperationException(method.getName());
+    }
+    Map<String, Set<String>> stored = attributes.get(universalId((String) args[2],
+        (String) args[5]));
+    if (stored == null) {
+      throw new IdRepoException("No such identity " + args[2]);
+    }
+    boolean isAdd = (Boolean) args[4];
+    access(writeLatency, writes);
+    copy((Map<?, ?>) args[3]).forEach((name, values) -> stored.merge(name, values,
+        (current, added) -> {
+          if (!isAdd) {
+            return added;
+          }
+          Set<String> merged = new LinkedHashSet<>(current);
+          merged.addAll(added);
+          return merged;
+        }));
+    return null;
+  }
+
+  private static Map<String, Set<String>> copy(Map<?, ?> attrMap) {
+    Map<String, Set<String>> copy = new HashMap<>();
+    attrMap.forEach((name, values) -> {
+      Set<String> set = new LinkedHashSet<>();
+      ((Set<?>) values).forEach(value -> set.add(value.toString()));
+      copy.put(name.toString(), set);
+    });
+    return copy;
+  }
+
+  private void access(Latency latency, LongAdder counter) throws IdRepoException {
+    counter.increment();
+    delay(latency);
+    if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+      failures.increment();
+      throw new IdRepoException("Injected data store failure");
+    }
+  }
+
+  private static void delay(Latency latency) {
+    long deadline = System.nanoTime()
+        + TimeUnit.MICROSECONDS.toNanos(latency.sample(ThreadLocalRandom.current()));
+    for (long left = deadline - System.nanoTime(); left > 0; left = deadline - System.nanoTime()) {
+      LockSupport.parkNanos(left);
+    }
+  }
+
+  private static String universalId(String username, String realm) {
+    return "id=" + username + ",ou=user," + realm;
+  }
+
+
+  /**
+   * An identity of this store, reading and writing its attributes.
+   */
+  private final class StoredIdentity extends AMIdentity {
+
+    private final String username;
+    private final String realm;
+    private final String universalId;
+    private final Map<String, Set<String>> staged = new ConcurrentHashMap<>();
+
+    StoredIdentity(String username, String realm) {
+      super(null, username, IdType.USER, realm, null);
+      this.username = username;
+      this.realm = realm;
+      this.universalId = universalId(username, realm);
+    }
+
+    @Override
+    public Set<String> getAttribute(String name) throws IdRepoException {
+      access(readLatency, reads);
+      Set<String> values = attributes.get(universalId).get(name);
+      return values == null ? Collections.emptySet() : new LinkedHashSet<>(values);
+    }
+
+    @Override
+    public void setAttributes(Map attrMap) {
+      staged.putAll(copy(attrMap));
+    }
+
+    @Override
+    public void store() throws IdRepoException {
+      Map<String, Set<String>> pending = new HashMap<>(staged);
+      staged.clear();
+      access(writeLatency, writes);
+      attributes.get(universalId).putAll(pending);
+    }
+
+    @Override
+    public boolean isExists() {
+      return true;
+    }
+
+    @Override
+    public boolean isActive() {
+      return true;
+    }
+
+    @Override
+    public String getName() {
+      return username;
+    }
+
+    @Override
+    public IdType getType() {
+      return IdType.USER;
+    }
+
+    @Override
+    public String getRealm() {
+      return realm;
+    }
+
+    @Override
+    public String getUniversalId() {
+      return universalId;
+    }
+  }
+
+}
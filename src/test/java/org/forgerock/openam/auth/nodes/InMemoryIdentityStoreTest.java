@@ -0,0 +1,101 @@
+package org.forgerock.openam.auth.nodes;
+
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonMap;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.sun.identity.idm.AMIdentity;
+import com.sun.identity.idm.IdRepoException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.forgerock.openam.auth.nodes.InMemoryIdentityStore.Latency;
+import org.testng.annotations.Test;
+
+public class InMemoryIdentityStoreTest {
+
+  @Test
+  public void testLookup() throws Exception {
+    InMemoryIdentityStore store = new InMemoryIdentityStore();
+    store.add("bob", "/");
+
+    AMIdentity identity = store.getCoreWrapper().getIdentity("bob", "/");
+
+    assertThat(identity.getName()).isEqualTo("bob");
+    assertThat(identity.isExists()).isTrue();
+    assertThat(identity.isActive()).isTrue();
+    assertThat(store.getCoreWrapper().getIdentity("alice", "/")).isNull();
+    assertThat(store.getCoreWrapper().getIdentity("bob", "/other")).isNull();
+  }
+
+  @Test
+  public void testWriteIsStagedUntilStored() throws Exception {
+    InMemoryIdentityStore store = new InMemoryIdentityStore();
+    store.add("bob", "/");
+    AMIdentity identity = store.getCoreWrapper().getIdentity("bob", "/");
+
+    identity.setAttributes(singletonMap("deviceAttributes", singleton("{}")));
+    assertThat(identity.getAttribute("deviceAttributes")).isEmpty();
+    identity.store();
+
+    assertThat(identity.getAttribute("deviceAttributes")).containsExactly("{}");
+    assertThat(store.get("bob", "/", "deviceAttributes")).containsExactly("{}");
+    assertThat(store.getReads()).isEqualTo(2);
+    assertThat(store.getWrites()).isEqualTo(1);
+  }
+
+  @Test
+  public void testAddition() throws Exception {
+    InMemoryIdentityStore store = new InMemoryIdentityStore();
+    store.add("bob", "/");
+    AMIdentity identity = store.getCoreWrapper().getIdentity("bob", "/");
+    identity.setAttributes(singletonMap("deviceAttributes", singleton("{}")));
+    identity.store();
+
+    store.getIdServices().setAttributes(null, identity.getType(), "bob",
+        singletonMap("deviceAttributes", singleton("[]")), true, "/", null, true);
+
+    assertThat(store.get("bob", "/", "deviceAttributes")).containsExactly("{}", "[]");
+    assertThat(store.getWrites()).isEqualTo(2);
+    assertThatThrownBy(() -> store.getIdServices().setAttributes(null, identity.getType(),
+        "alice", singletonMap("deviceAttributes", singleton("[]")), true, "/", null, true))
+        .isInstanceOf(IdRepoException.class);
+  }
+
+  @Test
+  public void testLatency() throws Exception {
+    InMemoryIdentityStore store = new InMemoryIdentityStore(Latency.fixed(20000),
+        Latency.NONE, 0);
+    store.add("bob", "/");
+    AMIdentity identity = store.getCoreWrapper().getIdentity("bob", "/");
+
+    long start = System.nanoTime();
+    identity.getAttribute("deviceAttributes");
+
+    assertThat(System.nanoTime() - start)
+        .isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(20));
+  }
+
+  @Test
+  public void testFailure() throws Exception {
+    InMemoryIdentityStore store = new InMemoryIdentityStore(Latency.NONE, Latency.NONE, 1);
+    store.add("bob", "/");
+    AMIdentity identity = store.getCoreWrapper().getIdentity("bob", "/");
+
+    assertThatThrownBy(identity::store).isInstanceOf(IdRepoException.class);
+    assertThatThrownBy(() -> identity.getAttribute("deviceAttributes"))
+        .isInstanceOf(IdRepoException.class);
+    assertThat(store.getFailures()).isEqualTo(2);
+  }
+
+  @Test
+  public void testLatencyDistributions() {
+    for (int i = 0; i < 100; i++) {
+      assertThat(Latency.uniform(10, 20).sample(ThreadLocalRandom.current()))
+          .isBetween(10L, 20L);
+      assertThat(Latency.exponential(10).sample(ThreadLocalRandom.current()))
+          .isGreaterThanOrEqualTo(0);
+    }
+  }
+
+}
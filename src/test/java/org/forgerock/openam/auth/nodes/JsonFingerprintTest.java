@@ -0,0 +1,37 @@
+package org.forgerock.openam.auth.nodes;
+
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.utils.JsonValueBuilder;
+import org.testng.annotations.Test;
+
+public class JsonFingerprintTest {
+
+  @Test
+  public void testCanonicalize() {
+    JsonValue value = JsonValueBuilder
+        .toJsonValue("{\"b\": [1.50, \"x\"], \"a\": {\"d\": true, \"c\": null}, \"e\": 2.0}");
+
+    assertThat(JsonFingerprint.canonicalize(value))
+        .isEqualTo("{\"a\":{\"c\":null,\"d\":true},\"b\":[1.5,\"x\"],\"e\":2}");
+  }
+
+  @Test
+  public void testSameFingerprintRegardlessOfOrderAndNumberFormat() {
+    JsonValue first = JsonValueBuilder.toJsonValue("{\"latitude\": 49, \"longitude\": -123.10}");
+    JsonValue second = JsonValueBuilder.toJsonValue("{\"longitude\": -123.1, \"latitude\": 49.0}");
+
+    assertThat(JsonFingerprint.of(first)).isEqualTo(JsonFingerprint.of(second));
+  }
+
+  @Test
+  public void testDifferentFingerprint() {
+    JsonValue first = JsonValueBuilder.toJsonValue("{\"model\": \"android\"}");
+    JsonValue second = JsonValueBuilder.toJsonValue("{\"model\": \"ios\"}");
+
+    assertThat(JsonFingerprint.of(first)).isNotEqualTo(JsonFingerprint.of(second));
+  }
+
+}
@@ -0,0 +1,64 @@
+package org.forgerock.openam.auth.nodes;
+
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.testng.annotations.Test;
+
+public class PolygonIndexTest {
+
+  @Test
+  public void testFind() {
+    Map<String, String> polygons = new HashMap<>();
+    polygons.put("square", "0,0; 0,10; 10,10; 10,0");
+    polygons.put("triangle", "20,20;20,30;30,20");
+    PolygonIndex index = PolygonIndex.compile(polygons);
+
+    assertThat(index.find(5, 5)).contains("square");
+    assertThat(index.find(21, 21)).contains("triangle");
+    assertThat(index.find(29, 29)).isEmpty();
+    assertThat(index.find(-1, 5)).isEmpty();
+  }
+
+  @Test
+  public void testFindAmongManyPolygons() {
+    Map<String, String> polygons = new HashMap<>();
+    for (int lat = 0; lat < 20; lat++) {
+      for (int lon = 0; lon < 20; lon++) {
+        polygons.put(lat + "/" + lon, lat + "," + lon + ";" + lat + "," + (lon + 0.5) + ";"
+            + (lat + 0.5) + "," + (lon + 0.5) + ";" + (lat + 0.5) + "," + lon);
+      }
+    }
+    PolygonIndex index = PolygonIndex.compile(polygons);
+
+    assertThat(index.find(7.25, 13.25)).contains("7/13");
+    assertThat(index.find(7.75, 13.25)).isEmpty();
+    assertThat(index.find(19.1, 0.4)).contains("19/0");
+  }
+
+  @Test
+  public void testRejectsCoordinatesOutOfRange() {
+    assertThatThrownBy(() -> PolygonIndex.validate("nan", "0,0;NaN,1;1,0"))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("The latitude NaN of nan is not between -90 and 90");
+    assertThatThrownBy(() -> PolygonIndex.validate("west", "0,0;1,-Infinity;1,0"))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("The longitude -Infinity of west is not between -180 and 180");
+    assertThatThrownBy(() -> PolygonIndex.validate("text", "0,0;x,1;1,0"))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("Invalid latitude x of text");
+  }
+
+  @Test
+  public void testCompiledOncePerConfiguration() {
+    Map<String, String> polygons = new HashMap<>();
+    polygons.put("square", "0,0;0,1;1,1;1,0");
+
+    assertThat(PolygonIndex.compile(polygons))
+        .isSameAs(PolygonIndex.compile(new HashMap<>(polygons)));
+  }
+
+}
@@ -0,0 +1,47 @@
+package org.forgerock.openam.auth.nodes;
+
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.utils.JsonValueBuilder;
+import org.testng.annotations.Test;
+
+public class ProfileMatcherTest {
+
+  @Test
+  public void testScore() {
+    Map<String, String> weights = new HashMap<>();
+    weights.put("platform/model", "3");
+    weights.put("/platform/version", "1");
+    weights.put("hardware/display", "1");
+    weights.put("hardware/missing", "5");
+
+    JsonValue collected = JsonValueBuilder.toJsonValue("{\"platform\":{\"model\":\"Pixel\","
+        + "\"version\":30},\"hardware\":{\"display\":{\"width\":1440,\"height\":2621}}}");
+    JsonValue stored = JsonValueBuilder.toJsonValue("{\"platform\":{\"model\":\"Pixel\","
+        + "\"version\":29},\"hardware\":{\"display\":{\"height\":2621,\"width\":1440.0}}}");
+
+    assertThat(new ProfileMatcher(weights).score(collected, stored)).isEqualTo(80);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testInvalidWeight() {
+    Map<String, String> weights = new HashMap<>();
+    weights.put("platform/model", "-1");
+
+    new ProfileMatcher(weights);
+  }
+
+  @Test
+  public void testNoField() {
+    Map<String, String> weights = new HashMap<>();
+    weights.put("platform/model", "1");
+
+    assertThat(new ProfileMatcher(weights).score(JsonValueBuilder.jsonValue().build(),
+        JsonValueBuilder.jsonValue().build())).isZero();
+  }
+
+}
@@ -0,0 +1,84 @@
+package org.forgerock.openam.auth.nodes;
+
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.utils.JsonValueBuilder;
+import org.testng.annotations.Test;
+
+public class ProfilePredicateTest {
+
+  private static final JsonValue PROFILE = JsonValueBuilder.toJsonValue("{\"platform\":{"
+      + "\"jailBreakScore\":0.8,\"version\":10,\"brand\":\"google\",\"osVersion\":\"12.1\","
+      + "\"release\":\"12.1.3\"},"
+      + "\"bluetooth\":{\"supported\":true},\"cameras\":[{\"facing\":\"back\"}]}");
+
+  @Test
+  public void testComparisons() {
+    assertThat(test("platform.jailBreakScore > 0.5")).isTrue();
+    assertThat(test("platform.jailBreakScore <= 0.5")).isFalse();
+    assertThat(test("platform.version == 10.0")).isTrue();
+    assertThat(test("platform.version != 10")).isFalse();
+    assertThat(test("platform.version >= -1e1")).isTrue();
+    assertThat(test("platform.brand == 'google'")).isTrue();
+    assertThat(test("platform.brand < \"samsung\"")).isTrue();
+    assertThat(test("cameras.0.facing == 'back'")).isTrue();
+    assertThat(test("bluetooth.supported")).isTrue();
+    assertThat(test("bluetooth.supported == false")).isFalse();
+  }
+
+  @Test
+  public void testNumericStrings() {
+    assertThat(test("platform.osVersion >= 12")).isTrue();
+    assertThat(test("12.5 > platform.osVersion")).isTrue();
+    assertThat(test("platform.osVersion == 12.1")).isTrue();
+    assertThat(test("platform.osVersion == '12.1'")).isTrue();
+    assertThat(test("platform.release >= 12")).isFalse();
+    assertThat(test("platform.brand > 1")).isFalse();
+    assertThat(test("platform.brand != 1")).isTrue();
+  }
+
+  @Test
+  public void testConnectives() {
+    assertThat(test("platform.jailBreakScore > 0.5 && platform.version < 12")).isTrue();
+    assertThat(test("platform.jailBreakScore < 0.5 || platform.version < 12")).isTrue();
+    assertThat(test("!(platform.jailBreakScore < 0.5 || platform.version > 12)")).isTrue();
+    assertThat(test("platform.version > 12 || platform.version < 12 && false")).isFalse();
+  }
+
+  @Test
+  public void testMissingField() {
+    assertThat(test("platform.missing < 1")).isFalse();
+    assertThat(test("platform.missing != 1")).isFalse();
+    assertThat(test("platform.missing == null")).isTrue();
+    assertThat(test("platform.brand.missing == null")).isTrue();
+    assertThat(test("platform.brand != null")).isTrue();
+  }
+
+  @Test
+  public void testCompiledOncePerExpression() {
+    assertThat(ProfilePredicate.compile("platform.version > 1"))
+        .isSameAs(ProfilePredicate.compile("platform.version > 1"));
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testUnbalancedParentheses() {
+    ProfilePredicate.compile("(platform.version > 1");
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testMissingOperand() {
+    ProfilePredicate.compile("platform.version >");
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testTrailingInput() {
+    ProfilePredicate.compile("platform.version > 1 platform");
+  }
+
+  private static boolean test(String expression) {
+    return ProfilePredicate.compile(expression).test(PROFILE);
+  }
+
+}
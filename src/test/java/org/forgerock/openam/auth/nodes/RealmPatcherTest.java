@@ -0,0 +1,180 @@
+package org.forgerock.openam.auth.nodes;
+
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.sun.identity.sm.SMSException;
+import com.sun.identity.sm.ServiceConfig;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+import org.forgerock.openam.utils.CollectionUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+public class RealmPatcherTest {
+
+  private Path directory;
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    if (directory != null) {
+      try (Stream<Path> paths = Files.walk(directory)) {
+        paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+      }
+      directory = null;
+    }
+  }
+
+  @Test
+  public void testPatch() throws Exception {
+    Map<String, ServiceConfig> realms = new HashMap<>();
+    ServiceConfig unpatched = subConfig(CollectionUtils.asSet("inetOrgPerson"),
+        CollectionUtils.asSet("uid"));
+    ServiceConfig patched = subConfig(
+        CollectionUtils.asSet("inetOrgPerson", RealmPatcher.DEVICE_ATTRIBUTE_CONTAINER),
+        CollectionUtils.asSet("uid", "deviceAttributes"));
+    realms.put("/", realm("OpenDJ", unpatched));
+    realms.put("/done", realm("OpenDJ", patched));
+
+    Set<String> patchedStores = new HashSet<>();
+
+    Map<String, Exception> failures = new RealmPatcher(realms::get, 2)
+        .patch(asList("/", "/done"), patchedStores);
+
+    assertThat(failures).isEmpty();
+    assertThat(patchedStores).containsOnly(RealmPatcher.key("/", "OpenDJ"),
+        RealmPatcher.key("/done", "OpenDJ"), RealmPatcher.key("/"), RealmPatcher.key("/done"));
+    verify(unpatched).addAttribute(RealmPatcher.USER_OBJECTCLASS,
+        Collections.singleton(RealmPatcher.DEVICE_ATTRIBUTE_CONTAINER));
+    verify(unpatched).addAttribute(RealmPatcher.USER_ATTRIBUTES, RealmPatcher.ATTRIBUTES);
+    verify(patched, never()).addAttribute(anyString(), any());
+    verify(realms.get("/"), times(1)).getSubConfig("OpenDJ");
+  }
+
+  @Test
+  public void testPatchSkipsRecordedStores() throws Exception {
+    ServiceConfig recorded = subConfig(CollectionUtils.asSet("inetOrgPerson"),
+        CollectionUtils.asSet("uid"));
+    ServiceConfig added = subConfig(CollectionUtils.asSet("inetOrgPerson"),
+        CollectionUtils.asSet("uid"));
+    ServiceConfig realm = mock(ServiceConfig.class);
+    given(realm.getSubConfigNames("*", "LDAPv3*"))
+        .willReturn(CollectionUtils.asSet("OpenDJ", "Added"));
+    given(realm.getSubConfig("OpenDJ")).willReturn(recorded);
+    given(realm.getSubConfig("Added")).willReturn(added);
+    Set<String> patchedStores = new HashSet<>(
+        Collections.singleton(RealmPatcher.key("/", "OpenDJ")));
+
+    Map<String, Exception> failures = new RealmPatcher(r -> realm, 1)
+        .patch(Collections.singleton("/"), patchedStores);
+
+    assertThat(failures).isEmpty();
+    assertThat(patchedStores).containsOnly(RealmPatcher.key("/", "OpenDJ"),
+        RealmPatcher.key("/", "Added"), RealmPatcher.key("/"));
+    verify(realm, never()).getSubConfig("OpenDJ");
+    verify(recorded, never()).addAttribute(anyString(), any());
+    verify(added).addAttribute(RealmPatcher.USER_ATTRIBUTES, RealmPatcher.ATTRIBUTES);
+  }
+
+  @Test
+  public void testPatchReportsFailures() throws Exception {
+    Map<String, ServiceConfig> realms = new HashMap<>();
+    ServiceConfig failing = subConfig(CollectionUtils.asSet("inetOrgPerson"),
+        CollectionUtils.asSet("uid"));
+    SMSException error = new SMSException("Failed");
+    doThrow(error).when(failing)
+        .addAttribute(eq(RealmPatcher.USER_OBJECTCLASS), any());
+    realms.put("/", realm("OpenDJ", subConfig(Collections.emptySet(), Collections.emptySet())));
+    realms.put("/failing", realm("OpenDJ", failing));
+
+    Set<String> patchedStores = new HashSet<>();
+
+    Map<String, Exception> failures = new RealmPatcher(realms::get, 4)
+        .patch(asList("/", "/failing"), patchedStores);
+
+    assertThat(failures).containsOnlyKeys("/failing");
+    assertThat(patchedStores).containsOnly(RealmPatcher.key("/", "OpenDJ"),
+        RealmPatcher.key("/"));
+    assertThat(failures.get("/failing")).isSameAs(error);
+  }
+
+  @Test
+  public void testPatchSkipsRecordedRealms() throws Exception {
+    Map<String, ServiceConfig> realms = new HashMap<>();
+    ServiceConfig unpatched = subConfig(CollectionUtils.asSet("inetOrgPerson"),
+        CollectionUtils.asSet("uid"));
+    realms.put("/added", realm("OpenDJ", unpatched));
+    Set<String> patchedStores = new HashSet<>(asList(RealmPatcher.key("/", "OpenDJ"),
+        RealmPatcher.key("/")));
+    RealmPatcher.RealmConfigs configs = mock(RealmPatcher.RealmConfigs.class);
+    given(configs.get(anyString())).willAnswer(invocation -> realms.get(invocation.getArgument(0)));
+
+    Map<String, Exception> failures = new RealmPatcher(configs, 2)
+        .patch(asList("/", "/added"), patchedStores);
+
+    assertThat(failures).isEmpty();
+    assertThat(patchedStores).contains(RealmPatcher.key("/added", "OpenDJ"),
+        RealmPatcher.key("/added"));
+    verify(configs, never()).get("/");
+    verify(unpatched).addAttribute(RealmPatcher.USER_ATTRIBUTES, RealmPatcher.ATTRIBUTES);
+  }
+
+  @Test
+  public void testState() throws Exception {
+    directory = Files.createTempDirectory("realms");
+    Path state = directory.resolve(DeviceAttributeCollectorPlugin.PATCH_STATE);
+
+    assertThat(RealmPatcher.load(state)).isEmpty();
+
+    RealmPatcher.save(state, asList(RealmPatcher.key("/b", "OpenDJ"),
+        RealmPatcher.key("/", "OpenDJ"), RealmPatcher.key("/a", "OpenDJ")));
+
+    assertThat(RealmPatcher.load(state)).containsExactly(RealmPatcher.key("/", "OpenDJ"),
+        RealmPatcher.key("/a", "OpenDJ"), RealmPatcher.key("/b", "OpenDJ"));
+    assertThat(RealmPatcher.realm(RealmPatcher.key("/a", "OpenDJ"))).isEqualTo("/a");
+    assertThat(RealmPatcher.realm(RealmPatcher.key("/a"))).isEqualTo("/a");
+    assertThat(Files.list(directory).count()).isEqualTo(1);
+  }
+
+  @Test
+  public void testStateOfOtherVersion() throws Exception {
+    directory = Files.createTempDirectory("realms");
+    Path state = directory.resolve(DeviceAttributeCollectorPlugin.PATCH_STATE);
+    Files.write(state, asList("# Realms patched for the device attributes, v1", "/", "/a"));
+
+    assertThat(RealmPatcher.load(state)).isEmpty();
+  }
+
+  private static ServiceConfig realm(String name, ServiceConfig subConfig) throws Exception {
+    ServiceConfig realm = mock(ServiceConfig.class);
+    given(realm.getSubConfigNames("*", "LDAPv3*")).willReturn(Collections.singleton(name));
+    given(realm.getSubConfig(name)).willReturn(subConfig);
+    return realm;
+  }
+
+  private static ServiceConfig subConfig(Set<String> objectClasses, Set<String> attributes) {
+    ServiceConfig subConfig = mock(ServiceConfig.class);
+    given(subConfig.getAttributeValue(RealmPatcher.USER_OBJECTCLASS)).willReturn(objectClasses);
+    given(subConfig.getAttributeValue(RealmPatcher.USER_ATTRIBUTES)).willReturn(attributes);
+    return subConfig;
+  }
+
+}
@@ -0,0 +1,68 @@
+package org.forgerock.openam.auth.nodes;
+
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import org.forgerock.json.JsonValue;
+import org.testng.annotations.Test;
+
+public class StoredDevicesTest {
+
+  @Test
+  public void testIdentifierOf() {
+    assertThat(StoredDevices.identifierOf("{\"identifier\": \"abc\", \"profile\": {}}"))
+        .isEqualTo("abc");
+    assertThat(StoredDevices.identifierOf("{\"profile\":{\"x\":\"}\"},\"identifier\":\"abc\"}"))
+        .isEqualTo("abc");
+    assertThat(StoredDevices.identifierOf("{\"identifier\":\"a\\/b\\\"c\"}"))
+        .isEqualTo("a/b\"c");
+  }
+
+  @Test
+  public void testNestedIdentifierIsIgnored() {
+    assertThat(StoredDevices.identifierOf("{\"profile\":{\"identifier\":\"abc\"}}")).isNull();
+    assertThat(StoredDevices.identifierOf("{\"name\":\"identifier\",\"identifier\":1}"))
+        .isNull();
+  }
+
+  @Test
+  public void testGet() {
+    StoredDevices devices = StoredDevices.of(new LinkedHashSet<>(Arrays.asList(
+        "{\"identifier\":\"first\",\"location\":{\"latitude\":49}}",
+        "{\"identifier\":\"second\",\"location\":{\"latitude\":50}}",
+        "{\"profile\":{}}")));
+
+    assertThat(devices.size()).isEqualTo(3);
+    assertThat(devices.get("second").get().get("location").get("latitude").asInteger())
+        .isEqualTo(50);
+    assertThat(devices.get("second").get()).isSameAs(devices.get("second").get());
+    assertThat(devices.get("unknown")).isEmpty();
+    assertThat(devices.getIdentifier("{\"profile\":{}}")).isNull();
+  }
+
+  @Test
+  public void testGetAttributes() {
+    StoredDevices devices = StoredDevices.of(new LinkedHashSet<>(Arrays.asList(
+        "{\"identifier\":\"first\",\"profile\":{\"a\":[1,{\"b\":2}]},"
+            + "\"location\":{\"latitude\":49.5},\"publicKey\":\"key\"}")));
+
+    JsonValue record = devices.get("first", "location").get();
+
+    assertThat(record.keys()).containsExactly("location");
+    assertThat(record.get("location").get("latitude").asDouble()).isEqualTo(49.5);
+    assertThat(devices.get("first", "location").get()).isSameAs(record);
+    assertThat(devices.get("unknown", "location")).isEmpty();
+  }
+
+  @Test
+  public void testRead() {
+    JsonValue record = StoredDevices.read("{\"lastSeen\":1,\"profile\":{\"lastSeen\":2}}",
+        Arrays.asList("lastSeen", "missing"));
+
+    assertThat(record.get("lastSeen").asLong()).isEqualTo(1);
+    assertThat(record.isDefined("missing")).isFalse();
+  }
+
+}